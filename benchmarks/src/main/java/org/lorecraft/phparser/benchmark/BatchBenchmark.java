@@ -0,0 +1,77 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.SerializedPhpBatchParser;
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures batch parsing of 64 payloads of a corpus, and the parallel
+ * parse of the elements of one payload, with one and more threads, to
+ * check how they scale with the cores of the machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark
+{
+  @Param({ "SESSION", "NUMERIC_LIST" })
+  public Corpus corpus;
+
+  @Param({ "1", "2", "4" })
+  public int threads;
+
+  private List<byte[]> rows;
+
+  private SerializedPhpBatchParser batch;
+
+  @Setup
+  public void setup()
+  {
+    this.rows = new ArrayList<byte[]>();
+    for (int i = 0; i < 64; i++)
+    {
+      this.rows.add(this.corpus.bytes());
+    }
+    this.batch = new SerializedPhpBatchParser(SerializedPhpParserConfig
+        .builder().build(), this.threads);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    this.batch.shutdown();
+  }
+
+  @Benchmark
+  public List<SerializedPhpBatchParser.Result> parseBatch()
+      throws InterruptedException
+  {
+    return this.batch.parse(this.rows);
+  }
+
+  @Benchmark
+  public Object parseArray() throws SerializedPhpParserException,
+      InterruptedException
+  {
+    return this.batch.parseArray(this.corpus.bytes());
+  }
+}
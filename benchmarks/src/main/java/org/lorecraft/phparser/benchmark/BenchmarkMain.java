@@ -0,0 +1,27 @@
+package org.lorecraft.phparser.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like <code>org.openjdk.jmh.Main</code>, but attaches
+ * the GC profiler unless profilers are given on the command line, so every
+ * report contains the allocation rate (<code>gc.alloc.rate.norm</code>)
+ * next to the timings.
+ */
+public class BenchmarkMain
+{
+  public static void main(String[] args) throws Exception
+  {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (commandLine.getProfilers().isEmpty())
+    {
+      options.addProfiler(GCProfiler.class);
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,80 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.SerializedPhpBinder;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures binding the session corpus to Java classes against parsing it
+ * into the generic tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindBenchmark
+{
+  public static class User
+  {
+    long id;
+
+    String login;
+
+    String email;
+
+    boolean active;
+
+    long last_seen;
+
+    double score;
+
+    List<Item> cart;
+  }
+
+  public static class Item
+  {
+    String sku;
+
+    int qty;
+
+    double price;
+  }
+
+  private byte[] bytes;
+
+  private SerializedPhpBinder binder;
+
+  @Setup
+  public void setup()
+  {
+    this.bytes = Corpus.SESSION.bytes();
+    this.binder = new SerializedPhpBinder().register("User", User.class);
+  }
+
+  @Benchmark
+  public Object parse() throws SerializedPhpParserException
+  {
+    return new SerializedPhpParser(this.bytes).parse();
+  }
+
+  @Benchmark
+  public Object bind() throws SerializedPhpParserException
+  {
+    return this.binder.bind(this.bytes, User[].class);
+  }
+}
@@ -0,0 +1,289 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Deterministically generated serialized PHP payloads. Every corpus is
+ * built from a fixed seed, so the same input is benchmarked on every run
+ * and on every machine.
+ */
+public enum Corpus
+{
+  /**
+   * A session like array of user objects with protected and private
+   * properties, nested carts and a few flags.
+   */
+  SESSION
+  {
+    @Override
+    void write(PhpWriter out, Random random)
+    {
+      out.arrayStart(500);
+      for (int i = 0; i < 500; i++)
+      {
+        out.key(i);
+        out.objectStart("User", 7);
+        out.key("\0*\0id").integer(random.nextInt(1000000));
+        out.key("\0User\0login").string("user" + random.nextInt(100000));
+        out.key("email").string("user" + i + "@example.com");
+        out.key("active").bool(random.nextBoolean());
+        out.key("last_seen").integer(1400000000 + random.nextInt(100000000));
+        out.key("score").decimal(random.nextInt(100000) / 100.0);
+        out.key("cart").arrayStart(3);
+        for (int j = 0; j < 3; j++)
+        {
+          out.key(j).arrayStart(3);
+          out.key("sku").string("SKU-" + random.nextInt(100000));
+          out.key("qty").integer(1 + random.nextInt(5));
+          out.key("price").decimal(random.nextInt(100000) / 100.0);
+          out.end();
+        }
+        out.end();
+        out.end();
+      }
+      out.end();
+    }
+  },
+
+  /**
+   * Arrays nested 500 levels deep, each level carrying a few scalars.
+   */
+  DEEP_NESTING
+  {
+    @Override
+    void write(PhpWriter out, Random random)
+    {
+      int depth = 500;
+      for (int i = 0; i < depth; i++)
+      {
+        out.arrayStart(3);
+        out.key("level").integer(i);
+        out.key("name").string("node" + random.nextInt(1000));
+        out.key("child");
+      }
+      out.nil();
+      for (int i = 0; i < depth; i++)
+      {
+        out.end();
+      }
+    }
+  },
+
+  /**
+   * A plain list of 100,000 alternating integers and floats, like a price
+   * table.
+   */
+  NUMERIC_LIST
+  {
+    @Override
+    void write(PhpWriter out, Random random)
+    {
+      int size = 100000;
+      out.arrayStart(size);
+      for (int i = 0; i < size; i++)
+      {
+        out.key(i);
+        if ((i & 1) == 0)
+        {
+          out.integer(random.nextInt(1000000));
+        }
+        else
+        {
+          out.decimal(random.nextInt(10000000) / 100.0);
+        }
+      }
+      out.end();
+    }
+  },
+
+  /**
+   * Strings dominated by two and three byte UTF-8 sequences.
+   */
+  MULTIBYTE_STRINGS
+  {
+    private final String alphabet = "äöüßéèçñøåæœЖЩЯфыв中文字符日本語한국어€✓☃abc ";
+
+    @Override
+    void write(PhpWriter out, Random random)
+    {
+      int size = 5000;
+      out.arrayStart(size);
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < size; i++)
+      {
+        text.setLength(0);
+        int length = 10 + random.nextInt(60);
+        while (text.length() < length)
+        {
+          text.append(this.alphabet.charAt(random.nextInt(this.alphabet
+              .length())));
+        }
+        out.key("k" + i).string(text.toString());
+      }
+      out.end();
+    }
+  },
+
+  /**
+   * A graph of shared values: a prefix of strings followed by
+   * entries that reference them with <code>R:</code>.
+   */
+  REFERENCES
+  {
+    @Override
+    void write(PhpWriter out, Random random)
+    {
+      int shared = 200;
+      int references = 20000;
+      out.arrayStart(shared + references);
+      for (int i = 0; i < shared; i++)
+      {
+        out.key(i).string("shared value " + random.nextInt(1000000));
+      }
+      for (int i = 0; i < references; i++)
+      {
+        // slot 1 is the array itself, the shared strings are 2 .. shared+1
+        out.key(shared + i).reference(2 + random.nextInt(shared));
+      }
+      out.end();
+    }
+  };
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  private String text;
+
+  private byte[] bytes;
+
+  private String latin1Text;
+
+  abstract void write(PhpWriter out, Random random);
+
+  /**
+   * @return the serialized payload as a String
+   */
+  public synchronized String text()
+  {
+    if (this.text == null)
+    {
+      PhpWriter out = new PhpWriter();
+      write(out, new Random(0x5eed + ordinal()));
+      this.text = out.toString();
+    }
+    return this.text;
+  }
+
+  /**
+   * @return the serialized payload as UTF-8 bytes
+   */
+  public synchronized byte[] bytes()
+  {
+    if (this.bytes == null)
+    {
+      this.bytes = text().getBytes(UTF8);
+    }
+    return this.bytes;
+  }
+
+  /**
+   * @return the UTF-8 bytes decoded as ISO-8859-1, one char per byte, as
+   *         parsed with <code>assumeUTF8 = false</code>
+   */
+  public synchronized String latin1Text()
+  {
+    if (this.latin1Text == null)
+    {
+      this.latin1Text = new String(bytes(), LATIN1);
+    }
+    return this.latin1Text;
+  }
+
+  /**
+   * Minimal writer for the serialized PHP format, used only to build the
+   * corpora.
+   */
+  static final class PhpWriter
+  {
+    private final StringBuilder out = new StringBuilder();
+
+    PhpWriter arrayStart(int size)
+    {
+      this.out.append("a:").append(size).append(":{");
+      return this;
+    }
+
+    PhpWriter objectStart(String name, int size)
+    {
+      this.out.append("O:").append(byteLength(name)).append(":\"")
+          .append(name).append("\":").append(size).append(":{");
+      return this;
+    }
+
+    PhpWriter end()
+    {
+      this.out.append('}');
+      return this;
+    }
+
+    PhpWriter key(int key)
+    {
+      return integer(key);
+    }
+
+    PhpWriter key(String key)
+    {
+      return string(key);
+    }
+
+    PhpWriter integer(long value)
+    {
+      this.out.append("i:").append(value).append(';');
+      return this;
+    }
+
+    PhpWriter decimal(double value)
+    {
+      this.out.append("d:").append(value).append(';');
+      return this;
+    }
+
+    PhpWriter bool(boolean value)
+    {
+      this.out.append("b:").append(value ? '1' : '0').append(';');
+      return this;
+    }
+
+    PhpWriter string(String value)
+    {
+      this.out.append("s:").append(byteLength(value)).append(":\"")
+          .append(value).append("\";");
+      return this;
+    }
+
+    PhpWriter reference(int slot)
+    {
+      this.out.append("R:").append(slot).append(';');
+      return this;
+    }
+
+    PhpWriter nil()
+    {
+      this.out.append("N;");
+      return this;
+    }
+
+    private static int byteLength(String value)
+    {
+      return value.getBytes(UTF8).length;
+    }
+
+    @Override
+    public String toString()
+    {
+      return this.out.toString();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.JSONTranscoder;
+import org.lorecraft.phparser.JSONTransformer;
+import org.lorecraft.phparser.JSONWriter;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.json.simple.JSONAware;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion of parsed trees to JSON, separately and together
+ * with the parse that produces the tree, and the direct transcoding of the
+ * input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark
+{
+  @Param({ "SESSION", "NUMERIC_LIST", "MULTIBYTE_STRINGS" })
+  public Corpus corpus;
+
+  private String text;
+
+  private Object parsed;
+
+  private JSONTransformer associative;
+
+  @Setup
+  public void setup() throws SerializedPhpParserException
+  {
+    this.text = this.corpus.text();
+    this.parsed = new SerializedPhpParser(this.text).parse();
+    this.associative = new JSONTransformer();
+    this.associative.setAssociativeArrays(true);
+  }
+
+  @Benchmark
+  public Object toJSON()
+  {
+    return JSONTransformer.toJSON(this.parsed);
+  }
+
+  @Benchmark
+  public Object toJSONAssociative()
+  {
+    return this.associative.transform(this.parsed);
+  }
+
+  @Benchmark
+  public String toJSONString()
+  {
+    return ((JSONAware) JSONTransformer.toJSON(this.parsed)).toJSONString();
+  }
+
+  @Benchmark
+  public String writeJSON() throws IOException
+  {
+    StringWriter out = new StringWriter(this.text.length());
+    JSONWriter writer = new JSONWriter(out);
+    this.associative.transform(this.parsed, writer);
+    writer.flush();
+    return out.toString();
+  }
+
+  @Benchmark
+  public String parseToJSONString() throws SerializedPhpParserException
+  {
+    Object json = JSONTransformer.toJSON(new SerializedPhpParser(this.text)
+        .parse());
+    return ((JSONAware) json).toJSONString();
+  }
+
+  @Benchmark
+  public String transcode() throws SerializedPhpParserException, IOException
+  {
+    StringWriter out = new StringWriter(this.text.length());
+    JSONTranscoder.transcode(this.text, out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,123 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.PhpShapeCache;
+import org.lorecraft.phparser.PhpSymbolTable;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures <code>SerializedPhpParser.parse()</code> over every corpus, from
+ * String and from byte[] input, with and without UTF-8 length estimation
+ * and with and without an attribute name filter, with a parser that is
+ * reset onto the input instead of created for it, with compact lists and
+ * with a shared symbol table for names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+  /**
+   * accepts about half of the property and key names of the session corpus
+   */
+  private static final String FILTER = "email|cart|sku|qty|score|k[0-4].*";
+
+  @Param
+  public Corpus corpus;
+
+  @Param({ "true", "false" })
+  public boolean assumeUTF8;
+
+  private String text;
+
+  private byte[] bytes;
+
+  private SerializedPhpParser reused;
+
+  private final PhpSymbolTable symbols = new PhpSymbolTable();
+
+  private final PhpShapeCache shapes = new PhpShapeCache();
+
+  @Setup
+  public void setup()
+  {
+    this.reused = SerializedPhpParserConfig.builder().assumeUTF8(
+        this.assumeUTF8).build().newParser();
+    this.text = this.assumeUTF8 ? this.corpus.text() : this.corpus
+        .latin1Text();
+    this.bytes = this.corpus.bytes();
+  }
+
+  @Benchmark
+  public Object parseString() throws SerializedPhpParserException
+  {
+    return new SerializedPhpParser(this.text, this.assumeUTF8).parse();
+  }
+
+  @Benchmark
+  public Object parseBytes() throws SerializedPhpParserException
+  {
+    return new SerializedPhpParser(this.bytes, this.assumeUTF8).parse();
+  }
+
+  @Benchmark
+  public Object parseBytesReused() throws SerializedPhpParserException
+  {
+    this.reused.reset(this.bytes);
+    return this.reused.parse();
+  }
+
+  @Benchmark
+  public Object parseBytesCompactLists() throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(this.bytes,
+        this.assumeUTF8);
+    parser.setCompactLists(true);
+    return parser.parse();
+  }
+
+  @Benchmark
+  public Object parseBytesSymbolTable() throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(this.bytes,
+        this.assumeUTF8);
+    parser.setSymbolTable(this.symbols);
+    return parser.parse();
+  }
+
+  @Benchmark
+  public Object parseBytesShapeCache() throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(this.bytes,
+        this.assumeUTF8);
+    parser.setSymbolTable(this.symbols);
+    parser.setShapeCache(this.shapes);
+    return parser.parse();
+  }
+
+  @Benchmark
+  public Object parseStringFiltered() throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(this.text,
+        this.assumeUTF8);
+    parser.setAcceptedAttributeNameRegex(FILTER);
+    return parser.parse();
+  }
+}
@@ -0,0 +1,55 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading one small variable of a session that also holds the
+ * session corpus against decoding all variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark
+{
+  private byte[] bytes;
+
+  @Setup
+  public void setup() throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write("user_id|i:42;users|".getBytes("UTF-8"));
+    out.write(Corpus.SESSION.bytes());
+    out.write("token|s:8:\"a1b2c3d4\";".getBytes("UTF-8"));
+    this.bytes = out.toByteArray();
+  }
+
+  @Benchmark
+  public Object getOne() throws SerializedPhpParserException
+  {
+    return SerializedPhpSession.decode(this.bytes).get("token");
+  }
+
+  @Benchmark
+  public Object getAll() throws SerializedPhpParserException
+  {
+    return SerializedPhpSession.decode(this.bytes).toMap();
+  }
+}
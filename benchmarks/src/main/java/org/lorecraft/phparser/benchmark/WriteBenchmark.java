@@ -0,0 +1,63 @@
+package org.lorecraft.phparser.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serializing parsed trees back to bytes with a reused
+ * <code>SerializedPhpWriter</code>, into a new byte[] and into a reused
+ * direct <code>ByteBuffer</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark
+{
+  @Param
+  public Corpus corpus;
+
+  private Object parsed;
+
+  private final SerializedPhpWriter writer = new SerializedPhpWriter();
+
+  private ByteBuffer target;
+
+  @Setup
+  public void setup() throws SerializedPhpParserException
+  {
+    this.parsed = new SerializedPhpParser(this.corpus.bytes()).parse();
+    this.target = ByteBuffer.allocateDirect(this.corpus.bytes().length * 2);
+  }
+
+  @Benchmark
+  public byte[] toBytes()
+  {
+    return this.writer.toBytes(this.parsed);
+  }
+
+  @Benchmark
+  public ByteBuffer writeByteBuffer()
+  {
+    this.target.clear();
+    this.writer.write(this.parsed, this.target);
+    return this.target;
+  }
+}
@@ -0,0 +1,42 @@
+package org.lorecraft.phparser;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which array keys and attribute names are kept: a name is
+ * accepted if it is in the set of accepted names or matches the regular
+ * expression. Integer keys are always accepted.
+ */
+final class AttributeFilter
+{
+  private final Set<String> names;
+
+  private final Pattern regex;
+
+  AttributeFilter(Set<String> names, Pattern regex)
+  {
+    this.names = names;
+    this.regex = regex;
+  }
+
+  AttributeFilter withNames(Set<String> names)
+  {
+    return new AttributeFilter(names, this.regex);
+  }
+
+  AttributeFilter withRegex(Pattern regex)
+  {
+    return new AttributeFilter(this.names, regex);
+  }
+
+  boolean accepts(Object key)
+  {
+    if (!(key instanceof String))
+    {
+      return true;
+    }
+    return (this.names != null && this.names.contains(key))
+        || (this.regex != null && this.regex.matcher((String) key).matches());
+  }
+}
@@ -0,0 +1,95 @@
+package org.lorecraft.phparser;
+
+import java.nio.charset.Charset;
+
+/**
+ * Input backed by a slice of a byte array. String lengths are byte counts,
+ * so a string body is located with a single bounds check and decoded once.
+ */
+final class ByteArrayPhpInput extends PhpInput
+{
+  private final byte[] data;
+
+  private final int offset;
+
+  private final int length;
+
+  private final Charset charset;
+
+  ByteArrayPhpInput(byte[] data, int offset, int length, boolean assumeUTF8)
+  {
+    if (offset < 0 || length < 0 || offset + length > data.length)
+    {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length "
+          + length + ", array length " + data.length);
+    }
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+    this.charset = assumeUTF8 ? UTF8 : LATIN1;
+  }
+
+  @Override
+  long length()
+  {
+    return this.length;
+  }
+
+  @Override
+  int at(long position)
+  {
+    return position < this.length ? this.data[this.offset + (int) position] & 0xFF
+        : -1;
+  }
+
+  @Override
+  long indexOf(int ch, long from)
+  {
+    byte b = (byte) ch;
+    for (int i = this.offset + (int) from, end = this.offset + this.length; i < end; i++)
+    {
+      if (this.data[i] == b)
+      {
+        return i - this.offset;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  String substring(long start, long end)
+  {
+    return new String(this.data, this.offset + (int) start,
+        (int) (end - start), this.charset);
+  }
+
+  @Override
+  boolean regionEquals(long start, long end, String text)
+      throws SerializedPhpParserException
+  {
+    return encodedEquals(start, end, text, this.charset == UTF8);
+  }
+
+  @Override
+  int regionHash(long start, long end)
+  {
+    byte[] data = this.data;
+    int hash = 0;
+    for (int i = this.offset + (int) start, last = this.offset + (int) end; i < last; i++)
+    {
+      hash = 31 * hash + (data[i] & 0xFF);
+    }
+    return hash;
+  }
+
+  @Override
+  long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException
+  {
+    if (start + byteLength > this.length)
+    {
+      throw unexpectedEndOfString(byteLength, start, this.length);
+    }
+    return start + byteLength;
+  }
+}
@@ -0,0 +1,85 @@
+package org.lorecraft.phparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Input backed by the remaining bytes of a <code>ByteBuffer</code> that has
+ * no accessible array, e.g. a direct buffer. Only absolute reads are used,
+ * so the position of the buffer passed in is never changed.
+ */
+final class ByteBufferPhpInput extends PhpInput
+{
+  private final ByteBuffer buffer;
+
+  private final int offset;
+
+  private final int length;
+
+  private final Charset charset;
+
+  ByteBufferPhpInput(ByteBuffer buffer, boolean assumeUTF8)
+  {
+    this.buffer = buffer.duplicate();
+    this.offset = buffer.position();
+    this.length = buffer.remaining();
+    this.charset = assumeUTF8 ? UTF8 : LATIN1;
+  }
+
+  @Override
+  long length()
+  {
+    return this.length;
+  }
+
+  @Override
+  int at(long position)
+  {
+    return position < this.length ? this.buffer.get(this.offset
+        + (int) position) & 0xFF : -1;
+  }
+
+  @Override
+  long indexOf(int ch, long from)
+  {
+    byte b = (byte) ch;
+    for (int i = this.offset + (int) from, end = this.offset + this.length; i < end; i++)
+    {
+      if (this.buffer.get(i) == b)
+      {
+        return i - this.offset;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  String substring(long start, long end)
+  {
+    byte[] bytes = new byte[(int) (end - start)];
+    // the input may be shared by the workers of a batch parser, so read
+    // through a private view
+    ByteBuffer view = this.buffer.duplicate();
+    view.position(this.offset + (int) start);
+    view.get(bytes);
+    return new String(bytes, this.charset);
+  }
+
+  @Override
+  boolean regionEquals(long start, long end, String text)
+      throws SerializedPhpParserException
+  {
+    return encodedEquals(start, end, text, this.charset == UTF8);
+  }
+
+  @Override
+  long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException
+  {
+    if (start + byteLength > this.length)
+    {
+      throw unexpectedEndOfString(byteLength, start, this.length);
+    }
+    return start + byteLength;
+  }
+}
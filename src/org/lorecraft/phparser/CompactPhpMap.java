@@ -0,0 +1,537 @@
+package org.lorecraft.phparser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Insertion-ordered map without an entry object per key. Keys and values
+ * are kept in two arrays in insertion order; maps of more than
+ * {@link #LINEAR_LIMIT} entries add an open addressing table of
+ * <code>int</code> indexes into them, small maps are searched linearly.
+ * Created with the entry count from the input, a parsed map never grows.
+ * <p>
+ * Like <code>LinkedHashMap</code>, putting an existing key keeps its
+ * position. Removing an entry moves the entries behind it and is linear
+ * in the size of the map, which is rare for parsed data. A frozen map
+ * rejects all changes.
+ * <p>
+ * The attribute maps of objects with a cached {@link PhpShapeCache} shape
+ * share the key array and the hash index of the shape and only own their
+ * values, until a key is added or removed.
+ * <p>
+ * While a map is filled it counts how many of its first keys are the
+ * indexes <code>0, 1, 2...</code>, so {@link #isList(boolean)} knows
+ * whether it is a list without reading its keys again.
+ */
+final class CompactPhpMap extends AbstractMap<Object, Object>
+{
+  /**
+   * maps up to this size have no hash table
+   */
+  static final int LINEAR_LIMIT = 8;
+
+  private Object[] keys;
+
+  private Object[] values;
+
+  private int size;
+
+  /**
+   * index of the entry plus one, 0 for a free slot; null for small maps
+   */
+  private int[] table;
+
+  private int modCount;
+
+  private boolean frozen;
+
+  /**
+   * true while the keys and the table belong to a shape
+   */
+  private boolean shared;
+
+  /**
+   * the number of leading keys that are their index as a Long, and as a
+   * Long or a decimal string
+   */
+  private int listKeys;
+
+  private int numericKeys;
+
+  private Set<Map.Entry<Object, Object>> entrySet;
+
+  CompactPhpMap(int capacity)
+  {
+    this.keys = new Object[capacity];
+    this.values = new Object[capacity];
+    if (capacity > LINEAR_LIMIT)
+    {
+      this.table = new int[tableSize(capacity)];
+    }
+  }
+
+  /**
+   * Creates an empty map with the keys and the table of a shape, filled
+   * with {@link #append(Object)}.
+   */
+  CompactPhpMap(Object[] keys, int[] table)
+  {
+    this.keys = keys;
+    this.values = new Object[keys.length];
+    this.table = table;
+    this.shared = true;
+  }
+
+  /**
+   * @return the hash index of the given keys, or null if a map of them is
+   *         searched linearly
+   */
+  static int[] newTable(Object[] keys)
+  {
+    if (keys.length <= LINEAR_LIMIT)
+    {
+      return null;
+    }
+    int[] table = new int[tableSize(keys.length)];
+    for (int i = 0; i < keys.length; i++)
+    {
+      index(table, keys, i);
+    }
+    return table;
+  }
+
+  /**
+   * @return the smallest power of two that keeps the load at most 3/4
+   */
+  private static int tableSize(int capacity)
+  {
+    int size = 16;
+    while (size * 3L < capacity * 4L)
+    {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static int hash(Object key)
+  {
+    int h = key == null ? 0 : key.hashCode();
+    return h ^ h >>> 16;
+  }
+
+  private static boolean eq(Object a, Object b)
+  {
+    return a == b || a != null && a.equals(b);
+  }
+
+  private int indexOf(Object key)
+  {
+    Object[] keys = this.keys;
+    int[] table = this.table;
+    if (table == null)
+    {
+      for (int i = 0; i < this.size; i++)
+      {
+        if (eq(keys[i], key))
+        {
+          return i;
+        }
+      }
+      return -1;
+    }
+    int mask = table.length - 1;
+    for (int slot = hash(key) & mask;; slot = slot + 1 & mask)
+    {
+      int entry = table[slot];
+      if (entry == 0)
+      {
+        return -1;
+      }
+      if (eq(keys[entry - 1], key))
+      {
+        return entry - 1;
+      }
+    }
+  }
+
+  private void index(int entry)
+  {
+    index(this.table, this.keys, entry);
+  }
+
+  private static void index(int[] table, Object[] keys, int entry)
+  {
+    int mask = table.length - 1;
+    int slot = hash(keys[entry]) & mask;
+    while (table[slot] != 0)
+    {
+      slot = slot + 1 & mask;
+    }
+    table[slot] = entry + 1;
+  }
+
+  private void rebuildTable(int capacity)
+  {
+    if (capacity <= LINEAR_LIMIT)
+    {
+      this.table = null;
+      return;
+    }
+    int tableSize = tableSize(capacity);
+    if (this.table == null || this.table.length != tableSize)
+    {
+      this.table = new int[tableSize];
+    }
+    else
+    {
+      Arrays.fill(this.table, 0);
+    }
+    for (int i = 0; i < this.size; i++)
+    {
+      index(i);
+    }
+  }
+
+  /**
+   * Sets the value of the next key of the shared layout.
+   */
+  void append(Object value)
+  {
+    this.values[this.size] = value;
+    countIndexKey();
+    this.size++;
+    this.modCount++;
+  }
+
+  /**
+   * Extends the counts of leading index keys by the key that is added at
+   * the end.
+   */
+  private void countIndexKey()
+  {
+    int index = this.size;
+    Object key = this.keys[index];
+    if (this.listKeys == index && isIndex(key, index, false))
+    {
+      this.listKeys++;
+    }
+    if (this.numericKeys == index && isIndex(key, index, true))
+    {
+      this.numericKeys++;
+    }
+  }
+
+  /**
+   * @param numericStrings
+   *          true to accept keys such as <code>"0"</code> as well
+   * @return true if the keys are exactly <code>0..n-1</code> in order
+   */
+  boolean isList(boolean numericStrings)
+  {
+    return (numericStrings ? this.numericKeys : this.listKeys) == this.size;
+  }
+
+  /**
+   * @return true if a key is the given index, as a Long or, with
+   *         <code>numericStrings</code>, as its decimal string without
+   *         leading zeros
+   */
+  static boolean isIndex(Object key, int index, boolean numericStrings)
+  {
+    if (key instanceof Long)
+    {
+      return ((Long) key).longValue() == index;
+    }
+    if (!numericStrings || !(key instanceof String))
+    {
+      return false;
+    }
+    String s = (String) key;
+    if (s.length() == 0 || s.length() > 10 || s.length() > 1
+        && s.charAt(0) == '0')
+    {
+      return false;
+    }
+    long value = 0;
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9')
+      {
+        return false;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value == index;
+  }
+
+  /**
+   * Takes a copy of shared keys before the keys change, keeping only the
+   * keys that have a value.
+   */
+  void unshare()
+  {
+    if (this.shared)
+    {
+      Object[] keys = new Object[this.keys.length];
+      System.arraycopy(this.keys, 0, keys, 0, this.size);
+      this.keys = keys;
+      this.table = null;
+      rebuildTable(keys.length);
+      this.shared = false;
+    }
+  }
+
+  /**
+   * Makes the map read-only.
+   */
+  void freeze()
+  {
+    this.frozen = true;
+  }
+
+  private void checkModifiable()
+  {
+    if (this.frozen)
+    {
+      throw new UnsupportedOperationException("The map is read-only");
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    return this.size;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    return indexOf(key) != -1;
+  }
+
+  @Override
+  public Object get(Object key)
+  {
+    int index = indexOf(key);
+    return index == -1 ? null : this.values[index];
+  }
+
+  @Override
+  public Object put(Object key, Object value)
+  {
+    checkModifiable();
+    int index = indexOf(key);
+    if (index != -1)
+    {
+      Object previous = this.values[index];
+      this.values[index] = value;
+      return previous;
+    }
+    unshare();
+    if (this.size == this.keys.length)
+    {
+      int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+          Math.max(4L, this.size * 3L / 2 + 1));
+      this.keys = Arrays.copyOf(this.keys, capacity);
+      this.values = Arrays.copyOf(this.values, capacity);
+      rebuildTable(capacity);
+    }
+    this.keys[this.size] = key;
+    this.values[this.size] = value;
+    if (this.table != null)
+    {
+      index(this.size);
+    }
+    countIndexKey();
+    this.size++;
+    this.modCount++;
+    return null;
+  }
+
+  @Override
+  public Object remove(Object key)
+  {
+    checkModifiable();
+    int index = indexOf(key);
+    return index == -1 ? null : removeAt(index);
+  }
+
+  private Object removeAt(int index)
+  {
+    checkModifiable();
+    unshare();
+    Object previous = this.values[index];
+    int moved = this.size - index - 1;
+    System.arraycopy(this.keys, index + 1, this.keys, index, moved);
+    System.arraycopy(this.values, index + 1, this.values, index, moved);
+    this.size--;
+    this.keys[this.size] = null;
+    this.values[this.size] = null;
+    // the keys behind the removed one are no longer their index
+    this.listKeys = Math.min(this.listKeys, index);
+    this.numericKeys = Math.min(this.numericKeys, index);
+    if (this.table != null)
+    {
+      rebuildTable(this.keys.length);
+    }
+    this.modCount++;
+    return previous;
+  }
+
+  @Override
+  public void clear()
+  {
+    checkModifiable();
+    unshare();
+    Arrays.fill(this.keys, 0, this.size, null);
+    Arrays.fill(this.values, 0, this.size, null);
+    if (this.table != null)
+    {
+      Arrays.fill(this.table, 0);
+    }
+    this.size = 0;
+    this.listKeys = 0;
+    this.numericKeys = 0;
+    this.modCount++;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet()
+  {
+    if (this.entrySet == null)
+    {
+      this.entrySet = new AbstractSet<Map.Entry<Object, Object>>()
+      {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator()
+        {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+          return CompactPhpMap.this.size;
+        }
+
+        @Override
+        public void clear()
+        {
+          CompactPhpMap.this.clear();
+        }
+      };
+    }
+    return this.entrySet;
+  }
+
+  private final class EntryIterator implements
+      Iterator<Map.Entry<Object, Object>>
+  {
+    private int next;
+
+    private int last = -1;
+
+    private int expectedModCount = CompactPhpMap.this.modCount;
+
+    public boolean hasNext()
+    {
+      return this.next < CompactPhpMap.this.size;
+    }
+
+    public Map.Entry<Object, Object> next()
+    {
+      checkModCount();
+      if (!hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+      this.last = this.next++;
+      return new IndexEntry(this.last);
+    }
+
+    public void remove()
+    {
+      if (this.last == -1)
+      {
+        throw new IllegalStateException();
+      }
+      checkModCount();
+      removeAt(this.last);
+      this.next = this.last;
+      this.last = -1;
+      this.expectedModCount = CompactPhpMap.this.modCount;
+    }
+
+    private void checkModCount()
+    {
+      if (this.expectedModCount != CompactPhpMap.this.modCount)
+      {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  /**
+   * Entry at a position; valid until the map is structurally changed.
+   */
+  private final class IndexEntry implements Map.Entry<Object, Object>
+  {
+    private final int index;
+
+    IndexEntry(int index)
+    {
+      this.index = index;
+    }
+
+    public Object getKey()
+    {
+      return CompactPhpMap.this.keys[this.index];
+    }
+
+    public Object getValue()
+    {
+      return CompactPhpMap.this.values[this.index];
+    }
+
+    public Object setValue(Object value)
+    {
+      checkModifiable();
+      Object previous = CompactPhpMap.this.values[this.index];
+      CompactPhpMap.this.values[this.index] = value;
+      return previous;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Map.Entry))
+      {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      return eq(getKey(), other.getKey()) && eq(getValue(), other.getValue());
+    }
+
+    @Override
+    public int hashCode()
+    {
+      Object key = getKey();
+      Object value = getValue();
+      return (key == null ? 0 : key.hashCode())
+          ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
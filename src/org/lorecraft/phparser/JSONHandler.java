@@ -0,0 +1,45 @@
+package org.lorecraft.phparser;
+
+import java.io.IOException;
+
+/**
+ * Receives JSON as a sequence of events, so any JSON generator can be
+ * driven by {@link JSONTranscoder} straight from the serialized input or by
+ * {@link JSONTransformer#transform(Object, JSONHandler)} from a parsed
+ * tree. {@link JSONWriter} writes the events as JSON text.
+ * <p>
+ * Every value inside an object is preceded by its {@link #key}. The
+ * <code>CharSequence</code> of a key or string value can be a view of the
+ * input that is only valid during the call; call <code>toString()</code>
+ * to keep it.
+ */
+public interface JSONHandler
+{
+  /**
+   * @param size
+   *          the number of elements that follow
+   */
+  void startArray(int size) throws IOException;
+
+  void endArray() throws IOException;
+
+  /**
+   * @param size
+   *          the number of keys that follow
+   */
+  void startObject(int size) throws IOException;
+
+  void endObject() throws IOException;
+
+  void key(CharSequence key) throws IOException;
+
+  void value(CharSequence value) throws IOException;
+
+  void value(long value) throws IOException;
+
+  void value(double value) throws IOException;
+
+  void value(boolean value) throws IOException;
+
+  void nullValue() throws IOException;
+}
@@ -0,0 +1,552 @@
+package org.lorecraft.phparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Converts serialized PHP data to JSON in a single pass, without building
+ * the parsed tree or the JSON objects of {@link JSONTransformer}. The input
+ * drives a {@link JSONHandler}, by default a {@link JSONWriter}, whose
+ * output is the same as <code>toJSONString()</code> of the transformed
+ * tree: arrays become JSON arrays of their values, objects become JSON
+ * objects of their attributes in input order, and <code>NULL</code>
+ * becomes <code>null</code>.
+ * <p>
+ * ASCII strings and keys are passed to the handler as views of the input,
+ * integer keys as a reused buffer; only strings with non-ASCII characters
+ * and the strings of a stream are decoded first. A reference is written as
+ * a copy of the value it points to, which is read again from its position
+ * in the input, so references cannot be transcoded from a stream. A
+ * reference to an enclosing array or object has no JSON representation and
+ * is rejected with code
+ * {@link SerializedPhpParserException#CIRCULAR_REFERENCE}. Arrays and
+ * objects nested deeper than {@link SerializedPhpParser#DEFAULT_MAX_DEPTH}
+ * levels, counting the copies of references, are rejected with code
+ * {@link SerializedPhpParserException#TOO_DEEP}.
+ */
+public final class JSONTranscoder
+{
+  private final PhpInput input;
+
+  private final JSONHandler handler;
+
+  /**
+   * input position of every numbered value, by reference index - 1
+   */
+  private long[] positions = new long[64];
+
+  private int numbered;
+
+  /**
+   * the arrays, objects and reference copies that are being written,
+   * innermost last; frames are reused
+   */
+  private Frame[] frames = new Frame[16];
+
+  private int top;
+
+  /**
+   * the number of arrays and objects among the frames
+   */
+  private int depth;
+
+  private final InputText text = new InputText();
+
+  private final StringBuilder number = new StringBuilder(20);
+
+  private JSONTranscoder(PhpInput input, JSONHandler handler)
+  {
+    this.input = input;
+    this.handler = handler;
+  }
+
+  public static String toJSONString(String input)
+      throws SerializedPhpParserException
+  {
+    StringWriter out = new StringWriter(input.length());
+    try
+    {
+      transcode(input, out);
+    }
+    catch (IOException ex)
+    {
+      // a StringWriter does not throw
+      throw new IllegalStateException(ex);
+    }
+    return out.toString();
+  }
+
+  public static void transcode(String input, Writer out)
+      throws SerializedPhpParserException, IOException
+  {
+    transcode(input, true, out);
+  }
+
+  public static void transcode(String input, boolean assumeUTF8, Writer out)
+      throws SerializedPhpParserException, IOException
+  {
+    JSONWriter writer = new JSONWriter(out);
+    transcode(input, assumeUTF8, writer);
+    writer.flush();
+  }
+
+  public static void transcode(String input, boolean assumeUTF8,
+      JSONHandler handler) throws SerializedPhpParserException, IOException
+  {
+    new JSONTranscoder(new StringPhpInput(input, assumeUTF8), handler)
+        .transcode();
+  }
+
+  public static void transcode(byte[] input, boolean assumeUTF8, Writer out)
+      throws SerializedPhpParserException, IOException
+  {
+    JSONWriter writer = new JSONWriter(out);
+    transcode(input, assumeUTF8, writer);
+    writer.flush();
+  }
+
+  public static void transcode(byte[] input, boolean assumeUTF8,
+      JSONHandler handler) throws SerializedPhpParserException, IOException
+  {
+    new JSONTranscoder(new ByteArrayPhpInput(input, 0, input.length,
+        assumeUTF8), handler).transcode();
+  }
+
+  /**
+   * Writes the JSON text as UTF-8. The stream is flushed, not closed.
+   */
+  public static void transcode(byte[] input, boolean assumeUTF8,
+      OutputStream out) throws SerializedPhpParserException, IOException
+  {
+    Writer writer = new OutputStreamWriter(out, PhpInput.UTF8);
+    transcode(input, assumeUTF8, writer);
+    writer.flush();
+  }
+
+  /**
+   * Transcodes a stream through a fixed-size buffer and writes the JSON
+   * text as UTF-8. The output stream is flushed, not closed. Input with
+   * references is rejected with code
+   * {@link SerializedPhpParserException#OUT_OF_RANG_REFERENCE}.
+   */
+  public static void transcode(InputStream input, boolean assumeUTF8,
+      OutputStream out) throws SerializedPhpParserException, IOException
+  {
+    Writer writer = new OutputStreamWriter(out, PhpInput.UTF8);
+    JSONWriter json = new JSONWriter(writer);
+    transcode(input, assumeUTF8, json);
+    json.flush();
+    writer.flush();
+  }
+
+  /**
+   * Transcodes a stream through a fixed-size buffer, see
+   * {@link #transcode(InputStream, boolean, OutputStream)}.
+   */
+  public static void transcode(InputStream input, boolean assumeUTF8,
+      JSONHandler handler) throws SerializedPhpParserException, IOException
+  {
+    new JSONTranscoder(new StreamPhpInput(input, assumeUTF8,
+        StreamPhpInput.DEFAULT_BUFFER_SIZE), handler).transcode();
+  }
+
+  /**
+   * Writes the value at the start of the input. Arrays and objects are not
+   * written by recursion: opening one, or following a reference to a copy,
+   * pushes a frame on an explicit stack, and the loop writes the values of
+   * the innermost frame until it ends, so the nesting of the input is
+   * bounded by the depth limit instead of the thread stack.
+   */
+  private void transcode() throws SerializedPhpParserException, IOException
+  {
+    PhpScanner scanner = new PhpScanner(this.input);
+    // the reference index the value at the scanner position has if it is
+    // numbered
+    int index = 1;
+    // false while a value is read again for a reference and its position
+    // is already known
+    boolean first = true;
+    while (true)
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      this.input.release(start);
+      int type = this.input.at(start);
+      if (first && PhpScanner.occupiesSlot(type))
+      {
+        if (this.numbered == this.positions.length)
+        {
+          this.positions = Arrays.copyOf(this.positions, this.numbered * 2);
+        }
+        this.positions[this.numbered++] = start;
+      }
+      scanner.index += 2;
+      switch (type)
+      {
+      case 'i':
+        this.handler.value(scanner.readLong("integer"));
+        break;
+      case 'd':
+        this.handler.value(scanner.readDouble());
+        break;
+      case 'b':
+        this.handler.value(scanner.readBoolean().booleanValue());
+        break;
+      case 'N':
+        this.handler.nullValue();
+        break;
+      case 's':
+        this.handler.value(readText(scanner));
+        break;
+      case 'a':
+        openArray(scanner, index);
+        break;
+      case 'O':
+        openObject(scanner, index);
+        break;
+      case 'R':
+      case 'r':
+        int target = readReference(scanner, start);
+        Frame frame = push(REFERENCE);
+        frame.position = scanner.index;
+        frame.next = type == 'r' ? index + 1 : index;
+        frame.first = first;
+        scanner.index = this.positions[target - 1];
+        index = target;
+        first = false;
+        continue;
+      default:
+        throw new SerializedPhpParserException("Encountered unknown type ["
+            + (char) type + "]", start,
+            SerializedPhpParserException.UNKNOWN_TYPE);
+      }
+      index++;
+      // end the frames that are complete until one has another value
+      while (true)
+      {
+        if (this.top == 0)
+        {
+          return;
+        }
+        Frame frame = this.frames[this.top - 1];
+        if (frame.kind == REFERENCE)
+        {
+          // the copy is written, continue after the reference
+          scanner.index = frame.position;
+          index = frame.next;
+          first = frame.first;
+          this.top--;
+          continue;
+        }
+        if (frame.remaining > 0)
+        {
+          frame.remaining--;
+          if (frame.kind == ARRAY)
+          {
+            skipKey(scanner);
+          }
+          else
+          {
+            writeKey(scanner);
+          }
+          break;
+        }
+        readEnd(scanner);
+        if (frame.kind == ARRAY)
+        {
+          this.handler.endArray();
+        }
+        else
+        {
+          this.handler.endObject();
+        }
+        this.top--;
+        this.depth--;
+      }
+    }
+  }
+
+  private void openArray(PhpScanner scanner, int index)
+      throws SerializedPhpParserException, IOException
+  {
+    int length = scanner.readLength();
+    scanner.checkCount(length);
+    open(scanner, ARRAY, index, length);
+    this.handler.startArray(length);
+  }
+
+  private void openObject(PhpScanner scanner, int index)
+      throws SerializedPhpParserException, IOException
+  {
+    int nameLength = scanner.readLength();
+    scanner.checkCount(nameLength);
+    scanner.skipClassName(nameLength);
+    int length = scanner.readLength();
+    scanner.checkCount(length);
+    open(scanner, OBJECT, index, length);
+    this.handler.startObject(length);
+  }
+
+  /**
+   * Passes an attribute name to the handler; integer names as their
+   * decimal text.
+   */
+  private void writeKey(PhpScanner scanner)
+      throws SerializedPhpParserException, IOException
+  {
+    long start = scanner.index;
+    scanner.checkUnexpectedLength(start + 2);
+    int type = this.input.at(start);
+    scanner.index += 2;
+    if (type == 's')
+    {
+      this.handler.key(readText(scanner));
+    }
+    else if (type == 'i')
+    {
+      this.number.setLength(0);
+      this.handler.key(this.number.append(scanner.readLong("integer")));
+    }
+    else
+    {
+      throw new SerializedPhpParserException(
+          "Unsupported attribute name type [" + (char) type + "]", start,
+          SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+  }
+
+  /**
+   * Steps over an array key, an integer or a string like the attribute
+   * names of {@link #writeKey(PhpScanner)}.
+   */
+  private void skipKey(PhpScanner scanner) throws SerializedPhpParserException
+  {
+    long start = scanner.index;
+    scanner.checkUnexpectedLength(start + 2);
+    int type = this.input.at(start);
+    if (type != 'i' && type != 's')
+    {
+      throw new SerializedPhpParserException("Encountered unknown key type ["
+          + (char) type + "]", start, SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+    scanner.skipValue(true);
+  }
+
+  /**
+   * Reads the index of a reference and checks that it points to an earlier
+   * value that does not enclose it.
+   */
+  private int readReference(PhpScanner scanner, long start)
+      throws SerializedPhpParserException
+  {
+    long index = scanner.readLong("Reference");
+    if (this.input instanceof StreamPhpInput)
+    {
+      throw new SerializedPhpParserException(
+          "References cannot be transcoded from a stream!", start,
+          SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+    }
+    if (index < 1 || index > this.numbered)
+    {
+      throw new SerializedPhpParserException(
+          "Out of range reference index: " + index, start,
+          SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+    }
+    for (int i = 0; i < this.top; i++)
+    {
+      Frame frame = this.frames[i];
+      if (frame.kind != REFERENCE && frame.index == index)
+      {
+        throw new SerializedPhpParserException(
+            "Circular reference to index: " + index, start,
+            SerializedPhpParserException.CIRCULAR_REFERENCE);
+      }
+    }
+    return (int) index;
+  }
+
+  /**
+   * Pushes the frame of an array or object with the given reference index.
+   */
+  private void open(PhpScanner scanner, int kind, int index, int length)
+      throws SerializedPhpParserException
+  {
+    if (this.depth >= SerializedPhpParser.DEFAULT_MAX_DEPTH)
+    {
+      throw new SerializedPhpParserException("Arrays and objects are nested"
+          + " deeper than " + SerializedPhpParser.DEFAULT_MAX_DEPTH
+          + " levels!", scanner.index, SerializedPhpParserException.TOO_DEEP);
+    }
+    Frame frame = push(kind);
+    frame.index = index;
+    frame.remaining = length;
+    this.depth++;
+  }
+
+  private Frame push(int kind)
+  {
+    if (this.top == this.frames.length)
+    {
+      this.frames = Arrays.copyOf(this.frames, this.top * 2);
+    }
+    Frame frame = this.frames[this.top];
+    if (frame == null)
+    {
+      frame = new Frame();
+      this.frames[this.top] = frame;
+    }
+    this.top++;
+    frame.kind = kind;
+    return frame;
+  }
+
+  private void readEnd(PhpScanner scanner) throws SerializedPhpParserException
+  {
+    if (this.input.at(scanner.index) != '}')
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Array, missing }!", scanner.index,
+          SerializedPhpParserException.MISSING_CLOSER_STRING);
+    }
+    scanner.index++;
+  }
+
+  /**
+   * Reads a string body and steps over its closing <code>";</code>.
+   *
+   * @return a view of the input for ASCII text, the decoded text otherwise
+   */
+  private CharSequence readText(PhpScanner scanner)
+      throws SerializedPhpParserException
+  {
+    int length = scanner.readLength();
+    if (this.input instanceof StreamPhpInput)
+    {
+      // the buffer of a stream may not hold the whole string, so it is
+      // decoded while it is read
+      return scanner.readString(length);
+    }
+    scanner.checkCount(length);
+    long start = scanner.index;
+    long end = this.input.stringEnd(start, length);
+    scanner.checkStringEnd(end);
+    scanner.index = end + 2;
+    for (long position = start; position < end; position++)
+    {
+      if (this.input.at(position) >= 0x80)
+      {
+        return this.input.substring(start, end);
+      }
+    }
+    this.text.start = start;
+    this.text.length = (int) (end - start);
+    return this.text;
+  }
+
+  /**
+   * an array, whose values are written without their keys
+   */
+  private static final int ARRAY = 0;
+
+  /**
+   * an object, whose attributes are written with their names
+   */
+  private static final int OBJECT = 1;
+
+  /**
+   * the copy of the value a reference points to, which is read at the
+   * position of that value
+   */
+  private static final int REFERENCE = 2;
+
+  /**
+   * An array, object or reference copy on the stack of the transcoder.
+   */
+  private static final class Frame
+  {
+    int kind;
+
+    /**
+     * the reference index of an array or object
+     */
+    int index;
+
+    /**
+     * the entries of an array or object that are still to be written
+     */
+    int remaining;
+
+    /**
+     * where the input continues after a reference
+     */
+    long position;
+
+    /**
+     * the reference index of the value after a reference
+     */
+    int next;
+
+    /**
+     * whether the positions of the values after a reference are recorded
+     */
+    boolean first;
+  }
+
+  /**
+   * ASCII text in the input, one char per byte or char. Reused for every
+   * string.
+   */
+  private final class InputText implements CharSequence
+  {
+    long start;
+
+    int length;
+
+    public int length()
+    {
+      return this.length;
+    }
+
+    public char charAt(int index)
+    {
+      if (index < 0 || index >= this.length)
+      {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Length: "
+            + this.length);
+      }
+      try
+      {
+        return (char) JSONTranscoder.this.input.at(this.start + index);
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        // the text was read before it is passed on
+        throw new IllegalStateException(ex);
+      }
+    }
+
+    public CharSequence subSequence(int start, int end)
+    {
+      return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString()
+    {
+      try
+      {
+        return JSONTranscoder.this.input.substring(this.start, this.start
+            + this.length);
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        throw new IllegalStateException(ex);
+      }
+    }
+  }
+}
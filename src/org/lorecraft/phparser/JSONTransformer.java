@@ -1,55 +1,435 @@
 package org.lorecraft.phparser;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+/**
+ * Converts parsed values to json-simple objects. The static
+ * {@link #toJSON(Object)} turns every array into a JSON array of its
+ * values. An instance with {@link #setAssociativeArrays(boolean)} keeps
+ * the keys: only lists keyed <code>0..n-1</code> become JSON arrays, all
+ * other arrays become JSON objects. Lists parsed with
+ * {@link SerializedPhpParser#setCompactLists(boolean)} are recognized as
+ * {@link PhpList} during the parse; the keys of other arrays are checked
+ * while their values are converted.
+ * <p>
+ * {@link #transform(Object, JSONHandler)} passes the same JSON to a
+ * {@link JSONHandler} instead, such as {@link JSONWriter} or an adapter to
+ * another JSON generator, and does not need json-simple. A handler is told
+ * whether an array is a list before its first value; parsed maps record
+ * that while they are filled, only the keys of maps from another
+ * {@link PhpMapFactory} are read once before writing them.
+ */
 public class JSONTransformer
 {
+  private static final JSONTransformer VALUES = new JSONTransformer();
+
+  /**
+   * stands for an array or object whose frame was pushed
+   */
+  private static final Object OPENED = new Object();
+
+  private boolean associativeArrays;
+
+  private boolean numericStringKeys;
+
+  private String classNameKey;
 
-  @SuppressWarnings("rawtypes")
   public static Object toJSON(Object o)
+  {
+    return VALUES.transform(o);
+  }
+
+  /**
+   * @param associativeArrays
+   *          true to convert arrays that are not lists to JSON objects
+   *          instead of dropping their keys
+   */
+  public void setAssociativeArrays(boolean associativeArrays)
+  {
+    this.associativeArrays = associativeArrays;
+  }
+
+  /**
+   * @param numericStringKeys
+   *          true to accept string keys such as <code>"0"</code> as list
+   *          indexes, which other writers than PHP can produce
+   */
+  public void setNumericStringKeys(boolean numericStringKeys)
+  {
+    this.numericStringKeys = numericStringKeys;
+  }
+
+  /**
+   * @param classNameKey
+   *          the key under which the class name of an object is added to
+   *          its JSON object, or null to leave it out
+   */
+  public void setClassNameKey(String classNameKey)
+  {
+    this.classNameKey = classNameKey;
+  }
+
+  /**
+   * Converts a value without recursion: opening an array or object pushes
+   * a frame with its entries on a stack of the call, and the loop converts
+   * the entries of the innermost frame until it ends.
+   */
+  @SuppressWarnings("unchecked")
+  public Object transform(Object o)
+  {
+    Frame[] frames = new Frame[16];
+    int depth = 0;
+    Object value = o;
+    while (true)
+    {
+      frames = reserve(frames, depth);
+      Object json = OPENED;
+      if (openJSON(frames[depth], value))
+      {
+        depth++;
+      }
+      else
+      {
+        json = value == SerializedPhpParser.NULL ? null : value;
+      }
+      // hand the value to its container, and the containers that end to
+      // theirs, until one has another entry
+      while (true)
+      {
+        if (json != OPENED && depth == 0)
+        {
+          return json;
+        }
+        Frame frame = frames[depth - 1];
+        if (json != OPENED)
+        {
+          if (frame.object)
+          {
+            frame.json.put(frame.key, json);
+          }
+          else
+          {
+            frame.array.add(json);
+          }
+        }
+        if (frame.entries.hasNext())
+        {
+          value = nextJSONEntry(frame);
+          break;
+        }
+        json = frame.object ? frame.json : frame.array;
+        frame.clear();
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Creates the JSON array or object of an array or object in a frame.
+   *
+   * @return false if the value is not an array or object
+   */
+  private boolean openJSON(Frame frame, Object value)
+  {
+    if (value instanceof SerializedPhpParser.PhpObject)
+    {
+      SerializedPhpParser.PhpObject o = (SerializedPhpParser.PhpObject) value;
+      frame.object = true;
+      frame.keyed = true;
+      frame.json = new JSONObject();
+      if (this.classNameKey != null)
+      {
+        putJSON(frame.json, this.classNameKey, o.name);
+      }
+      frame.entries = o.attributes.entrySet().iterator();
+      return true;
+    }
+    if (!(value instanceof Map || value instanceof PhpList))
+    {
+      return false;
+    }
+    frame.object = false;
+    frame.array = new JSONArray();
+    if (value instanceof PhpList)
+    {
+      PhpList list = (PhpList) value;
+      frame.array.ensureCapacity(list.size());
+      frame.keyed = false;
+      frame.entries = list.iterator();
+      return true;
+    }
+    Map<?, ?> map = (Map<?, ?>) value;
+    frame.array.ensureCapacity(map.size());
+    // with associative arrays the keys are checked while the values are
+    // converted
+    frame.keyed = this.associativeArrays;
+    frame.entries = frame.keyed ? map.entrySet().iterator() : map.values()
+        .iterator();
+    return true;
+  }
+
+  /**
+   * @return the value of the next entry of a frame, after its key
+   */
+  @SuppressWarnings("unchecked")
+  private Object nextJSONEntry(Frame frame)
+  {
+    if (!frame.keyed)
+    {
+      return frame.entries.next();
+    }
+    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.entries.next();
+    Object key = entry.getKey();
+    if (!frame.object && !isIndex(key, frame.array.size()))
+    {
+      // not a list, move the values so far to an object
+      JSONObject json = new JSONObject();
+      for (int index = 0; index < frame.array.size(); index++)
+      {
+        json.put(String.valueOf(index), frame.array.get(index));
+      }
+      frame.object = true;
+      frame.json = json;
+      frame.array = null;
+    }
+    frame.key = this.associativeArrays ? String.valueOf(key) : key;
+    return entry.getValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void putJSON(JSONObject json, Object key, Object value)
+  {
+    json.put(key, value);
+  }
+
+  /**
+   * Passes a parsed value to a handler as the same JSON that
+   * {@link #transform(Object)} builds, without building json-simple
+   * objects. The elements of integer and float lists are not boxed. Like
+   * {@link #transform(Object)}, arrays and objects are written from a
+   * stack of frames instead of by recursion.
+   */
+  public void transform(Object o, JSONHandler handler) throws IOException
+  {
+    Frame[] frames = new Frame[16];
+    int depth = 0;
+    Object value = o;
+    while (true)
+    {
+      frames = reserve(frames, depth);
+      if (start(frames[depth], value, handler))
+      {
+        depth++;
+      }
+      // end the arrays and objects that are complete until one has another
+      // entry
+      while (true)
+      {
+        if (depth == 0)
+        {
+          return;
+        }
+        Frame frame = frames[depth - 1];
+        if (frame.entries.hasNext())
+        {
+          if (frame.object)
+          {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.entries.next();
+            handler.key(String.valueOf(entry.getKey()));
+            value = entry.getValue();
+          }
+          else
+          {
+            value = frame.entries.next();
+          }
+          break;
+        }
+        if (frame.object)
+        {
+          handler.endObject();
+        }
+        else
+        {
+          handler.endArray();
+        }
+        frame.clear();
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Writes a value, or the start of an array or object and puts its
+   * entries into the frame: the entries of JSON objects, the values of
+   * JSON arrays.
+   *
+   * @return true if the entries of the frame are to be written
+   */
+  private boolean start(Frame frame, Object o, JSONHandler handler)
+      throws IOException
   {
     if (o instanceof Map)
     {
-      return arrayToJSON((Map) o);
+      Map<?, ?> map = (Map<?, ?>) o;
+      frame.object = this.associativeArrays && !isList(map);
+      if (frame.object)
+      {
+        handler.startObject(map.size());
+        frame.entries = map.entrySet().iterator();
+      }
+      else
+      {
+        handler.startArray(map.size());
+        frame.entries = map.values().iterator();
+      }
+      return true;
+    }
+    if (o instanceof PhpList)
+    {
+      PhpList list = (PhpList) o;
+      handler.startArray(list.size());
+      if (!list.isLongList() && !list.isDoubleList())
+      {
+        frame.object = false;
+        frame.entries = list.iterator();
+        return true;
+      }
+      for (int i = 0; i < list.size(); i++)
+      {
+        if (list.isLongList())
+        {
+          handler.value(list.getLong(i));
+        }
+        else
+        {
+          handler.value(list.getDouble(i));
+        }
+      }
+      handler.endArray();
     }
     else if (o instanceof SerializedPhpParser.PhpObject)
     {
-      return mapToJSON(((SerializedPhpParser.PhpObject) o).attributes);
+      SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) o;
+      Map<Object, Object> attributes = object.attributes;
+      if (this.classNameKey == null)
+      {
+        handler.startObject(attributes.size());
+      }
+      else
+      {
+        handler.startObject(attributes.size() + 1);
+        handler.key(this.classNameKey);
+        handler.value(object.name);
+      }
+      frame.object = true;
+      frame.entries = attributes.entrySet().iterator();
+      return true;
+    }
+    else if (o == null || o == SerializedPhpParser.NULL)
+    {
+      handler.nullValue();
+    }
+    else if (o instanceof Long || o instanceof Integer)
+    {
+      handler.value(((Number) o).longValue());
+    }
+    else if (o instanceof Double)
+    {
+      handler.value(((Double) o).doubleValue());
+    }
+    else if (o instanceof Boolean)
+    {
+      handler.value(((Boolean) o).booleanValue());
     }
-    else if (o == SerializedPhpParser.NULL)
+    else
     {
-      return null;
+      handler.value(o.toString());
     }
-    return o;
+    return false;
   }
 
-  @SuppressWarnings({"rawtypes", "unchecked"})
-  private static JSONArray arrayToJSON(Map o)
+  /**
+   * @return the frames, grown if needed, with a frame at
+   *         <code>depth</code>
+   */
+  private static Frame[] reserve(Frame[] frames, int depth)
   {
-    JSONArray a = new JSONArray();
-    for (Object obj : o.values())
+    if (depth == frames.length)
     {
-      a.add(toJSON(obj));
+      frames = Arrays.copyOf(frames, depth * 2);
     }
-    return a;
+    if (frames[depth] == null)
+    {
+      frames[depth] = new Frame();
+    }
+    return frames;
+  }
+
+  private boolean isList(Map<?, ?> map)
+  {
+    if (map instanceof CompactPhpMap)
+    {
+      return ((CompactPhpMap) map).isList(this.numericStringKeys);
+    }
+    // the handler cannot take back a started array, so the keys of a map
+    // that does not know whether it is a list are read before the first
+    // value
+    int index = 0;
+    for (Object key : map.keySet())
+    {
+      if (!isIndex(key, index++))
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
-  @SuppressWarnings({"rawtypes", "unchecked"})
-  private static JSONObject mapToJSON(Map o)
+  private boolean isIndex(Object key, int index)
   {
-    JSONObject obj = new JSONObject();
-    Map map = o;
-    Iterator<Map.Entry> i = map.entrySet().iterator();
-    while (i.hasNext())
+    return CompactPhpMap.isIndex(key, index, this.numericStringKeys);
+  }
+
+  /**
+   * An array or object that is being converted, on the stack of one call.
+   * Frames are reused within the call.
+   */
+  private static final class Frame
+  {
+    /**
+     * the entries that are left, as <code>Map.Entry</code> if the frame is
+     * keyed
+     */
+    Iterator<?> entries;
+
+    boolean keyed;
+
+    /**
+     * true for a JSON object, false for a JSON array
+     */
+    boolean object;
+
+    JSONArray array;
+
+    JSONObject json;
+
+    /**
+     * the key of the value that is being converted into a JSON object
+     */
+    Object key;
+
+    void clear()
     {
-      Entry next = i.next();
-      obj.put(next.getKey(), toJSON(next.getValue()));
+      this.entries = null;
+      this.array = null;
+      this.json = null;
+      this.key = null;
     }
-    return obj;
   }
 }
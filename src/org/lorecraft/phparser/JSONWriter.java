@@ -0,0 +1,238 @@
+package org.lorecraft.phparser;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes {@link JSONHandler} events as compact JSON text through a char
+ * buffer. Strings are escaped like json-simple escapes them, so the output
+ * is the same as <code>toJSONString()</code> of the json-simple tree, but
+ * escapes are looked up in a table and written straight into the buffer
+ * instead of a <code>StringBuffer</code> per string. Floats that JSON
+ * cannot represent, <code>INF</code> and <code>NAN</code>, are written as
+ * <code>null</code>.
+ * <p>
+ * The events are not checked for a valid JSON structure. Call
+ * {@link #flush()} after the last event.
+ */
+public final class JSONWriter implements JSONHandler
+{
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * the escape character of each ASCII char, 'u' for a unicode escape and
+   * 0 for chars that are copied
+   */
+  private static final char[] ESCAPES = new char[128];
+
+  static
+  {
+    for (int c = 0; c < 0x20; c++)
+    {
+      ESCAPES[c] = 'u';
+    }
+    ESCAPES[0x7F] = 'u';
+    ESCAPES['"'] = '"';
+    ESCAPES['\\'] = '\\';
+    ESCAPES['/'] = '/';
+    ESCAPES['\b'] = 'b';
+    ESCAPES['\f'] = 'f';
+    ESCAPES['\n'] = 'n';
+    ESCAPES['\r'] = 'r';
+    ESCAPES['\t'] = 't';
+  }
+
+  private final Writer out;
+
+  private final char[] buffer = new char[4096];
+
+  private int count;
+
+  /**
+   * true if the next key or value is preceded by a comma
+   */
+  private boolean separate;
+
+  public JSONWriter(Writer out)
+  {
+    this.out = out;
+  }
+
+  public void startArray(int size) throws IOException
+  {
+    separate();
+    write('[');
+    this.separate = false;
+  }
+
+  public void endArray() throws IOException
+  {
+    write(']');
+    this.separate = true;
+  }
+
+  public void startObject(int size) throws IOException
+  {
+    separate();
+    write('{');
+    this.separate = false;
+  }
+
+  public void endObject() throws IOException
+  {
+    write('}');
+    this.separate = true;
+  }
+
+  public void key(CharSequence key) throws IOException
+  {
+    separate();
+    writeString(key);
+    write(':');
+    this.separate = false;
+  }
+
+  public void value(CharSequence value) throws IOException
+  {
+    separate();
+    writeString(value);
+    this.separate = true;
+  }
+
+  public void value(long value) throws IOException
+  {
+    separate();
+    if (value == Long.MIN_VALUE)
+    {
+      write(Long.toString(value));
+    }
+    else
+    {
+      writeLong(value);
+    }
+    this.separate = true;
+  }
+
+  public void value(double value) throws IOException
+  {
+    separate();
+    write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double
+        .toString(value));
+    this.separate = true;
+  }
+
+  public void value(boolean value) throws IOException
+  {
+    separate();
+    write(value ? "true" : "false");
+    this.separate = true;
+  }
+
+  public void nullValue() throws IOException
+  {
+    separate();
+    write("null");
+    this.separate = true;
+  }
+
+  /**
+   * Writes the buffered text to the <code>Writer</code>, which is not
+   * flushed itself.
+   */
+  public void flush() throws IOException
+  {
+    this.out.write(this.buffer, 0, this.count);
+    this.count = 0;
+  }
+
+  private void separate() throws IOException
+  {
+    if (this.separate)
+    {
+      write(',');
+    }
+  }
+
+  private void writeString(CharSequence text) throws IOException
+  {
+    write('"');
+    char[] buffer = this.buffer;
+    int count = this.count;
+    for (int i = 0, length = text.length(); i < length; i++)
+    {
+      char c = text.charAt(i);
+      char escape = c < 128 ? ESCAPES[c] : c <= 0x9F || c >= 0x2000
+          && c <= 0x20FF ? 'u' : 0;
+      // an escape takes up to six chars
+      if (count + 6 > buffer.length)
+      {
+        this.count = count;
+        flush();
+        count = 0;
+      }
+      if (escape == 0)
+      {
+        buffer[count++] = c;
+      }
+      else if (escape != 'u')
+      {
+        buffer[count++] = '\\';
+        buffer[count++] = escape;
+      }
+      else
+      {
+        buffer[count++] = '\\';
+        buffer[count++] = 'u';
+        buffer[count++] = HEX[c >> 12 & 0xF];
+        buffer[count++] = HEX[c >> 8 & 0xF];
+        buffer[count++] = HEX[c >> 4 & 0xF];
+        buffer[count++] = HEX[c & 0xF];
+      }
+    }
+    this.count = count;
+    write('"');
+  }
+
+  private void writeLong(long value) throws IOException
+  {
+    if (this.count + 20 > this.buffer.length)
+    {
+      flush();
+    }
+    if (value < 0)
+    {
+      this.buffer[this.count++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (long rest = value / 10; rest != 0; rest /= 10)
+    {
+      digits++;
+    }
+    int position = this.count + digits;
+    this.count = position;
+    do
+    {
+      this.buffer[--position] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    while (value != 0);
+  }
+
+  private void write(String text) throws IOException
+  {
+    for (int i = 0; i < text.length(); i++)
+    {
+      write(text.charAt(i));
+    }
+  }
+
+  private void write(char c) throws IOException
+  {
+    if (this.count == this.buffer.length)
+    {
+      flush();
+    }
+    this.buffer[this.count++] = c;
+  }
+}
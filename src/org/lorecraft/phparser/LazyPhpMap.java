@@ -0,0 +1,330 @@
+package org.lorecraft.phparser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only array or object attributes that are decoded on demand. On first
+ * access the entries are indexed: keys are decoded and the values are
+ * stepped over, recording only their position and reference slot. Values
+ * are decoded when they are read through {@link #get(Object)} or the entry
+ * set. Like the <code>LinkedHashMap</code> built by the eager parser, a
+ * duplicate key keeps its first position and its last value.
+ * <p>
+ * Errors in values that are decoded late are thrown as
+ * <code>IllegalStateException</code> with the
+ * {@link SerializedPhpParserException} as cause.
+ */
+final class LazyPhpMap extends AbstractMap<Object, Object>
+{
+  private final LazyPhpValues values;
+
+  /**
+   * position of the first key, after the opening <code>{</code>
+   */
+  private final long start;
+
+  private final int length;
+
+  /**
+   * reference slot of the array or object itself
+   */
+  private final int slot;
+
+  private Object[] keys;
+
+  private long[] valuePositions;
+
+  private int[] valueSlots;
+
+  /**
+   * entries in iteration order, without duplicate and rejected keys
+   */
+  private int[] visible;
+
+  private int size;
+
+  /**
+   * open addressing table from key hash to index in <code>visible</code>
+   * plus one
+   */
+  private int[] table;
+
+  private Set<Map.Entry<Object, Object>> entrySet;
+
+  LazyPhpMap(LazyPhpValues values, long start, int length, int slot)
+  {
+    this.values = values;
+    this.start = start;
+    this.length = length;
+    this.slot = slot;
+  }
+
+  void index() throws SerializedPhpParserException
+  {
+    if (this.table != null)
+    {
+      return;
+    }
+    PhpScanner scanner = this.values.scanner;
+    scanner.index = this.start;
+    int length = this.length;
+    Object[] keys = new Object[length];
+    long[] valuePositions = new long[length];
+    int[] valueSlots = new int[length];
+    int[] visible = new int[length];
+    int capacity = 2;
+    while (capacity < 2L * length && capacity < (1 << 30))
+    {
+      capacity <<= 1;
+    }
+    int[] table = new int[capacity];
+    int size = 0;
+    int nextSlot = this.slot + 1;
+    for (int i = 0; i < length; i++)
+    {
+      Object key = this.values.readKey();
+      keys[i] = key;
+      valuePositions[i] = scanner.index;
+      valueSlots[i] = nextSlot;
+      nextSlot += scanner.skipValue(false);
+      if (this.values.isAcceptedAttribute(key))
+      {
+        int bucket = bucket(table, keys, visible, key);
+        if (table[bucket] == 0)
+        {
+          visible[size] = i;
+          table[bucket] = ++size;
+        }
+        else
+        {
+          visible[table[bucket] - 1] = i;
+        }
+      }
+    }
+    if (scanner.input.at(scanner.index) != '}')
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Array, missing }!", scanner.index,
+          SerializedPhpParserException.MISSING_CLOSER_STRING);
+    }
+    this.keys = keys;
+    this.valuePositions = valuePositions;
+    this.valueSlots = valueSlots;
+    this.visible = visible;
+    this.size = size;
+    this.table = table;
+  }
+
+  /**
+   * @return the bucket holding <code>key</code>, or the empty bucket where
+   *         it belongs
+   */
+  private static int bucket(int[] table, Object[] keys, int[] visible,
+      Object key)
+  {
+    int mask = table.length - 1;
+    int hash = key.hashCode();
+    int bucket = (hash ^ (hash >>> 16)) & mask;
+    while (table[bucket] != 0 && !key.equals(keys[visible[table[bucket] - 1]]))
+    {
+      bucket = (bucket + 1) & mask;
+    }
+    return bucket;
+  }
+
+  /**
+   * @return the last entry whose value slot is not after <code>slot</code>
+   */
+  int entryOfSlot(int slot)
+  {
+    int low = 0;
+    int high = this.length - 1;
+    while (low < high)
+    {
+      int mid = (low + high + 1) >>> 1;
+      if (this.valueSlots[mid] <= slot)
+      {
+        low = mid;
+      }
+      else
+      {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  int entrySlot(int entry)
+  {
+    return this.valueSlots[entry];
+  }
+
+  Object entryValue(int entry) throws SerializedPhpParserException
+  {
+    return this.values.value(this.valuePositions[entry],
+        this.valueSlots[entry]);
+  }
+
+  private void ensureIndexed()
+  {
+    try
+    {
+      index();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      throw failed(ex);
+    }
+  }
+
+  private Object valueOf(int entry)
+  {
+    try
+    {
+      return entryValue(entry);
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      throw failed(ex);
+    }
+  }
+
+  private static IllegalStateException failed(SerializedPhpParserException ex)
+  {
+    return new IllegalStateException(ex.getMessage(), ex);
+  }
+
+  @Override
+  public int size()
+  {
+    ensureIndexed();
+    return this.size;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    ensureIndexed();
+    return key != null
+        && this.table[bucket(this.table, this.keys, this.visible, key)] != 0;
+  }
+
+  @Override
+  public Object get(Object key)
+  {
+    ensureIndexed();
+    if (key == null)
+    {
+      return null;
+    }
+    int index = this.table[bucket(this.table, this.keys, this.visible, key)];
+    return index == 0 ? null : valueOf(this.visible[index - 1]);
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet()
+  {
+    if (this.entrySet == null)
+    {
+      this.entrySet = new AbstractSet<Map.Entry<Object, Object>>()
+      {
+        @Override
+        public int size()
+        {
+          return LazyPhpMap.this.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator()
+        {
+          ensureIndexed();
+          return new Iterator<Map.Entry<Object, Object>>()
+          {
+            private int next;
+
+            public boolean hasNext()
+            {
+              return this.next < LazyPhpMap.this.size;
+            }
+
+            public Map.Entry<Object, Object> next()
+            {
+              if (this.next >= LazyPhpMap.this.size)
+              {
+                throw new NoSuchElementException();
+              }
+              return new Entry(LazyPhpMap.this.visible[this.next++]);
+            }
+
+            public void remove()
+            {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+    return this.entrySet;
+  }
+
+  /**
+   * entry that decodes its value when it is read, so iterating the keys
+   * does not decode any value
+   */
+  private final class Entry implements Map.Entry<Object, Object>
+  {
+    private final int entry;
+
+    Entry(int entry)
+    {
+      this.entry = entry;
+    }
+
+    public Object getKey()
+    {
+      return LazyPhpMap.this.keys[this.entry];
+    }
+
+    public Object getValue()
+    {
+      return valueOf(this.entry);
+    }
+
+    public Object setValue(Object value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Map.Entry))
+      {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      Object value = getValue();
+      return getKey().equals(other.getKey())
+          && (value == null ? other.getValue() == null : value.equals(other
+              .getValue()));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      Object value = getValue();
+      return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
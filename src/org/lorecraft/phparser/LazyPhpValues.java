@@ -0,0 +1,200 @@
+package org.lorecraft.phparser;
+
+import java.util.HashMap;
+
+/**
+ * Shared state of a lazily parsed document. Values are decoded from their
+ * position in the input when they are first accessed and are then kept by
+ * their reference slot, the index the eager parser would give them in its
+ * reference table. A reference is resolved by descending from the root
+ * through the containers whose slot range contains the target, so only
+ * the containers on that path are indexed.
+ * <p>
+ * Lazy values are not thread-safe: they share one scanner over the input.
+ */
+final class LazyPhpValues
+{
+  final PhpScanner scanner;
+
+  private final AttributeFilter acceptedAttributes;
+
+  private final HashMap<Integer, Object> cache = new HashMap<Integer, Object>();
+
+  private Object root;
+
+  LazyPhpValues(PhpInput input, AttributeFilter acceptedAttributes)
+  {
+    this.scanner = new PhpScanner(input);
+    this.acceptedAttributes = acceptedAttributes;
+  }
+
+  /**
+   * Decodes the top level value at <code>position</code> and indexes it if
+   * it is an array or object, which checks the structure of the whole
+   * document.
+   */
+  Object parseRoot(long position) throws SerializedPhpParserException
+  {
+    this.root = value(position, 0);
+    LazyPhpMap map = containerOf(this.root);
+    if (map != null)
+    {
+      map.index();
+    }
+    return this.root;
+  }
+
+  /**
+   * Decodes the value at <code>position</code>, or returns it from the cache
+   * if it has been decoded before.
+   *
+   * @param slot
+   *          the reference slot of the value
+   */
+  Object value(long position, int slot) throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    scanner.index = position;
+    scanner.checkUnexpectedLength(position + 2);
+    int type = scanner.input.at(position);
+    if (type == 'N')
+    {
+      return SerializedPhpParser.NULL;
+    }
+    if (!PhpScanner.occupiesSlot(type))
+    {
+      // an R: reference has no slot of its own, slot is the next value's
+      scanner.index += 2;
+      return reference(slot);
+    }
+    Integer key = Integer.valueOf(slot);
+    Object value = this.cache.get(key);
+    if (value != null)
+    {
+      return value;
+    }
+    scanner.index += 2;
+    switch (type)
+    {
+    case 'i':
+      value = Long.valueOf(scanner.readLong("integer"));
+      break;
+    case 'd':
+      value = Double.valueOf(scanner.readDouble());
+      break;
+    case 'b':
+      value = scanner.readBoolean();
+      break;
+    case 's':
+      int strLen = scanner.readLength();
+      scanner.checkCount(strLen);
+      value = scanner.readString(strLen);
+      break;
+    case 'a':
+      int arrayLen = scanner.readLength();
+      scanner.checkCount(arrayLen);
+      value = new LazyPhpMap(this, scanner.index, arrayLen, slot);
+      break;
+    case 'O':
+      int nameLen = scanner.readLength();
+      scanner.checkCount(nameLen);
+      String name = scanner.readClassName(nameLen);
+      int attrLen = scanner.readLength();
+      scanner.checkCount(attrLen);
+      value = new SerializedPhpParser.PhpObject(name, new LazyPhpMap(this,
+          scanner.index, attrLen, slot));
+      break;
+    case 'r':
+      value = reference(slot);
+      break;
+    default:
+      throw new SerializedPhpParserException("Encountered unknown type ["
+          + (char) type + "]", position,
+          SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+    this.cache.put(key, value);
+    return value;
+  }
+
+  /**
+   * Reads the index of a reference that is followed by the value with the
+   * given slot, and resolves it.
+   */
+  private Object reference(int slot) throws SerializedPhpParserException
+  {
+    long refIndex = this.scanner.readLong("Reference") - 1;
+    // like the eager parser, only earlier values can be referenced
+    if (refIndex < 0 || refIndex >= slot)
+    {
+      throw new SerializedPhpParserException("Out of range reference index: "
+          + (refIndex + 1) + " !", this.scanner.index,
+          SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+    }
+    return resolve((int) refIndex);
+  }
+
+  /**
+   * Reads an array key or attribute name at the scanner position.
+   */
+  Object readKey() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    long start = scanner.index;
+    scanner.checkUnexpectedLength(start + 2);
+    int type = scanner.input.at(start);
+    scanner.index += 2;
+    if (type == 'i')
+    {
+      return Long.valueOf(scanner.readLong("integer"));
+    }
+    if (type == 's')
+    {
+      int strLen = scanner.readLength();
+      scanner.checkCount(strLen);
+      return scanner.readString(strLen);
+    }
+    throw new SerializedPhpParserException("Encountered unknown key type ["
+        + (char) type + "]", start, SerializedPhpParserException.UNKNOWN_TYPE);
+  }
+
+  boolean isAcceptedAttribute(Object key)
+  {
+    return this.acceptedAttributes == null
+        || this.acceptedAttributes.accepts(key);
+  }
+
+  private Object resolve(int slot) throws SerializedPhpParserException
+  {
+    Object value = this.cache.get(Integer.valueOf(slot));
+    if (value != null)
+    {
+      return value;
+    }
+    LazyPhpMap map = containerOf(this.root);
+    while (true)
+    {
+      // the slot lies in the entry that starts at or last before it
+      int entry = map.entryOfSlot(slot);
+      value = map.entryValue(entry);
+      if (map.entrySlot(entry) == slot)
+      {
+        return value;
+      }
+      map = containerOf(value);
+      map.index();
+    }
+  }
+
+  private static LazyPhpMap containerOf(Object value)
+  {
+    if (value instanceof LazyPhpMap)
+    {
+      return (LazyPhpMap) value;
+    }
+    if (value instanceof SerializedPhpParser.PhpObject)
+    {
+      return (LazyPhpMap) ((SerializedPhpParser.PhpObject) value).attributes;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,143 @@
+package org.lorecraft.phparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Input backed by a memory-mapped file. A single mapping is limited to
+ * 2 GB, so the file is mapped as a sequence of regions and positions are
+ * split into a region number and an offset. The file content is read from
+ * the page cache and never copied to the heap, apart from the string
+ * bodies that are decoded.
+ */
+final class MappedFilePhpInput extends PhpInput
+{
+  static final int REGION_BITS = 30;
+
+  private final MappedByteBuffer[] regions;
+
+  private final long length;
+
+  private final int regionBits;
+
+  private final long regionMask;
+
+  private final Charset charset;
+
+  private MappedFilePhpInput(MappedByteBuffer[] regions, long length,
+      int regionBits, boolean assumeUTF8)
+  {
+    this.regions = regions;
+    this.length = length;
+    this.regionBits = regionBits;
+    this.regionMask = (1L << regionBits) - 1;
+    this.charset = assumeUTF8 ? UTF8 : LATIN1;
+  }
+
+  static MappedFilePhpInput map(File file, boolean assumeUTF8)
+      throws IOException
+  {
+    return map(file, assumeUTF8, REGION_BITS);
+  }
+
+  static MappedFilePhpInput map(File file, boolean assumeUTF8, int regionBits)
+      throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      long regionSize = 1L << regionBits;
+      MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((length
+          + regionSize - 1) >>> regionBits)];
+      for (int i = 0; i < regions.length; i++)
+      {
+        long start = (long) i << regionBits;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math
+            .min(regionSize, length - start));
+      }
+      // the mappings stay valid after the channel is closed
+      return new MappedFilePhpInput(regions, length, regionBits, assumeUTF8);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  @Override
+  long length()
+  {
+    return this.length;
+  }
+
+  @Override
+  int at(long position)
+  {
+    if (position >= this.length)
+    {
+      return -1;
+    }
+    return this.regions[(int) (position >>> this.regionBits)]
+        .get((int) (position & this.regionMask)) & 0xFF;
+  }
+
+  @Override
+  long indexOf(int ch, long from)
+  {
+    byte b = (byte) ch;
+    for (long position = from; position < this.length; position++)
+    {
+      if (this.regions[(int) (position >>> this.regionBits)]
+          .get((int) (position & this.regionMask)) == b)
+      {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  String substring(long start, long end)
+  {
+    byte[] bytes = new byte[(int) (end - start)];
+    int copied = 0;
+    while (copied < bytes.length)
+    {
+      long position = start + copied;
+      MappedByteBuffer region = this.regions[(int) (position >>> this.regionBits)];
+      int offset = (int) (position & this.regionMask);
+      int n = Math.min(bytes.length - copied, region.capacity() - offset);
+      // the regions are shared, so read through a private view
+      ByteBuffer view = region.duplicate();
+      view.position(offset);
+      view.get(bytes, copied, n);
+      copied += n;
+    }
+    return new String(bytes, this.charset);
+  }
+
+  @Override
+  boolean regionEquals(long start, long end, String text)
+      throws SerializedPhpParserException
+  {
+    return encodedEquals(start, end, text, this.charset == UTF8);
+  }
+
+  @Override
+  long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException
+  {
+    if (start + byteLength > this.length)
+    {
+      throw unexpectedEndOfString(byteLength, start, this.length);
+    }
+    return start + byteLength;
+  }
+}
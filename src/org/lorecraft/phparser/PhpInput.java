@@ -0,0 +1,168 @@
+package org.lorecraft.phparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Random access view on a serialized PHP payload. Positions are counted
+ * in the units of the underlying representation: chars for
+ * <code>String</code> input and bytes for binary input.
+ */
+abstract class PhpInput
+{
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  /**
+   * @return the number of chars or bytes in the input
+   */
+  abstract long length();
+
+  /**
+   * @return true if the input holds at least <code>end</code> chars or
+   *         bytes
+   */
+  boolean has(long end) throws SerializedPhpParserException
+  {
+    return end <= length();
+  }
+
+  /**
+   * Tells the input that positions before <code>position</code> will not be
+   * read again. Only inputs that buffer a window of a stream use this.
+   */
+  void release(long position)
+  {
+  }
+
+  /**
+   * @return the char or unsigned byte at the given position, or -1 if the
+   *         position is beyond the end of the input
+   */
+  abstract int at(long position) throws SerializedPhpParserException;
+
+  /**
+   * @return the position of the next occurrence of <code>ch</code> at or
+   *         after <code>from</code>, or -1
+   */
+  abstract long indexOf(int ch, long from) throws SerializedPhpParserException;
+
+  /**
+   * Decodes the text between <code>start</code> (inclusive) and
+   * <code>end</code> (exclusive).
+   */
+  abstract String substring(long start, long end)
+      throws SerializedPhpParserException;
+
+  /**
+   * Computes where a string body of <code>byteLength</code> PHP bytes that
+   * starts at <code>start</code> ends.
+   *
+   * @return the position right after the string body
+   */
+  abstract long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException;
+
+  /**
+   * Compares the text between <code>start</code> and <code>end</code> with
+   * <code>text</code>. Inputs override this to compare without decoding.
+   */
+  boolean regionEquals(long start, long end, String text)
+      throws SerializedPhpParserException
+  {
+    return substring(start, end).equals(text);
+  }
+
+  /**
+   * @return a hash of the raw chars or bytes between <code>start</code> and
+   *         <code>end</code>
+   */
+  int regionHash(long start, long end) throws SerializedPhpParserException
+  {
+    int hash = 0;
+    for (long position = start; position < end; position++)
+    {
+      hash = 31 * hash + at(position);
+    }
+    return hash;
+  }
+
+  /**
+   * Compares the bytes between <code>start</code> and <code>end</code> with
+   * <code>text</code> encoded on the fly, so no <code>String</code> is
+   * decoded and no byte array is allocated.
+   */
+  final boolean encodedEquals(long start, long end, String text, boolean utf8)
+      throws SerializedPhpParserException
+  {
+    long position = start;
+    int length = text.length();
+    int i = 0;
+    for (; i < length && position < end; i++)
+    {
+      int c = text.charAt(i);
+      if (!utf8 || c < 0x80)
+      {
+        if (at(position++) != c)
+        {
+          return false;
+        }
+        continue;
+      }
+      int trailing;
+      int lead;
+      if (c < 0x800)
+      {
+        trailing = 1;
+        lead = 0xC0;
+      }
+      else if (Character.isHighSurrogate((char) c) && i + 1 < length
+          && Character.isLowSurrogate(text.charAt(i + 1)))
+      {
+        trailing = 3;
+        lead = 0xF0;
+        c = Character.toCodePoint((char) c, text.charAt(++i));
+      }
+      else
+      {
+        trailing = 2;
+        lead = 0xE0;
+      }
+      if (at(position++) != (lead | c >>> (6 * trailing)))
+      {
+        return false;
+      }
+      while (trailing-- > 0)
+      {
+        if (at(position++) != (0x80 | (c >>> (6 * trailing) & 0x3F)))
+        {
+          return false;
+        }
+      }
+    }
+    return i == length && position == end;
+  }
+
+  /**
+   * Wraps the remaining bytes of a buffer, sharing its array if it has one.
+   */
+  static PhpInput wrap(ByteBuffer buffer, boolean assumeUTF8)
+  {
+    if (buffer.hasArray())
+    {
+      return new ByteArrayPhpInput(buffer.array(), buffer.arrayOffset()
+          + buffer.position(), buffer.remaining(), assumeUTF8);
+    }
+    return new ByteBufferPhpInput(buffer, assumeUTF8);
+  }
+
+  static SerializedPhpParserException unexpectedEndOfString(int byteLength,
+      long start, long position)
+  {
+    return new SerializedPhpParserException("Unexpected end of String ("
+        + byteLength + ") at position " + (position - start)
+        + ", absolut position in Input: " + position, position,
+        SerializedPhpParserException.TO_LONG_STRING);
+  }
+}
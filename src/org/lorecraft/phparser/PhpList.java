@@ -0,0 +1,473 @@
+package org.lorecraft.phparser;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A PHP array whose keys are exactly <code>0..n-1</code> in order, as
+ * built by the parser with {@link SerializedPhpParser#setCompactLists}.
+ * A list of only integers is backed by a <code>long[]</code>, a list of
+ * only floats by a <code>double[]</code>, and other lists by an
+ * <code>Object[]</code>, so numeric lists do not box their elements or
+ * keys. The primitive values can be read without boxing through
+ * {@link #getLong(int)} and {@link #getDouble(int)}.
+ * <p>
+ * The list has a fixed size. {@link #set(int, Object)} replaces elements;
+ * a value of another type moves a primitive list to an
+ * <code>Object[]</code>. {@link #asMap()} shows the list as the
+ * <code>Map</code> with <code>Long</code> keys that the parser builds
+ * otherwise. Lists of immutable results are read-only.
+ */
+public final class PhpList extends AbstractList<Object> implements
+    RandomAccess
+{
+  private long[] longs;
+
+  private double[] doubles;
+
+  private Object[] values;
+
+  private int size;
+
+  /**
+   * the length given in the input, the capacity is grown up to it
+   */
+  private final int length;
+
+  private boolean frozen;
+
+  private Map<Object, Object> map;
+
+  PhpList(int length)
+  {
+    this.length = length;
+  }
+
+  /**
+   * Copies the storage of a list; the elements of an <code>Object[]</code>
+   * are shared.
+   */
+  PhpList(PhpList list)
+  {
+    this.length = list.size;
+    this.size = list.size;
+    if (list.longs != null)
+    {
+      this.longs = Arrays.copyOf(list.longs, list.size);
+    }
+    else if (list.doubles != null)
+    {
+      this.doubles = Arrays.copyOf(list.doubles, list.size);
+    }
+    else if (list.values != null)
+    {
+      this.values = Arrays.copyOf(list.values, list.size);
+    }
+  }
+
+  /**
+   * Appends an element while the list is parsed.
+   */
+  void append(Object value)
+  {
+    if (value instanceof Long && appendLong(((Long) value).longValue()))
+    {
+      return;
+    }
+    if (value instanceof Double && appendDouble(((Double) value).doubleValue()))
+    {
+      return;
+    }
+    int size = this.size;
+    if (this.values == null)
+    {
+      box(capacity());
+    }
+    else if (size == this.values.length)
+    {
+      this.values = Arrays.copyOf(this.values, nextCapacity(size));
+    }
+    this.values[size] = value;
+    this.size = size + 1;
+  }
+
+  /**
+   * Appends an integer while the list is parsed, without boxing it.
+   *
+   * @return false if the list is not backed by a <code>long[]</code> and
+   *         the value was not appended
+   */
+  boolean appendLong(long value)
+  {
+    if (this.doubles != null || this.values != null)
+    {
+      return false;
+    }
+    int size = this.size;
+    if (this.longs == null || size == this.longs.length)
+    {
+      this.longs = grow(this.longs == null ? new long[0] : this.longs);
+    }
+    this.longs[size] = value;
+    this.size = size + 1;
+    return true;
+  }
+
+  /**
+   * Appends a float while the list is parsed, without boxing it.
+   *
+   * @return false if the list is not backed by a <code>double[]</code> and
+   *         the value was not appended
+   */
+  boolean appendDouble(double value)
+  {
+    if (this.longs != null || this.values != null)
+    {
+      return false;
+    }
+    int size = this.size;
+    if (this.doubles == null || size == this.doubles.length)
+    {
+      this.doubles = grow(this.doubles == null ? new double[0]
+          : this.doubles);
+    }
+    this.doubles[size] = value;
+    this.size = size + 1;
+    return true;
+  }
+
+  private int capacity()
+  {
+    if (this.longs != null)
+    {
+      return this.size == this.longs.length ? nextCapacity(this.size)
+          : this.longs.length;
+    }
+    if (this.doubles != null)
+    {
+      return this.size == this.doubles.length ? nextCapacity(this.size)
+          : this.doubles.length;
+    }
+    return nextCapacity(0);
+  }
+
+  /**
+   * Starts small and doubles up to the declared length, so a large length
+   * in a short or truncated input does not allocate its full storage.
+   */
+  private int nextCapacity(int capacity)
+  {
+    return (int) Math.min(this.length, Math.max(16L, capacity * 2L));
+  }
+
+  private long[] grow(long[] longs)
+  {
+    return Arrays.copyOf(longs, nextCapacity(longs.length));
+  }
+
+  private double[] grow(double[] doubles)
+  {
+    return Arrays.copyOf(doubles, nextCapacity(doubles.length));
+  }
+
+  /**
+   * Moves the elements to an <code>Object[]</code> of the given capacity.
+   */
+  private void box(int capacity)
+  {
+    Object[] values = new Object[capacity];
+    for (int i = 0; i < this.size; i++)
+    {
+      values[i] = get(i);
+    }
+    this.values = values;
+    this.longs = null;
+    this.doubles = null;
+  }
+
+  @Override
+  public Object get(int index)
+  {
+    checkIndex(index);
+    if (this.longs != null)
+    {
+      return Long.valueOf(this.longs[index]);
+    }
+    if (this.doubles != null)
+    {
+      return Double.valueOf(this.doubles[index]);
+    }
+    return this.values[index];
+  }
+
+  /**
+   * @throws ClassCastException
+   *           if the element is not a number
+   */
+  public long getLong(int index)
+  {
+    checkIndex(index);
+    if (this.longs != null)
+    {
+      return this.longs[index];
+    }
+    if (this.doubles != null)
+    {
+      return (long) this.doubles[index];
+    }
+    return ((Number) this.values[index]).longValue();
+  }
+
+  /**
+   * @throws ClassCastException
+   *           if the element is not a number
+   */
+  public double getDouble(int index)
+  {
+    checkIndex(index);
+    if (this.doubles != null)
+    {
+      return this.doubles[index];
+    }
+    if (this.longs != null)
+    {
+      return this.longs[index];
+    }
+    return ((Number) this.values[index]).doubleValue();
+  }
+
+  /**
+   * @return true if every element is an integer stored in a
+   *         <code>long[]</code>; an empty list is neither
+   */
+  public boolean isLongList()
+  {
+    return this.longs != null;
+  }
+
+  /**
+   * @return true if every element is a float stored in a
+   *         <code>double[]</code>
+   */
+  public boolean isDoubleList()
+  {
+    return this.doubles != null;
+  }
+
+  /**
+   * Makes the list read-only.
+   */
+  void freeze()
+  {
+    this.frozen = true;
+  }
+
+  @Override
+  public Object set(int index, Object element)
+  {
+    if (this.frozen)
+    {
+      throw new UnsupportedOperationException("The list is read-only");
+    }
+    Object previous = get(index);
+    if (this.longs != null && element instanceof Long)
+    {
+      this.longs[index] = ((Long) element).longValue();
+    }
+    else if (this.doubles != null && element instanceof Double)
+    {
+      this.doubles[index] = ((Double) element).doubleValue();
+    }
+    else
+    {
+      if (this.values == null)
+      {
+        box(this.size);
+      }
+      this.values[index] = element;
+    }
+    return previous;
+  }
+
+  @Override
+  public int size()
+  {
+    return this.size;
+  }
+
+  private void checkIndex(int index)
+  {
+    if (index < 0 || index >= this.size)
+    {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+          + this.size);
+    }
+  }
+
+  /**
+   * @return a view of the list as a map from <code>Long</code> index to
+   *         element, in index order; it reflects changes made with
+   *         {@link #set(int, Object)} and can itself only change values
+   */
+  public Map<Object, Object> asMap()
+  {
+    if (this.map == null)
+    {
+      this.map = new MapView();
+    }
+    return this.map;
+  }
+
+  private int indexOfKey(Object key)
+  {
+    if (key instanceof Long || key instanceof Integer)
+    {
+      long index = ((Number) key).longValue();
+      if (index >= 0 && index < this.size)
+      {
+        return (int) index;
+      }
+    }
+    return -1;
+  }
+
+  private final class MapView extends AbstractMap<Object, Object>
+  {
+    private Set<Map.Entry<Object, Object>> entrySet;
+
+    @Override
+    public int size()
+    {
+      return PhpList.this.size;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+      return indexOfKey(key) != -1;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+      int index = indexOfKey(key);
+      return index == -1 ? null : PhpList.this.get(index);
+    }
+
+    @Override
+    public Object put(Object key, Object value)
+    {
+      int index = indexOfKey(key);
+      if (index == -1)
+      {
+        throw new UnsupportedOperationException("Cannot add key " + key
+            + " to a list");
+      }
+      return PhpList.this.set(index, value);
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet()
+    {
+      if (this.entrySet == null)
+      {
+        this.entrySet = new AbstractSet<Map.Entry<Object, Object>>()
+        {
+          @Override
+          public Iterator<Map.Entry<Object, Object>> iterator()
+          {
+            return new Iterator<Map.Entry<Object, Object>>()
+            {
+              private int next;
+
+              public boolean hasNext()
+              {
+                return this.next < PhpList.this.size;
+              }
+
+              public Map.Entry<Object, Object> next()
+              {
+                if (!hasNext())
+                {
+                  throw new NoSuchElementException();
+                }
+                return new ListEntry(this.next++);
+              }
+
+              public void remove()
+              {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+
+          @Override
+          public int size()
+          {
+            return PhpList.this.size;
+          }
+        };
+      }
+      return this.entrySet;
+    }
+  }
+
+  private final class ListEntry implements Map.Entry<Object, Object>
+  {
+    private final int index;
+
+    ListEntry(int index)
+    {
+      this.index = index;
+    }
+
+    public Object getKey()
+    {
+      return Long.valueOf(this.index);
+    }
+
+    public Object getValue()
+    {
+      return get(this.index);
+    }
+
+    public Object setValue(Object value)
+    {
+      return set(this.index, value);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Map.Entry))
+      {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      Object value = getValue();
+      return getKey().equals(other.getKey())
+          && (value == null ? other.getValue() == null : value.equals(other
+              .getValue()));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      Object value = getValue();
+      return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
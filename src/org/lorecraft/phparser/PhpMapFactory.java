@@ -0,0 +1,46 @@
+package org.lorecraft.phparser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creates the maps that the parser fills with array entries and object
+ * attributes. The parser knows the number of entries from the input
+ * before it reads them and passes it on, so a map can be allocated at its
+ * final size.
+ */
+public interface PhpMapFactory
+{
+  /**
+   * Flat, insertion-ordered maps that keep keys and values in two arrays
+   * sized exactly to the entry count, with an open addressing index for
+   * larger maps. This is the default.
+   */
+  PhpMapFactory COMPACT = new PhpMapFactory()
+  {
+    public Map<Object, Object> newMap(int size)
+    {
+      return new CompactPhpMap(size);
+    }
+  };
+
+  /**
+   * <code>LinkedHashMap</code>, as built by earlier versions for arrays.
+   */
+  PhpMapFactory LINKED_HASH_MAP = new PhpMapFactory()
+  {
+    public Map<Object, Object> newMap(int size)
+    {
+      return new LinkedHashMap<Object, Object>(Math.max(16,
+          (int) Math.min(Integer.MAX_VALUE, size * 4L / 3 + 1)));
+    }
+  };
+
+  /**
+   * @param size
+   *          the number of entries given in the input; rejected attributes
+   *          and duplicate keys can leave the map smaller
+   * @return a new, empty and modifiable map that keeps insertion order
+   */
+  Map<Object, Object> newMap(int size);
+}
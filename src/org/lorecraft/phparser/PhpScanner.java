@@ -0,0 +1,534 @@
+package org.lorecraft.phparser;
+
+import java.util.Arrays;
+
+/**
+ * Reads the scalar fields of the serialized format in place. Integers,
+ * floats, lengths and reference indexes are accumulated digit by digit
+ * straight from the input, without an intermediate <code>String</code>
+ * and without boxing.
+ */
+final class PhpScanner
+{
+  private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+      1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+      1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  /**
+   * largest mantissa that is exactly representable as a double
+   */
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  PhpInput input;
+
+  long index;
+
+  private int[] skipStack = new int[16];
+
+  /**
+   * set by {@link #skipValue(boolean)} when it steps over a reference
+   */
+  boolean skippedReference;
+
+  PhpScanner(PhpInput input)
+  {
+    this.input = input;
+  }
+
+  /**
+   * Starts over on new input, keeping the skip stack.
+   */
+  void reset(PhpInput input)
+  {
+    this.input = input;
+    this.index = 0;
+  }
+
+  /**
+   * Reads a signed integer that is terminated by <code>;</code>.
+   */
+  long readLong(String what) throws SerializedPhpParserException
+  {
+    long start = this.index;
+    long pos = start;
+    int c = this.input.at(pos);
+    boolean negative = false;
+    if (c == '-' || c == '+')
+    {
+      negative = c == '-';
+      c = this.input.at(++pos);
+    }
+    if (c < '0' || c > '9')
+    {
+      throw invalidNumber(what, start);
+    }
+    // accumulate negatively, so Long.MIN_VALUE does not overflow
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / 10;
+    long result = 0;
+    do
+    {
+      int digit = c - '0';
+      if (result < multmin)
+      {
+        throw invalidNumber(what, start);
+      }
+      result *= 10;
+      if (result < limit + digit)
+      {
+        throw invalidNumber(what, start);
+      }
+      result -= digit;
+      c = this.input.at(++pos);
+    }
+    while (c >= '0' && c <= '9');
+    if (c != ';')
+    {
+      throw missingDelimiter(what, start);
+    }
+    this.index = pos + 1;
+    return negative ? result : -result;
+  }
+
+  /**
+   * Reads the unsigned length field of a string, array or object, and
+   * steps over the following <code>:</code> and the opening char.
+   */
+  int readLength() throws SerializedPhpParserException
+  {
+    long start = this.index;
+    long pos = start;
+    int c = this.input.at(pos);
+    if (c < '0' || c > '9')
+    {
+      if (c == -1)
+      {
+        throw missingLengthDelimiter(start);
+      }
+      throw invalidNumber("length", start);
+    }
+    int result = 0;
+    do
+    {
+      if (result > (Integer.MAX_VALUE - (c - '0')) / 10)
+      {
+        throw invalidNumber("length", start);
+      }
+      result = result * 10 + (c - '0');
+      c = this.input.at(++pos);
+    }
+    while (c >= '0' && c <= '9');
+    if (c != ':')
+    {
+      throw missingLengthDelimiter(start);
+    }
+    this.index = pos;
+    checkUnexpectedLength(pos + 2);
+    this.index = pos + 2;
+    return result;
+  }
+
+  /**
+   * Reads a float terminated by <code>;</code>. Plain decimals with up to
+   * 18 significant digits and 22 fraction digits are computed exactly from
+   * the digits; exponents, longer mantissas and <code>INF</code>/
+   * <code>NAN</code> fall back to <code>Double.parseDouble</code>.
+   */
+  double readDouble() throws SerializedPhpParserException
+  {
+    long start = this.index;
+    this.input.release(start);
+    long pos = start;
+    int c = this.input.at(pos);
+    boolean negative = false;
+    if (c == '-' || c == '+')
+    {
+      negative = c == '-';
+      c = this.input.at(++pos);
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = 0;
+    while (c >= '0' && c <= '9')
+    {
+      mantissa = mantissa * 10 + (c - '0');
+      digits++;
+      c = this.input.at(++pos);
+    }
+    if (c == '.')
+    {
+      c = this.input.at(++pos);
+      while (c >= '0' && c <= '9')
+      {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        fractionDigits++;
+        c = this.input.at(++pos);
+      }
+    }
+    if (c == ';' && digits > 0 && digits <= 18
+        && mantissa <= MAX_EXACT_MANTISSA
+        && fractionDigits < POWERS_OF_TEN.length)
+    {
+      this.index = pos + 1;
+      double value = mantissa / POWERS_OF_TEN[fractionDigits];
+      return negative ? -value : value;
+    }
+    return readDoubleSlow(start);
+  }
+
+  private double readDoubleSlow(long start) throws SerializedPhpParserException
+  {
+    long delimiter = this.input.indexOf(';', start);
+    if (delimiter == -1)
+    {
+      throw missingDelimiter("float", start);
+    }
+    String value = this.input.substring(start, delimiter);
+    double result;
+    if (value.equals("INF"))
+    {
+      result = Double.POSITIVE_INFINITY;
+    }
+    else if (value.equals("-INF"))
+    {
+      result = Double.NEGATIVE_INFINITY;
+    }
+    else if (value.equals("NAN"))
+    {
+      result = Double.NaN;
+    }
+    else
+    {
+      try
+      {
+        result = Double.parseDouble(value);
+      }
+      catch (NumberFormatException ex)
+      {
+        throw new SerializedPhpParserException("Invalid serialized float!",
+            start, SerializedPhpParserException.INVALID_NUMBER, ex);
+      }
+    }
+    this.index = delimiter + 1;
+    return result;
+  }
+
+  /**
+   * Reads <code>0</code> or <code>1</code> terminated by <code>;</code>.
+   * Other values are interpreted by <code>Boolean.valueOf</code>.
+   */
+  Boolean readBoolean() throws SerializedPhpParserException
+  {
+    long start = this.index;
+    this.input.release(start);
+    int c = this.input.at(start);
+    if ((c == '0' || c == '1') && this.input.at(start + 1) == ';')
+    {
+      this.index = start + 2;
+      return c == '1' ? Boolean.TRUE : Boolean.FALSE;
+    }
+    long delimiter = this.input.indexOf(';', start);
+    if (delimiter == -1)
+    {
+      throw missingDelimiter("boolean", start);
+    }
+    this.index = delimiter + 1;
+    return Boolean.valueOf(this.input.substring(start, delimiter));
+  }
+
+  /**
+   * Reads a string body of the given byte length including the closing
+   * <code>";</code>.
+   */
+  String readString(int strLen) throws SerializedPhpParserException
+  {
+    return readString(strLen, null);
+  }
+
+  /**
+   * Reads a string body like {@link #readString(int)}, taking the value
+   * from the symbol table if one is given.
+   */
+  String readString(int strLen, PhpSymbolTable symbols)
+      throws SerializedPhpParserException
+  {
+    long start = this.index;
+    long end = this.input.stringEnd(start, strLen);
+    String value;
+    try
+    {
+      value = symbols == null ? this.input.substring(start, end) : symbols
+          .intern(this.input, start, end);
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      // a stream learns its length only here, apply the deferred check
+      checkCount(strLen);
+      throw ex;
+    }
+    checkStringEnd(end);
+    this.index = end + 2;
+    return value;
+  }
+
+  /**
+   * Checks the closing <code>";</code> of a string body that ends at
+   * <code>end</code>.
+   */
+  void checkStringEnd(long end) throws SerializedPhpParserException
+  {
+    checkStringEnd(end, ';');
+  }
+
+  /**
+   * Checks the closing quote and the given delimiter of a string body or
+   * class name that ends at <code>end</code>.
+   */
+  void checkStringEnd(long end, char delimiter)
+      throws SerializedPhpParserException
+  {
+    int quote = this.input.at(end);
+    int closer = this.input.at(end + 1);
+    if (quote == -1 || closer == -1)
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected serialized string length!", this.index,
+          SerializedPhpParserException.TO_LONG_STRING);
+    }
+    if (quote != '"' || closer != delimiter)
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected serialized string length!", this.index,
+          SerializedPhpParserException.TO_SHORT_STRING);
+    }
+  }
+
+  /**
+   * Reads an object class name of the given byte length and steps over the
+   * closing <code>":</code>.
+   */
+  String readClassName(int strLen) throws SerializedPhpParserException
+  {
+    return readClassName(strLen, null);
+  }
+
+  String readClassName(int strLen, PhpSymbolTable symbols)
+      throws SerializedPhpParserException
+  {
+    long end = this.input.stringEnd(this.index, strLen);
+    String name = symbols == null ? this.input.substring(this.index, end)
+        : symbols.intern(this.input, this.index, end);
+    checkStringEnd(end, ':');
+    this.index = end + 2;
+    return name;
+  }
+
+  /**
+   * Steps over an object class name of the given byte length and the
+   * closing <code>":</code> without decoding it.
+   */
+  void skipClassName(int strLen) throws SerializedPhpParserException
+  {
+    long end = this.input.stringEnd(this.index, strLen);
+    checkStringEnd(end, ':');
+    this.index = end + 2;
+  }
+
+  /**
+   * Reads a string key if it is <code>name</code>, comparing it in place
+   * without decoding it.
+   *
+   * @return false if the key at the scanner position is not the string
+   *         <code>name</code>; the scanner is then left inside the key
+   */
+  boolean readName(String name) throws SerializedPhpParserException
+  {
+    checkUnexpectedLength(this.index + 2);
+    if (this.input.at(this.index) != 's')
+    {
+      return false;
+    }
+    this.index += 2;
+    int strLen = readLength();
+    checkCount(strLen);
+    long end = this.input.stringEnd(this.index, strLen);
+    checkStringEnd(end);
+    if (!this.input.regionEquals(this.index, end, name))
+    {
+      return false;
+    }
+    this.index = end + 2;
+    return true;
+  }
+
+  /**
+   * Steps over one complete value, including nested arrays and objects,
+   * without decoding it. String bodies are jumped over by their length
+   * prefix. Nesting is tracked in a reusable counter stack, not by
+   * recursion.
+   *
+   * @return the number of reference slots the skipped value occupies
+   */
+  int skipValue(boolean isKey) throws SerializedPhpParserException
+  {
+    int slots = 0;
+    int depth = 0;
+    do
+    {
+      if (depth > 0 && isKey && this.skipStack[depth - 1] == 0)
+      {
+        if (this.input.at(this.index) != '}')
+        {
+          throw new SerializedPhpParserException(
+              "Unexpected end of serialized Array, missing }!", this.index,
+              SerializedPhpParserException.MISSING_CLOSER_STRING);
+        }
+        this.index++;
+        depth--;
+        continue;
+      }
+      checkUnexpectedLength(this.index + 2);
+      int type = this.input.at(this.index);
+      if (!isKey && occupiesSlot(type))
+      {
+        slots++;
+      }
+      if (depth > 0 && isKey)
+      {
+        this.skipStack[depth - 1]--;
+      }
+      this.index += 2;
+      switch (type)
+      {
+      case 'i':
+        readLong("integer");
+        break;
+      case 'R':
+      case 'r':
+        readLong("Reference");
+        this.skippedReference = true;
+        break;
+      case 'd':
+      case 'b':
+        skipPast(';');
+        break;
+      case 'N':
+        break;
+      case 's':
+        int strLen = readLength();
+        checkCount(strLen);
+        long end = this.input.stringEnd(this.index, strLen);
+        checkStringEnd(end);
+        this.index = end + 2;
+        break;
+      case 'O':
+        int nameLen = readLength();
+        checkCount(nameLen);
+        skipClassName(nameLen);
+        depth = skipContainer(depth);
+        // the next value of the container is a key
+        isKey = false;
+        break;
+      case 'a':
+        depth = skipContainer(depth);
+        isKey = false;
+        break;
+      default:
+        throw new SerializedPhpParserException("Encountered unknown type ["
+            + (char) type + "]", this.index - 2,
+            SerializedPhpParserException.UNKNOWN_TYPE);
+      }
+      isKey = !isKey;
+    }
+    while (depth > 0);
+    return slots;
+  }
+
+  /**
+   * Reads the element count of an array or object and pushes it on the
+   * skip stack.
+   *
+   * @return the new nesting depth
+   */
+  private int skipContainer(int depth) throws SerializedPhpParserException
+  {
+    int length = readLength();
+    if (depth == this.skipStack.length)
+    {
+      this.skipStack = Arrays.copyOf(this.skipStack, depth * 2);
+    }
+    this.skipStack[depth] = length;
+    return depth + 1;
+  }
+
+  /**
+   * Tells whether a value of the given type is numbered in the reference
+   * table when it is not an array key. As in PHP, every value is numbered
+   * except <code>R:</code> references.
+   */
+  static boolean occupiesSlot(int type)
+  {
+    return type != 'R';
+  }
+
+  private void skipPast(char delimiter) throws SerializedPhpParserException
+  {
+    long position = this.input.indexOf(delimiter, this.index);
+    if (position == -1)
+    {
+      throw new SerializedPhpParserException("Unexpected end of serialized "
+          + "value, missing " + delimiter + "!", this.index,
+          SerializedPhpParserException.MISSING_DELIMITER_STRING);
+    }
+    this.index = position + 1;
+  }
+
+  void checkUnexpectedLength(long newIndex)
+      throws SerializedPhpParserException
+  {
+    if (!this.input.has(newIndex))
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Input!", this.index,
+          SerializedPhpParserException.TO_SHORT_INPUT_STRING);
+    }
+  }
+
+  /**
+   * Rejects a string, array or object length that is larger than the whole
+   * input, as far as its length is known.
+   */
+  void checkCount(int count) throws SerializedPhpParserException
+  {
+    if (this.index > this.input.length() || count > this.input.length())
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Input!", this.index,
+          SerializedPhpParserException.TO_SHORT_INPUT_STRING);
+    }
+  }
+
+  private static SerializedPhpParserException invalidNumber(String what,
+      long position)
+  {
+    return new SerializedPhpParserException("Invalid serialized " + what
+        + "!", position, SerializedPhpParserException.INVALID_NUMBER);
+  }
+
+  private static SerializedPhpParserException missingDelimiter(String what,
+      long position)
+  {
+    return new SerializedPhpParserException("Unexpected end of serialized "
+        + what + "!", position,
+        SerializedPhpParserException.MISSING_DELIMITER_STRING);
+  }
+
+  private static SerializedPhpParserException missingLengthDelimiter(
+      long position)
+  {
+    return new SerializedPhpParserException(
+        "Missing delimiter after string, array or object length field!",
+        position, SerializedPhpParserException.MISSING_DELIMITER_STRING);
+  }
+}
@@ -0,0 +1,225 @@
+package org.lorecraft.phparser;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, thread-safe cache of object shapes: the class name and the
+ * attribute names of an object in input order. Objects of one class
+ * usually have the same attributes in the same order, so after the first
+ * object of a class the parser compares the attribute names of the next
+ * ones with the cached shape in place, bytes or chars, instead of decoding
+ * and hashing them. Objects that match share the keys and the hash index
+ * of one attribute layout and only allocate their values. An object that
+ * does not match is parsed the normal way from the first attribute that
+ * differs.
+ * <p>
+ * Like {@link PhpSymbolTable}, every class name hashes to two slots and a
+ * new shape replaces one of them, so hostile input cannot grow the cache.
+ * The shape of an object that does not match replaces the shape it was
+ * compared with, so runs of objects with the same layout hit. Objects with
+ * integer attribute names, duplicate names or more than
+ * {@link #MAX_ATTRIBUTES} attributes are not cached. A shape records which
+ * attributes the filter of its parser accepts and only matches for
+ * parsers with the same filter, such as the parsers of one
+ * {@link SerializedPhpParserConfig}. One cache can be shared by any number
+ * of parsers, see {@link SerializedPhpParser#setShapeCache(PhpShapeCache)}.
+ */
+public final class PhpShapeCache
+{
+  public static final int DEFAULT_CAPACITY = 256;
+
+  public static final int MAX_ATTRIBUTES = 1024;
+
+  private final AtomicReferenceArray<Shape> shapes;
+
+  private final int mask;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  public PhpShapeCache()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity
+   *          the number of slots, rounded up to a power of two
+   */
+  public PhpShapeCache(int capacity)
+  {
+    if (capacity < 2 || capacity > 1 << 30)
+    {
+      throw new IllegalArgumentException("capacity " + capacity
+          + " is not between 2 and 2^30");
+    }
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.shapes = new AtomicReferenceArray<Shape>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * @param hash
+   *          the region hash of the class name
+   * @return a shape of the class named between <code>start</code> and
+   *         <code>end</code> with <code>length</code> attributes, learned
+   *         with the given filter, or null
+   */
+  Shape find(PhpInput input, int hash, long start, long end, int length,
+      AttributeFilter filter) throws SerializedPhpParserException
+  {
+    int first = (hash ^ hash >>> 16) & this.mask;
+    Shape shape = this.shapes.get(first);
+    if (shape != null && shape.filter == filter
+        && shape.matches(input, hash, start, end, length))
+    {
+      return shape;
+    }
+    shape = this.shapes.get(first ^ 1);
+    if (shape != null && shape.filter == filter
+        && shape.matches(input, hash, start, end, length))
+    {
+      return shape;
+    }
+    return null;
+  }
+
+  /**
+   * Adds a shape in place of the shape <code>replaced</code>, if that is
+   * still cached, so the latest shape of a class is tried first.
+   */
+  void add(Shape shape, Shape replaced)
+  {
+    int first = (shape.hash ^ shape.hash >>> 16) & this.mask;
+    int second = first ^ 1;
+    int slot;
+    if (replaced != null && this.shapes.get(first) == replaced)
+    {
+      slot = first;
+    }
+    else if (replaced != null && this.shapes.get(second) == replaced)
+    {
+      slot = second;
+    }
+    else if (this.shapes.get(first) == null)
+    {
+      slot = first;
+    }
+    else if (this.shapes.get(second) == null)
+    {
+      slot = second;
+    }
+    else
+    {
+      // both are taken, alternate the victim
+      slot = (this.misses.get() & 1) == 0 ? first : second;
+    }
+    this.shapes.lazySet(slot, shape);
+  }
+
+  void hit()
+  {
+    this.hits.incrementAndGet();
+  }
+
+  void miss()
+  {
+    this.misses.incrementAndGet();
+  }
+
+  /**
+   * @return the number of objects whose attribute names matched a cached
+   *         shape
+   */
+  public long getHitCount()
+  {
+    return this.hits.get();
+  }
+
+  /**
+   * @return the number of objects that were parsed without a matching
+   *         shape, including the objects a shape was learned from
+   */
+  public long getMissCount()
+  {
+    return this.misses.get();
+  }
+
+  /**
+   * Removes all shapes and resets the counters.
+   */
+  public void clear()
+  {
+    for (int i = 0; i <= this.mask; i++)
+    {
+      this.shapes.set(i, null);
+    }
+    this.hits.set(0);
+    this.misses.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PhpShapeCache[capacity=" + (this.mask + 1) + ", hits="
+        + getHitCount() + ", misses=" + getMissCount() + "]";
+  }
+
+  /**
+   * The attribute names of a class in input order and the layout of the
+   * accepted ones, which the attribute maps of its objects share.
+   */
+  static final class Shape
+  {
+    final int hash;
+
+    final String className;
+
+    /**
+     * all attribute names in input order
+     */
+    final String[] names;
+
+    /**
+     * the filter of the parser that learned the shape, null for all
+     * attributes
+     */
+    final AttributeFilter filter;
+
+    /**
+     * whether the filter accepts the attribute of each name
+     */
+    final boolean[] accepted;
+
+    /**
+     * the accepted names, the keys of the shared layout
+     */
+    final Object[] keys;
+
+    /**
+     * the hash index of the keys, null for small layouts
+     */
+    final int[] table;
+
+    Shape(int hash, String className, String[] names, AttributeFilter filter,
+        boolean[] accepted, Object[] keys)
+    {
+      this.hash = hash;
+      this.className = className;
+      this.names = names;
+      this.filter = filter;
+      this.accepted = accepted;
+      this.keys = keys;
+      this.table = CompactPhpMap.newTable(keys);
+    }
+
+    private boolean matches(PhpInput input, int hash, long start, long end,
+        int length) throws SerializedPhpParserException
+    {
+      return this.hash == hash && this.names.length == length
+          && input.regionEquals(start, end, this.className);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.lorecraft.phparser;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, thread-safe table of canonical strings for array keys,
+ * attribute names and class names, which repeat many times within and
+ * across payloads. A name is hashed and compared in place in the input,
+ * bytes or chars, so a name that is already in the table is returned
+ * without decoding it or allocating anything.
+ * <p>
+ * The table has a fixed number of slots and every hash maps to two of
+ * them. A new name replaces one of the two, so hostile input cannot grow
+ * the table, it can only evict names. Names longer than
+ * <code>maxLength</code> bytes or chars bypass the table. One table can be
+ * shared by any number of parsers, see
+ * {@link SerializedPhpParser#setSymbolTable(PhpSymbolTable)}.
+ */
+public final class PhpSymbolTable
+{
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  public static final int DEFAULT_MAX_LENGTH = 64;
+
+  private final AtomicReferenceArray<Symbol> symbols;
+
+  private final int mask;
+
+  private final int maxLength;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  public PhpSymbolTable()
+  {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param capacity
+   *          the number of slots, rounded up to a power of two
+   * @param maxLength
+   *          the length of the longest name that is kept
+   */
+  public PhpSymbolTable(int capacity, int maxLength)
+  {
+    if (capacity < 2 || capacity > 1 << 30)
+    {
+      throw new IllegalArgumentException("capacity " + capacity
+          + " is not between 2 and 2^30");
+    }
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.symbols = new AtomicReferenceArray<Symbol>(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * @return the canonical string for the text between <code>start</code>
+   *         and <code>end</code>
+   */
+  String intern(PhpInput input, long start, long end)
+      throws SerializedPhpParserException
+  {
+    if (end - start > this.maxLength)
+    {
+      return input.substring(start, end);
+    }
+    int hash = input.regionHash(start, end);
+    int first = (hash ^ hash >>> 16) & this.mask;
+    int second = first ^ 1;
+    Symbol symbol = this.symbols.get(first);
+    if (symbol != null && symbol.hash == hash
+        && input.regionEquals(start, end, symbol.value))
+    {
+      this.hits.incrementAndGet();
+      return symbol.value;
+    }
+    symbol = this.symbols.get(second);
+    if (symbol != null && symbol.hash == hash
+        && input.regionEquals(start, end, symbol.value))
+    {
+      this.hits.incrementAndGet();
+      return symbol.value;
+    }
+    long misses = this.misses.incrementAndGet();
+    String value = input.substring(start, end);
+    int slot;
+    if (this.symbols.get(first) == null)
+    {
+      slot = first;
+    }
+    else if (symbol == null)
+    {
+      slot = second;
+    }
+    else
+    {
+      // both are taken, alternate the victim
+      slot = (misses & 1) == 0 ? first : second;
+    }
+    this.symbols.lazySet(slot, new Symbol(hash, value));
+    return value;
+  }
+
+  /**
+   * @return the number of names that were found in the table
+   */
+  public long getHitCount()
+  {
+    return this.hits.get();
+  }
+
+  /**
+   * @return the number of names that were decoded and added to the table,
+   *         not counting names longer than the maximum length
+   */
+  public long getMissCount()
+  {
+    return this.misses.get();
+  }
+
+  /**
+   * Removes all names and resets the counters.
+   */
+  public void clear()
+  {
+    for (int i = 0; i <= this.mask; i++)
+    {
+      this.symbols.set(i, null);
+    }
+    this.hits.set(0);
+    this.misses.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PhpSymbolTable[capacity=" + (this.mask + 1) + ", hits="
+        + getHitCount() + ", misses=" + getMissCount() + "]";
+  }
+
+  private static final class Symbol
+  {
+    final int hash;
+
+    final String value;
+
+    Symbol(int hash, String value)
+    {
+      this.hash = hash;
+      this.value = value;
+    }
+  }
+}
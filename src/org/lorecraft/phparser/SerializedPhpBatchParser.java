@@ -0,0 +1,585 @@
+package org.lorecraft.phparser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parses many independent payloads in parallel, or the elements of one
+ * large array with {@link #parseArray(byte[])}. The work of a call is
+ * split into chunks that the workers claim one after another, so a
+ * slow chunk does not hold up the others, and each worker parses all its
+ * chunks with one parser borrowed from a {@link SerializedPhpParserPool}.
+ * The calling thread works on the batch as well.
+ * <p>
+ * The results are returned in input order. A payload that fails to parse
+ * does not abort the batch: its result carries the exception, with the
+ * code and position of the error. Payloads are <code>String</code>,
+ * <code>byte[]</code> or <code>ByteBuffer</code>; a
+ * <code>java.util.stream.Stream</code> can be passed as its
+ * <code>iterator()</code>.
+ * <p>
+ * Example of use:
+ *
+ * <pre>
+ * SerializedPhpBatchParser batch = new SerializedPhpBatchParser(config, 8);
+ * for (SerializedPhpBatchParser.Result result : batch.parse(rows))
+ * {
+ *   if (result.isFailed())
+ *   {
+ *     log(result.getException().code, result.getException().offset);
+ *   }
+ * }
+ * batch.shutdown();
+ * </pre>
+ */
+public class SerializedPhpBatchParser
+{
+  /**
+   * the largest number of payloads a worker claims at once
+   */
+  private static final int MAX_CHUNK_SIZE = 256;
+
+  private final SerializedPhpParserConfig config;
+
+  private final SerializedPhpParserPool pool;
+
+  private final ExecutorService executor;
+
+  private final boolean ownExecutor;
+
+  private final int parallelism;
+
+  /**
+   * Parses on <code>parallelism</code> threads, the calling thread and
+   * <code>parallelism - 1</code> daemon threads of its own, which
+   * {@link #shutdown()} stops.
+   */
+  public SerializedPhpBatchParser(SerializedPhpParserConfig config,
+      int parallelism)
+  {
+    this(config, parallelism > 1 ? Executors.newFixedThreadPool(
+        parallelism - 1, new WorkerFactory()) : null, parallelism, true);
+  }
+
+  /**
+   * Parses on the calling thread and up to <code>parallelism - 1</code>
+   * tasks of the given executor, which is not shut down by this parser.
+   */
+  public SerializedPhpBatchParser(SerializedPhpParserConfig config,
+      ExecutorService executor, int parallelism)
+  {
+    this(config, executor, parallelism, false);
+  }
+
+  private SerializedPhpBatchParser(SerializedPhpParserConfig config,
+      ExecutorService executor, int parallelism, boolean ownExecutor)
+  {
+    if (parallelism < 1)
+    {
+      throw new IllegalArgumentException("parallelism " + parallelism
+          + " is less than 1");
+    }
+    this.config = config;
+    this.pool = new SerializedPhpParserPool(config, parallelism);
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.ownExecutor = ownExecutor;
+  }
+
+  /**
+   * @return one result per payload, in the order of the payloads
+   * @throws IllegalArgumentException
+   *           if a payload is not a String, byte[] or ByteBuffer
+   */
+  public List<Result> parse(Iterable<?> payloads) throws InterruptedException
+  {
+    return parse(payloads.iterator());
+  }
+
+  /**
+   * @return one result per payload, in the order of the payloads
+   * @throws IllegalArgumentException
+   *           if a payload is not a String, byte[] or ByteBuffer
+   */
+  public List<Result> parse(Iterator<?> payloads) throws InterruptedException
+  {
+    List<Object> inputs = new ArrayList<Object>();
+    while (payloads.hasNext())
+    {
+      Object payload = payloads.next();
+      if (!(payload instanceof String || payload instanceof byte[]
+          || payload instanceof ByteBuffer))
+      {
+        throw new IllegalArgumentException("Unsupported payload type "
+            + (payload == null ? null : payload.getClass().getName()));
+      }
+      inputs.add(payload);
+    }
+    final Object[] rows = inputs.toArray();
+    final Result[] results = new Result[rows.length];
+    run(new Batch(rows.length)
+    {
+      @Override
+      void parse(SerializedPhpParser parser, int index)
+      {
+        results[index] = parseOne(parser, rows[index]);
+      }
+    });
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Parses one large array by parsing its elements in parallel, see
+   * {@link #parseArray(byte[])}.
+   */
+  public Object parseArray(String input) throws SerializedPhpParserException,
+      InterruptedException
+  {
+    return parseArray(new StringPhpInput(input, this.config.isAssumeUTF8()),
+        input);
+  }
+
+  /**
+   * Parses one large array by parsing its elements in parallel. A
+   * structural pre-scan steps over the elements by their length prefixes
+   * and records where each one starts; then the workers parse the elements
+   * and the results are put into the array in order. The result is the
+   * same as that of a {@link SerializedPhpParser} with the same
+   * configuration.
+   * <p>
+   * References number the values of the whole input, so an element cannot
+   * be parsed on its own if the array contains any <code>R:</code> or
+   * <code>r:</code>. Such input, input that is not an array, lazy
+   * configurations and malformed input, for the exact error, are parsed
+   * sequentially on the calling thread. So are all arrays if the
+   * configuration limits the entries or strings of a payload, which are
+   * counted over the whole input; the depth limit holds for the elements
+   * as parts of the array.
+   */
+  public Object parseArray(byte[] input) throws SerializedPhpParserException,
+      InterruptedException
+  {
+    return parseArray(new ByteArrayPhpInput(input, 0, input.length,
+        this.config.isAssumeUTF8()), input);
+  }
+
+  /**
+   * Parses one large array by parsing its elements in parallel, see
+   * {@link #parseArray(byte[])}.
+   */
+  public Object parseArray(ByteBuffer input)
+      throws SerializedPhpParserException, InterruptedException
+  {
+    return parseArray(PhpInput.wrap(input, this.config.isAssumeUTF8()), input);
+  }
+
+  private Object parseArray(final PhpInput input, Object payload)
+      throws SerializedPhpParserException, InterruptedException
+  {
+    Elements elements = null;
+    if (!this.config.isLazy() && !this.config.hasSizeLimits()
+        && this.config.getMaxDepth() > 0 && this.parallelism > 1)
+    {
+      SerializedPhpParser parser = this.pool.borrow();
+      try
+      {
+        elements = scan(input, parser);
+      }
+      finally
+      {
+        this.pool.release(parser);
+      }
+    }
+    if (elements == null || elements.count < 2)
+    {
+      return parseSequentially(payload);
+    }
+    final long[] starts = elements.starts;
+    final Object[] values = new Object[elements.count];
+    final AtomicBoolean failed = new AtomicBoolean();
+    run(new Batch(elements.count)
+    {
+      @Override
+      void parse(SerializedPhpParser parser, int index)
+      {
+        try
+        {
+          values[index] = parser.parseElement(input, starts[index]);
+        }
+        catch (SerializedPhpParserException ex)
+        {
+          failed.set(true);
+          this.cancelled = true;
+        }
+      }
+    });
+    if (failed.get())
+    {
+      // fail with the same error as a sequential parse
+      return parseSequentially(payload);
+    }
+    return toArray(elements, values);
+  }
+
+  private Object parseSequentially(Object payload)
+      throws SerializedPhpParserException
+  {
+    if (payload instanceof String)
+    {
+      return this.pool.parse((String) payload);
+    }
+    if (payload instanceof byte[])
+    {
+      return this.pool.parse((byte[]) payload);
+    }
+    return this.pool.parse(((ByteBuffer) payload).duplicate());
+  }
+
+  /**
+   * Finds the keys and start positions of the elements of a top-level
+   * array, skipping the elements whose keys the parser rejects.
+   *
+   * @return null if the input is not an array without references that the
+   *         scan can read
+   */
+  private Elements scan(PhpInput input, SerializedPhpParser parser)
+  {
+    try
+    {
+      if (input.at(0) != 'a' || input.at(1) != ':')
+      {
+        return null;
+      }
+      PhpScanner scanner = new PhpScanner(input);
+      scanner.index = 2;
+      int length = scanner.readLength();
+      scanner.checkCount(length);
+      Elements elements = new Elements(length);
+      PhpSymbolTable symbols = this.config.getSymbolTable();
+      for (int i = 0; i < length; i++)
+      {
+        scanner.checkUnexpectedLength(scanner.index + 2);
+        int type = input.at(scanner.index);
+        scanner.index += 2;
+        Object key;
+        if (type == 'i')
+        {
+          key = Long.valueOf(scanner.readLong("integer"));
+        }
+        else if (type == 's')
+        {
+          int keyLength = scanner.readLength();
+          scanner.checkCount(keyLength);
+          key = scanner.readString(keyLength, symbols);
+        }
+        else
+        {
+          return null;
+        }
+        long start = scanner.index;
+        scanner.skipValue(false);
+        if (scanner.skippedReference)
+        {
+          return null;
+        }
+        if (parser.isAcceptedAttribute(key))
+        {
+          elements.keys[elements.count] = key;
+          elements.starts[elements.count++] = start;
+        }
+      }
+      return input.at(scanner.index) == '}' ? elements : null;
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Builds the array the parser would build from the parsed elements.
+   */
+  private Object toArray(Elements elements, Object[] values)
+  {
+    boolean immutable = this.config.isImmutable();
+    if (this.config.isCompactLists() && elements.isList())
+    {
+      PhpList list = new PhpList(elements.count);
+      for (int i = 0; i < elements.count; i++)
+      {
+        list.append(values[i]);
+      }
+      if (immutable)
+      {
+        list.freeze();
+      }
+      return list;
+    }
+    Map<Object, Object> map = this.config.getMapFactory().newMap(
+        elements.count);
+    for (int i = 0; i < elements.count; i++)
+    {
+      map.put(elements.keys[i], values[i]);
+    }
+    if (!immutable)
+    {
+      return map;
+    }
+    if (map instanceof CompactPhpMap)
+    {
+      ((CompactPhpMap) map).freeze();
+      return map;
+    }
+    return Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * Runs a batch on the calling thread and the helpers and waits for all
+   * of its chunks.
+   */
+  private void run(Batch batch) throws InterruptedException
+  {
+    if (batch.chunks == 0)
+    {
+      return;
+    }
+    int helpers = Math.min(this.parallelism, batch.chunks) - 1;
+    for (int i = 0; i < helpers && this.executor != null; i++)
+    {
+      this.executor.execute(batch);
+    }
+    batch.run();
+    try
+    {
+      batch.done.await();
+    }
+    catch (InterruptedException ex)
+    {
+      // let the workers skip the remaining chunks
+      batch.cancelled = true;
+      throw ex;
+    }
+    Throwable failure = batch.failure.get();
+    if (failure instanceof RuntimeException)
+    {
+      throw (RuntimeException) failure;
+    }
+    if (failure != null)
+    {
+      throw (Error) failure;
+    }
+  }
+
+  /**
+   * Stops the threads of this parser, if it created them.
+   */
+  public void shutdown()
+  {
+    if (this.ownExecutor && this.executor != null)
+    {
+      this.executor.shutdown();
+    }
+  }
+
+  private Result parseOne(SerializedPhpParser parser, Object payload)
+  {
+    try
+    {
+      if (payload instanceof String)
+      {
+        parser.reset((String) payload);
+      }
+      else if (payload instanceof byte[])
+      {
+        parser.reset((byte[]) payload);
+      }
+      else
+      {
+        parser.reset(((ByteBuffer) payload).duplicate());
+      }
+      return new Result(parser.parse(), null);
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      return new Result(null, ex);
+    }
+    catch (RuntimeException ex)
+    {
+      return new Result(null, new SerializedPhpParserException(
+          "Unexpected failure: " + ex, 0,
+          SerializedPhpParserException.UNEXPECTED_FAIL, ex));
+    }
+  }
+
+  /**
+   * Work of one call, split into chunks of consecutive indexes that the
+   * workers claim, each with one parser.
+   */
+  private abstract class Batch implements Runnable
+  {
+    final int count;
+
+    final int chunkSize;
+
+    final int chunks;
+
+    final AtomicInteger next = new AtomicInteger();
+
+    final CountDownLatch done;
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    volatile boolean cancelled;
+
+    Batch(int count)
+    {
+      this.count = count;
+      // several chunks per worker, so the workers finish at about the same
+      // time
+      int size = count / (SerializedPhpBatchParser.this.parallelism * 4);
+      this.chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, size));
+      this.chunks = (count + this.chunkSize - 1) / this.chunkSize;
+      this.done = new CountDownLatch(this.chunks);
+    }
+
+    abstract void parse(SerializedPhpParser parser, int index);
+
+    public void run()
+    {
+      SerializedPhpParser parser = null;
+      int chunk;
+      while ((chunk = this.next.getAndIncrement()) < this.chunks)
+      {
+        try
+        {
+          if (this.cancelled)
+          {
+            continue;
+          }
+          if (parser == null)
+          {
+            parser = SerializedPhpBatchParser.this.pool.borrow();
+          }
+          int end = Math.min(this.count, (chunk + 1) * this.chunkSize);
+          for (int i = chunk * this.chunkSize; i < end; i++)
+          {
+            parse(parser, i);
+            // do not keep the payload reachable from the parser
+            parser.clear();
+          }
+        }
+        catch (Throwable ex)
+        {
+          this.failure.compareAndSet(null, ex);
+          this.cancelled = true;
+          parser = null;
+        }
+        finally
+        {
+          this.done.countDown();
+        }
+      }
+      if (parser != null)
+      {
+        SerializedPhpBatchParser.this.pool.release(parser);
+      }
+    }
+  }
+
+  /**
+   * Keys and start positions of the elements of an array.
+   */
+  private static final class Elements
+  {
+    final Object[] keys;
+
+    final long[] starts;
+
+    int count;
+
+    Elements(int length)
+    {
+      this.keys = new Object[length];
+      this.starts = new long[length];
+    }
+
+    boolean isList()
+    {
+      for (int i = 0; i < this.count; i++)
+      {
+        if (!(this.keys[i] instanceof Long)
+            || ((Long) this.keys[i]).longValue() != i)
+        {
+          return false;
+        }
+      }
+      return this.count > 0;
+    }
+  }
+
+  /**
+   * The parsed value or the exception of one payload.
+   */
+  public static final class Result
+  {
+    private final Object value;
+
+    private final SerializedPhpParserException exception;
+
+    Result(Object value, SerializedPhpParserException exception)
+    {
+      this.value = value;
+      this.exception = exception;
+    }
+
+    public boolean isFailed()
+    {
+      return this.exception != null;
+    }
+
+    /**
+     * @return the parsed value, or null if the payload failed
+     */
+    public Object getValue()
+    {
+      return this.value;
+    }
+
+    /**
+     * @return the exception of a failed payload, or null
+     */
+    public SerializedPhpParserException getException()
+    {
+      return this.exception;
+    }
+  }
+
+  private static final class WorkerFactory implements ThreadFactory
+  {
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private final int pool = POOLS.incrementAndGet();
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    public Thread newThread(Runnable task)
+    {
+      Thread thread = new Thread(task, "serialized-php-batch-" + this.pool
+          + "-" + this.threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
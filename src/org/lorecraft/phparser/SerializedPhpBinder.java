@@ -0,0 +1,1350 @@
+package org.lorecraft.phparser;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binds serialized PHP data straight to Java objects, without building the
+ * generic tree of {@link SerializedPhpParser} first. The target type
+ * drives the scan: attributes of objects and string keys of arrays are
+ * matched against the fields of the target class in place, values are read
+ * from the input into the fields, and attributes without a field are
+ * stepped over without decoding them.
+ * <p>
+ * A class is bound to its non-static, non-transient fields, including the
+ * inherited ones, by field name. Protected and private attributes, which
+ * PHP names <code>"\0*\0name"</code> and <code>"\0Class\0name"</code>, bind
+ * to the field <code>name</code>. The accessors of a class are looked up
+ * once and cached; integer, float and boolean values are set on primitive
+ * fields and primitive arrays without boxing. Supported field types are
+ * the primitives and their wrappers, <code>String</code>, enums (by
+ * constant name), arrays, <code>List</code>, <code>Set</code>,
+ * <code>Collection</code>, <code>Map</code>, other bindable classes and
+ * <code>Object</code>, which receives the value as the parser returns it
+ * with maps for arrays. Bound classes need a constructor without
+ * arguments, which may be private.
+ * <p>
+ * {@link #register(String, Class)} maps PHP class names to Java classes, so
+ * an object is bound to the class of its name where the declared type is
+ * a supertype of it or <code>Object</code>. A reference binds to the
+ * object it points to if that has the required type, so shared and cyclic
+ * object graphs keep their identity; otherwise the value is bound again
+ * from its position in the input. A value that does not fit its target
+ * raises code {@link SerializedPhpParserException#TYPE_MISMATCH}. Arrays
+ * and objects nested deeper than {@link #setMaxDepth(int)} raise code
+ * {@link SerializedPhpParserException#TOO_DEEP}.
+ * <p>
+ * A binder is thread-safe; register the classes before binding. Example of
+ * use:
+ *
+ * <pre>
+ * SerializedPhpBinder binder = new SerializedPhpBinder();
+ * binder.register(&quot;User&quot;, User.class);
+ * User user = binder.bind(bytes, User.class);
+ * </pre>
+ */
+public class SerializedPhpBinder
+{
+  private static final int LONG = 1;
+
+  private static final int INT = 2;
+
+  private static final int SHORT = 3;
+
+  private static final int BYTE = 4;
+
+  private static final int DOUBLE = 5;
+
+  private static final int FLOAT = 6;
+
+  private static final int BOOLEAN = 7;
+
+  private static final int STRING = 8;
+
+  private static final int ENUM = 9;
+
+  private static final int GENERIC = 10;
+
+  private static final int ARRAY = 11;
+
+  private static final int LIST = 12;
+
+  private static final int SET = 13;
+
+  private static final int MAP = 14;
+
+  private static final int BEAN = 15;
+
+  /**
+   * frame kinds besides the container kinds: an array or object that is
+   * skipped, and a reference that is bound as a copy
+   */
+  private static final int SKIP = 16;
+
+  private static final int COPY = 17;
+
+  /**
+   * returned for a value whose frame was pushed to be bound by the loop
+   */
+  private static final Object OPENED = new Object();
+
+  /**
+   * returned for a value that is stored already or not bound
+   */
+  private static final Object NO_VALUE = new Object();
+
+  private final boolean assumeUTF8;
+
+  private final Map<String, Class<?>> phpClasses = new ConcurrentHashMap<String, Class<?>>();
+
+  private final Map<Class<?>, Target> targets = new ConcurrentHashMap<Class<?>, Target>();
+
+  private final Map<Class<?>, ClassBinding> bindings = new ConcurrentHashMap<Class<?>, ClassBinding>();
+
+  private final PhpSymbolTable symbols = new PhpSymbolTable();
+
+  private volatile int maxDepth = SerializedPhpParser.DEFAULT_MAX_DEPTH;
+
+  /**
+   * Creates a binder for UTF-8 input.
+   */
+  public SerializedPhpBinder()
+  {
+    this(true);
+  }
+
+  /**
+   * @param assumeUTF8
+   *          false to decode ISO-8859-1 input
+   */
+  public SerializedPhpBinder(boolean assumeUTF8)
+  {
+    this.assumeUTF8 = assumeUTF8;
+  }
+
+  /**
+   * Binds objects of the PHP class <code>phpClassName</code> to
+   * <code>type</code>.
+   *
+   * @return this binder
+   */
+  public SerializedPhpBinder register(String phpClassName, Class<?> type)
+  {
+    classBinding(type);
+    this.phpClasses.put(phpClassName, type);
+    return this;
+  }
+
+  /**
+   * Limits the nesting of arrays and objects, by default to
+   * {@link SerializedPhpParser#DEFAULT_MAX_DEPTH} levels.
+   */
+  public void setMaxDepth(int maxDepth)
+  {
+    this.maxDepth = SerializedPhpParser.checkLimit("maxDepth", maxDepth);
+  }
+
+  public <T> T bind(String input, Class<T> type)
+      throws SerializedPhpParserException
+  {
+    return bind(new StringPhpInput(input, this.assumeUTF8), type);
+  }
+
+  public <T> T bind(byte[] input, Class<T> type)
+      throws SerializedPhpParserException
+  {
+    return bind(new ByteArrayPhpInput(input, 0, input.length,
+        this.assumeUTF8), type);
+  }
+
+  /**
+   * Binds the remaining bytes of the buffer, without changing its position.
+   */
+  public <T> T bind(ByteBuffer input, Class<T> type)
+      throws SerializedPhpParserException
+  {
+    return bind(PhpInput.wrap(input, this.assumeUTF8), type);
+  }
+
+  private <T> T bind(PhpInput input, Class<T> type)
+      throws SerializedPhpParserException
+  {
+    Object value = new Binding(input).bind(new PhpScanner(input),
+        target(type));
+    if (type.isPrimitive())
+    {
+      // the wrapper of a primitive is returned as T
+      @SuppressWarnings("unchecked")
+      T boxed = (T) value;
+      return boxed;
+    }
+    return type.cast(value);
+  }
+
+  /**
+   * @return the fields of a class, looked up on first use
+   */
+  private ClassBinding classBinding(Class<?> type)
+  {
+    ClassBinding binding = this.bindings.get(type);
+    if (binding == null)
+    {
+      binding = new ClassBinding(type);
+      this.bindings.put(type, binding);
+    }
+    return binding;
+  }
+
+  /**
+   * @return the resolved type of a class, cached with its fields
+   */
+  private Target target(Class<?> type)
+  {
+    Target target = this.targets.get(type);
+    if (target == null)
+    {
+      target = target((Type) type);
+      this.targets.put(type, target);
+    }
+    return target;
+  }
+
+  private Target target(Type type)
+  {
+    if (type instanceof Class)
+    {
+      Class<?> raw = (Class<?>) type;
+      if (raw.isArray())
+      {
+        return new Target(ARRAY, raw, target((Type) raw.getComponentType()),
+            null);
+      }
+      return target(raw, Object.class, Object.class);
+    }
+    if (type instanceof ParameterizedType)
+    {
+      Class<?> raw = (Class<?>) ((ParameterizedType) type).getRawType();
+      Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+      if (Map.class.isAssignableFrom(raw) && arguments.length == 2)
+      {
+        return target(raw, arguments[0], arguments[1]);
+      }
+      return target(raw, Object.class, arguments.length == 1 ? arguments[0]
+          : Object.class);
+    }
+    if (type instanceof GenericArrayType)
+    {
+      Target element = target(((GenericArrayType) type)
+          .getGenericComponentType());
+      return new Target(ARRAY, Array.newInstance(element.type, 0).getClass(),
+          element, null);
+    }
+    if (type instanceof WildcardType)
+    {
+      return target(((WildcardType) type).getUpperBounds()[0]);
+    }
+    if (type instanceof TypeVariable)
+    {
+      return target(((TypeVariable<?>) type).getBounds()[0]);
+    }
+    throw new IllegalArgumentException("Unsupported type " + type);
+  }
+
+  /**
+   * @param element
+   *          the element type of collections, the value type of maps
+   */
+  private Target target(Class<?> raw, Type key, Type element)
+  {
+    int kind = kindOf(raw);
+    if (kind == LIST || kind == SET)
+    {
+      return new Target(kind, raw, target(element), null);
+    }
+    if (kind == MAP)
+    {
+      return new Target(kind, raw, target(element), target(key));
+    }
+    return new Target(kind, raw, null, null);
+  }
+
+  private static int kindOf(Class<?> raw)
+  {
+    if (raw == long.class || raw == Long.class)
+    {
+      return LONG;
+    }
+    if (raw == int.class || raw == Integer.class)
+    {
+      return INT;
+    }
+    if (raw == short.class || raw == Short.class)
+    {
+      return SHORT;
+    }
+    if (raw == byte.class || raw == Byte.class)
+    {
+      return BYTE;
+    }
+    if (raw == double.class || raw == Double.class)
+    {
+      return DOUBLE;
+    }
+    if (raw == float.class || raw == Float.class)
+    {
+      return FLOAT;
+    }
+    if (raw == boolean.class || raw == Boolean.class)
+    {
+      return BOOLEAN;
+    }
+    if (raw == String.class || raw == CharSequence.class)
+    {
+      return STRING;
+    }
+    if (raw.isEnum())
+    {
+      return ENUM;
+    }
+    if (raw == Object.class)
+    {
+      return GENERIC;
+    }
+    if (raw.isPrimitive())
+    {
+      throw new IllegalArgumentException("Unsupported type " + raw);
+    }
+    if (Collection.class.isAssignableFrom(raw) || raw == Iterable.class)
+    {
+      if (raw.isAssignableFrom(ArrayList.class))
+      {
+        return LIST;
+      }
+      if (raw.isAssignableFrom(LinkedHashSet.class))
+      {
+        return SET;
+      }
+      throw new IllegalArgumentException("Unsupported collection type "
+          + raw.getName());
+    }
+    if (Map.class.isAssignableFrom(raw))
+    {
+      if (raw.isAssignableFrom(LinkedHashMap.class))
+      {
+        return MAP;
+      }
+      throw new IllegalArgumentException("Unsupported map type "
+          + raw.getName());
+    }
+    return BEAN;
+  }
+
+  /**
+   * The state of one call: where the numbered values start and the objects
+   * bound to them, for references.
+   */
+  private final class Binding
+  {
+    private final PhpInput input;
+
+    /**
+     * input position of every numbered value, by reference index - 1
+     */
+    private long[] positions = new long[64];
+
+    /**
+     * the array or object bound to a numbered value, by reference index - 1
+     */
+    private Object[] bound = new Object[64];
+
+    private int numbered;
+
+    /**
+     * the reference index the next value gets
+     */
+    private int next = 1;
+
+    /**
+     * false while a value is bound again for a reference and its position
+     * is already known
+     */
+    private boolean first = true;
+
+    /**
+     * the arrays and objects that are being bound or skipped and the
+     * reference copies that are being bound, innermost last; frames are
+     * reused
+     */
+    private Frame[] frames = new Frame[16];
+
+    private int top;
+
+    /**
+     * the number of arrays and objects among the frames
+     */
+    private int depth;
+
+    /**
+     * the value read by readScalar, converted to its target kind
+     */
+    private long longValue;
+
+    private double doubleValue;
+
+    Binding(PhpInput input)
+    {
+      this.input = input;
+    }
+
+    /**
+     * Reads the type of the value at the scanner position and numbers it.
+     */
+    private int begin(PhpScanner scanner)
+        throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      int type = this.input.at(start);
+      if (PhpScanner.occupiesSlot(type))
+      {
+        if (this.first)
+        {
+          if (this.numbered == this.positions.length)
+          {
+            this.positions = Arrays.copyOf(this.positions, this.numbered * 2);
+            this.bound = Arrays.copyOf(this.bound, this.numbered * 2);
+          }
+          this.positions[this.numbered++] = start;
+        }
+        this.next++;
+      }
+      return type;
+    }
+
+    /**
+     * Reads an integer, float or boolean value into
+     * <code>longValue</code> or <code>doubleValue</code>, converted to the
+     * kind of the target.
+     *
+     * @return false, without moving the scanner, if the value is of another
+     *         type
+     */
+    private boolean readScalar(PhpScanner scanner, Target target)
+        throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      int type = this.input.at(start);
+      if (type != 'i' && type != 'd' && type != 'b')
+      {
+        return false;
+      }
+      begin(scanner);
+      scanner.index += 2;
+      int kind = target.kind;
+      if (type == 'i')
+      {
+        long value = scanner.readLong("integer");
+        if (kind == DOUBLE || kind == FLOAT)
+        {
+          this.doubleValue = value;
+          return true;
+        }
+        long min = kind == INT ? Integer.MIN_VALUE : kind == SHORT
+            ? Short.MIN_VALUE : kind == BYTE ? Byte.MIN_VALUE : Long.MIN_VALUE;
+        long max = kind == INT ? Integer.MAX_VALUE : kind == SHORT
+            ? Short.MAX_VALUE : kind == BYTE ? Byte.MAX_VALUE : Long.MAX_VALUE;
+        if (kind != BOOLEAN && value >= min && value <= max)
+        {
+          this.longValue = value;
+          return true;
+        }
+      }
+      else if (type == 'd')
+      {
+        double value = scanner.readDouble();
+        if (kind == DOUBLE || kind == FLOAT)
+        {
+          this.doubleValue = value;
+          return true;
+        }
+      }
+      else if (kind == BOOLEAN)
+      {
+        this.longValue = scanner.readBoolean().booleanValue() ? 1 : 0;
+        return true;
+      }
+      throw mismatch(start, target);
+    }
+
+    /**
+     * @return the boxed value of the last readScalar
+     */
+    private Object boxScalar(int kind)
+    {
+      switch (kind)
+      {
+      case LONG:
+        return Long.valueOf(this.longValue);
+      case INT:
+        return Integer.valueOf((int) this.longValue);
+      case SHORT:
+        return Short.valueOf((short) this.longValue);
+      case BYTE:
+        return Byte.valueOf((byte) this.longValue);
+      case DOUBLE:
+        return Double.valueOf(this.doubleValue);
+      case FLOAT:
+        return Float.valueOf((float) this.doubleValue);
+      default:
+        return Boolean.valueOf(this.longValue != 0);
+      }
+    }
+
+    /**
+     * Binds the value at the scanner position to the target type. Arrays
+     * and objects are not bound by recursion: opening one, or following a
+     * reference to a copy, pushes a frame on an explicit stack, and the
+     * loop binds the values of the innermost frame until it ends, so the
+     * nesting of the input is bounded by the depth limit instead of the
+     * thread stack.
+     */
+    Object bind(PhpScanner scanner, Target target)
+        throws SerializedPhpParserException
+    {
+      Object value = read(scanner, target);
+      while (true)
+      {
+        if (value != OPENED)
+        {
+          // the value is complete: continue after the references it is a
+          // copy for and store it in the enclosing array or object
+          while (this.top > 0 && this.frames[this.top - 1].kind == COPY)
+          {
+            Frame copy = this.frames[--this.top];
+            scanner.index = copy.position;
+            this.next = copy.next;
+            this.first = copy.first;
+          }
+          if (this.top == 0)
+          {
+            return value;
+          }
+          store(this.frames[this.top - 1], value);
+        }
+        Frame frame = this.frames[this.top - 1];
+        if (frame.kind == COPY)
+        {
+          value = read(scanner, frame.target);
+        }
+        else if (frame.remaining > 0)
+        {
+          frame.remaining--;
+          value = readElement(scanner, frame);
+        }
+        else
+        {
+          readEnd(scanner);
+          value = frame.value;
+          this.top--;
+        }
+      }
+    }
+
+    /**
+     * Binds a value that is not an array or object to the target type.
+     *
+     * @return the value, or OPENED if an array, object or reference copy
+     *         was pushed to be bound by the loop of
+     *         {@link #bind(PhpScanner, Target)}
+     */
+    private Object read(PhpScanner scanner, Target target)
+        throws SerializedPhpParserException
+    {
+      int kind = target.kind;
+      if (kind <= BOOLEAN && readScalar(scanner, target))
+      {
+        return boxScalar(kind);
+      }
+      long start = scanner.index;
+      int type = begin(scanner);
+      scanner.index += 2;
+      switch (type)
+      {
+      case 'N':
+        return null;
+      case 'R':
+      case 'r':
+        return readReference(scanner, target, start);
+      case 's':
+        if (kind == STRING || kind == GENERIC)
+        {
+          return readString(scanner);
+        }
+        if (kind == ENUM)
+        {
+          return readEnum(scanner, target, start);
+        }
+        break;
+      case 'i':
+        if (kind == GENERIC)
+        {
+          return Long.valueOf(scanner.readLong("integer"));
+        }
+        break;
+      case 'd':
+        if (kind == GENERIC)
+        {
+          return Double.valueOf(scanner.readDouble());
+        }
+        break;
+      case 'b':
+        if (kind == GENERIC)
+        {
+          return scanner.readBoolean();
+        }
+        break;
+      case 'a':
+      case 'O':
+        if (kind >= GENERIC)
+        {
+          return readContainer(scanner, target, type);
+        }
+        break;
+      default:
+        throw new SerializedPhpParserException("Encountered unknown type ["
+            + (char) type + "]", start,
+            SerializedPhpParserException.UNKNOWN_TYPE);
+      }
+      throw mismatch(start, target);
+    }
+
+    /**
+     * Creates the value of an array or object and pushes its frame.
+     */
+    private Object readContainer(PhpScanner scanner, Target target, int type)
+        throws SerializedPhpParserException
+    {
+      int index = this.next - 1;
+      String name = null;
+      if (type == 'O')
+      {
+        int nameLength = scanner.readLength();
+        scanner.checkCount(nameLength);
+        name = scanner.readClassName(nameLength,
+            SerializedPhpBinder.this.symbols);
+        if (target.kind == BEAN || target.kind == GENERIC)
+        {
+          Class<?> registered = SerializedPhpBinder.this.phpClasses.get(name);
+          if (registered != null && registered != target.type
+              && target.type.isAssignableFrom(registered))
+          {
+            target = target(registered);
+          }
+        }
+      }
+      int length = scanner.readLength();
+      scanner.checkCount(length);
+      Frame frame = open(scanner, target.kind, index, length);
+      switch (target.kind)
+      {
+      case BEAN:
+        ClassBinding binding = target.binding;
+        if (binding == null)
+        {
+          binding = classBinding(target.type);
+          target.binding = binding;
+        }
+        frame.value = binding.newInstance();
+        frame.fields = binding.fields;
+        frame.expected = 0;
+        break;
+      case LIST:
+      case SET:
+        frame.collection = target.kind == LIST ? new ArrayList<Object>(length)
+            : new LinkedHashSet<Object>(length * 4 / 3 + 1);
+        frame.value = frame.collection;
+        frame.element = target.element;
+        break;
+      case ARRAY:
+        frame.value = Array.newInstance(target.element.type, length);
+        frame.element = target.element;
+        break;
+      case MAP:
+        frame.map = new LinkedHashMap<Object, Object>(length * 4 / 3 + 1);
+        frame.value = frame.map;
+        frame.key = target.key;
+        frame.element = target.element;
+        frame.attributes = type == 'O';
+        break;
+      default:
+        frame.map = new LinkedHashMap<Object, Object>(length * 4 / 3 + 1);
+        frame.value = type == 'a' ? frame.map
+            : new SerializedPhpParser.PhpObject(name, frame.map);
+        frame.key = target;
+        frame.element = target;
+        frame.attributes = false;
+      }
+      remember(index, frame.value);
+      return OPENED;
+    }
+
+    /**
+     * Reads the key of the next element of an array or object and binds
+     * its value like {@link #read(PhpScanner, Target)}.
+     *
+     * @return the value to store, or NO_VALUE if it is stored already or
+     *         not bound
+     */
+    private Object readElement(PhpScanner scanner, Frame frame)
+        throws SerializedPhpParserException
+    {
+      switch (frame.kind)
+      {
+      case BEAN:
+        int field = findField(scanner, frame.fields, frame.expected);
+        if (field < 0)
+        {
+          return skip(scanner);
+        }
+        frame.expected = field + 1;
+        frame.field = frame.fields[field];
+        return readField(scanner, frame.value, frame.field);
+      case ARRAY:
+        skipKey(scanner);
+        return readArrayElement(scanner, frame);
+      case MAP:
+      case GENERIC:
+        frame.name = readKey(scanner, frame.key, frame.attributes);
+        return read(scanner, frame.element);
+      case SKIP:
+        skipKey(scanner);
+        return skip(scanner);
+      default:
+        skipKey(scanner);
+        return read(scanner, frame.element);
+      }
+    }
+
+    /**
+     * Reads an attribute name or array key and looks up its field,
+     * starting at the field that follows the previous one, as attributes
+     * usually come in the order of the fields.
+     *
+     * @return the index of the field or -1
+     */
+    private int findField(PhpScanner scanner, FieldBinding[] fields,
+        int expected) throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      if (this.input.at(start) != 's')
+      {
+        skipKey(scanner);
+        return -1;
+      }
+      scanner.index += 2;
+      int length = scanner.readLength();
+      scanner.checkCount(length);
+      long nameStart = scanner.index;
+      long end = this.input.stringEnd(nameStart, length);
+      scanner.checkStringEnd(end);
+      scanner.index = end + 2;
+      nameStart = demangle(nameStart, end);
+      for (int i = 0; i < fields.length; i++)
+      {
+        int field = (expected + i) % fields.length;
+        if (this.input.regionEquals(nameStart, end, fields[field].name))
+        {
+          return field;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return the start of the property name in an attribute name between
+     *         <code>start</code> and <code>end</code>
+     */
+    private long demangle(long start, long end)
+        throws SerializedPhpParserException
+    {
+      if (start < end && this.input.at(start) == 0)
+      {
+        for (long position = start + 1; position < end; position++)
+        {
+          if (this.input.at(position) == 0)
+          {
+            return position + 1;
+          }
+        }
+      }
+      return start;
+    }
+
+    /**
+     * Sets an integer, float or boolean value on a primitive field without
+     * boxing it.
+     */
+    private Object readField(PhpScanner scanner, Object bean,
+        FieldBinding binding) throws SerializedPhpParserException
+    {
+      Field field = binding.field;
+      Target target = binding.target;
+      if (!target.primitive || !readScalar(scanner, target))
+      {
+        return read(scanner, target);
+      }
+      try
+      {
+        switch (target.kind)
+        {
+        case LONG:
+          field.setLong(bean, this.longValue);
+          break;
+        case INT:
+          field.setInt(bean, (int) this.longValue);
+          break;
+        case SHORT:
+          field.setShort(bean, (short) this.longValue);
+          break;
+        case BYTE:
+          field.setByte(bean, (byte) this.longValue);
+          break;
+        case DOUBLE:
+          field.setDouble(bean, this.doubleValue);
+          break;
+        case FLOAT:
+          field.setFloat(bean, (float) this.doubleValue);
+          break;
+        default:
+          field.setBoolean(bean, this.longValue != 0);
+        }
+      }
+      catch (IllegalAccessException ex)
+      {
+        // the field was made accessible
+        throw new IllegalStateException(ex);
+      }
+      return NO_VALUE;
+    }
+
+    /**
+     * Sets an integer, float or boolean element of a primitive array
+     * without boxing it.
+     */
+    private Object readArrayElement(PhpScanner scanner, Frame frame)
+        throws SerializedPhpParserException
+    {
+      Target element = frame.element;
+      if (!element.primitive || !readScalar(scanner, element))
+      {
+        return read(scanner, element);
+      }
+      Object array = frame.value;
+      int i = frame.length - frame.remaining - 1;
+      switch (element.kind)
+      {
+      case LONG:
+        ((long[]) array)[i] = this.longValue;
+        break;
+      case INT:
+        ((int[]) array)[i] = (int) this.longValue;
+        break;
+      case SHORT:
+        ((short[]) array)[i] = (short) this.longValue;
+        break;
+      case BYTE:
+        ((byte[]) array)[i] = (byte) this.longValue;
+        break;
+      case DOUBLE:
+        ((double[]) array)[i] = this.doubleValue;
+        break;
+      case FLOAT:
+        ((float[]) array)[i] = (float) this.doubleValue;
+        break;
+      default:
+        ((boolean[]) array)[i] = this.longValue != 0;
+      }
+      return NO_VALUE;
+    }
+
+    /**
+     * Stores the value of the last element that was read into its array
+     * or object.
+     */
+    private void store(Frame frame, Object value)
+    {
+      if (value == NO_VALUE)
+      {
+        return;
+      }
+      switch (frame.kind)
+      {
+      case BEAN:
+        if (value != null || !frame.field.target.primitive)
+        {
+          try
+          {
+            frame.field.field.set(frame.value, value);
+          }
+          catch (IllegalAccessException ex)
+          {
+            // the field was made accessible
+            throw new IllegalStateException(ex);
+          }
+        }
+        break;
+      case ARRAY:
+        if (value != null || !frame.element.primitive)
+        {
+          Array.set(frame.value, frame.length - frame.remaining - 1, value);
+        }
+        break;
+      case MAP:
+      case GENERIC:
+        frame.map.put(frame.name, value);
+        break;
+      default:
+        frame.collection.add(value);
+      }
+    }
+
+    /**
+     * Reads an array key or attribute name as a Long or String, or as the
+     * key type of a map.
+     *
+     * @param object
+     *          true to strip the class prefix from attribute names
+     */
+    private Object readKey(PhpScanner scanner, Target target, boolean object)
+        throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      int type = this.input.at(start);
+      scanner.index += 2;
+      if (type == 'i')
+      {
+        long key = scanner.readLong("integer");
+        if (target.kind == STRING)
+        {
+          return Long.toString(key);
+        }
+        if (target.kind == INT && key == (int) key)
+        {
+          return Integer.valueOf((int) key);
+        }
+        if (target.kind == LONG || target.kind == GENERIC)
+        {
+          return Long.valueOf(key);
+        }
+      }
+      else if (type == 's')
+      {
+        if (target.kind == STRING || target.kind == GENERIC)
+        {
+          int length = scanner.readLength();
+          scanner.checkCount(length);
+          long end = this.input.stringEnd(scanner.index, length);
+          scanner.checkStringEnd(end);
+          long nameStart = object ? demangle(scanner.index, end)
+              : scanner.index;
+          scanner.index = end + 2;
+          return SerializedPhpBinder.this.symbols.intern(this.input,
+              nameStart, end);
+        }
+        if (target.kind == ENUM)
+        {
+          return readEnum(scanner, target, start);
+        }
+      }
+      else
+      {
+        throw new SerializedPhpParserException("Unsupported key type ["
+            + (char) type + "]", start,
+            SerializedPhpParserException.UNKNOWN_TYPE);
+      }
+      throw mismatch(start, target);
+    }
+
+    private String readString(PhpScanner scanner)
+        throws SerializedPhpParserException
+    {
+      int length = scanner.readLength();
+      scanner.checkCount(length);
+      return scanner.readString(length);
+    }
+
+    private Object readEnum(PhpScanner scanner, Target target, long start)
+        throws SerializedPhpParserException
+    {
+      String name = readString(scanner);
+      for (Object constant : target.type.getEnumConstants())
+      {
+        if (((Enum<?>) constant).name().equals(name))
+        {
+          return constant;
+        }
+      }
+      throw mismatch(start, target);
+    }
+
+    private Object readReference(PhpScanner scanner, Target target,
+        long start) throws SerializedPhpParserException
+    {
+      long index = scanner.readLong("Reference");
+      if (index < 1 || index > this.numbered)
+      {
+        throw new SerializedPhpParserException(
+            "Out of range reference index: " + index, start,
+            SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+      }
+      Object bound = this.bound[(int) index - 1];
+      if (bound != null
+          && (target.kind == GENERIC || target.type.isInstance(bound)))
+      {
+        return bound;
+      }
+      for (int i = 0; i < this.top; i++)
+      {
+        Frame frame = this.frames[i];
+        if (frame.kind != COPY && frame.index == index)
+        {
+          throw new SerializedPhpParserException(
+              "Circular reference to index " + index
+                  + " cannot be bound to " + target.type.getName(), start,
+              SerializedPhpParserException.CIRCULAR_REFERENCE);
+        }
+      }
+      // bind a copy of the value, numbered like the original, and continue
+      // after the reference when it is complete
+      Frame copy = push(COPY);
+      copy.position = scanner.index;
+      copy.next = this.next;
+      copy.first = this.first;
+      copy.target = target;
+      scanner.index = this.positions[(int) index - 1];
+      this.next = (int) index;
+      this.first = false;
+      return OPENED;
+    }
+
+    /**
+     * Steps over a value that is not bound, numbering the values in it for
+     * later references. An array or object is pushed and its values are
+     * skipped by the loop of {@link #bind(PhpScanner, Target)}.
+     *
+     * @return NO_VALUE or OPENED
+     */
+    private Object skip(PhpScanner scanner)
+        throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      int type = begin(scanner);
+      if (type != 'a' && type != 'O')
+      {
+        // the value was numbered by begin
+        scanner.index = start;
+        this.next -= PhpScanner.occupiesSlot(type) ? 1 : 0;
+        this.next += scanner.skipValue(false);
+        return NO_VALUE;
+      }
+      scanner.index += 2;
+      if (type == 'O')
+      {
+        int nameLength = scanner.readLength();
+        scanner.checkCount(nameLength);
+        scanner.skipClassName(nameLength);
+      }
+      int length = scanner.readLength();
+      scanner.checkCount(length);
+      open(scanner, SKIP, this.next - 1, length).value = NO_VALUE;
+      return OPENED;
+    }
+
+    /**
+     * Steps over an array key, an integer or a string like the keys of
+     * {@link #readKey(PhpScanner, Target, boolean)}.
+     */
+    private void skipKey(PhpScanner scanner)
+        throws SerializedPhpParserException
+    {
+      long start = scanner.index;
+      scanner.checkUnexpectedLength(start + 2);
+      int type = this.input.at(start);
+      if (type != 'i' && type != 's')
+      {
+        throw new SerializedPhpParserException("Unsupported key type ["
+            + (char) type + "]", start,
+            SerializedPhpParserException.UNKNOWN_TYPE);
+      }
+      scanner.skipValue(true);
+    }
+
+    private void remember(int index, Object value)
+    {
+      if (this.first)
+      {
+        this.bound[index - 1] = value;
+      }
+    }
+
+    /**
+     * Pushes the frame of an array or object with the given reference
+     * index.
+     */
+    private Frame open(PhpScanner scanner, int kind, int index, int length)
+        throws SerializedPhpParserException
+    {
+      int maxDepth = SerializedPhpBinder.this.maxDepth;
+      if (this.depth >= maxDepth)
+      {
+        throw new SerializedPhpParserException("Arrays and objects are"
+            + " nested deeper than " + maxDepth + " levels!", scanner.index,
+            SerializedPhpParserException.TOO_DEEP);
+      }
+      Frame frame = push(kind);
+      frame.index = index;
+      frame.length = length;
+      frame.remaining = length;
+      this.depth++;
+      return frame;
+    }
+
+    private Frame push(int kind)
+    {
+      if (this.top == this.frames.length)
+      {
+        this.frames = Arrays.copyOf(this.frames, this.top * 2);
+      }
+      Frame frame = this.frames[this.top];
+      if (frame == null)
+      {
+        frame = new Frame();
+        this.frames[this.top] = frame;
+      }
+      this.top++;
+      frame.kind = kind;
+      return frame;
+    }
+
+    private void readEnd(PhpScanner scanner)
+        throws SerializedPhpParserException
+    {
+      if (this.input.at(scanner.index) != '}')
+      {
+        throw new SerializedPhpParserException(
+            "Unexpected end of serialized Array, missing }!", scanner.index,
+            SerializedPhpParserException.MISSING_CLOSER_STRING);
+      }
+      scanner.index++;
+      this.depth--;
+    }
+
+    private SerializedPhpParserException mismatch(long start, Target target)
+        throws SerializedPhpParserException
+    {
+      return new SerializedPhpParserException("Cannot bind ["
+          + (char) this.input.at(start) + "] to " + target.type.getName(),
+          start, SerializedPhpParserException.TYPE_MISMATCH);
+    }
+  }
+
+  /**
+   * An array or object that is being bound or skipped, or a reference that
+   * is bound as a copy.
+   */
+  private static final class Frame
+  {
+    int kind;
+
+    /**
+     * the reference index of an array or object
+     */
+    int index;
+
+    int length;
+
+    int remaining;
+
+    /**
+     * the bean, collection, array or map that is bound
+     */
+    Object value;
+
+    Collection<Object> collection;
+
+    Map<Object, Object> map;
+
+    /**
+     * the key and element types of maps, the element type of collections
+     * and arrays
+     */
+    Target key;
+
+    Target element;
+
+    /**
+     * true to strip the class prefix from the attribute names of a map
+     */
+    boolean attributes;
+
+    /**
+     * the key of the element that is being bound into a map
+     */
+    Object name;
+
+    /**
+     * the fields of a bean, the field that follows the last one that was
+     * found, and the field that is being bound
+     */
+    FieldBinding[] fields;
+
+    int expected;
+
+    FieldBinding field;
+
+    /**
+     * a copy: its target and the state to continue with after it
+     */
+    Target target;
+
+    long position;
+
+    int next;
+
+    boolean first;
+  }
+
+  /**
+   * A declared type, resolved once.
+   */
+  private static final class Target
+  {
+    final int kind;
+
+    final Class<?> type;
+
+    final boolean primitive;
+
+    /**
+     * the element type of arrays and collections, the value type of maps
+     */
+    final Target element;
+
+    final Target key;
+
+    /**
+     * the fields of a bean type, set on first use
+     */
+    ClassBinding binding;
+
+    Target(int kind, Class<?> type, Target element, Target key)
+    {
+      this.kind = kind;
+      this.type = type;
+      this.primitive = type.isPrimitive();
+      this.element = element;
+      this.key = key;
+    }
+  }
+
+  private final class ClassBinding
+  {
+    final Constructor<?> constructor;
+
+    final FieldBinding[] fields;
+
+    ClassBinding(Class<?> type)
+    {
+      if (type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+      {
+        throw new IllegalArgumentException("Cannot bind to abstract type "
+            + type.getName());
+      }
+      try
+      {
+        this.constructor = type.getDeclaredConstructor();
+      }
+      catch (NoSuchMethodException ex)
+      {
+        throw new IllegalArgumentException(type.getName()
+            + " has no constructor without arguments");
+      }
+      this.constructor.setAccessible(true);
+      List<FieldBinding> fields = new ArrayList<FieldBinding>();
+      for (Class<?> c = type; c != null && c != Object.class; c = c
+          .getSuperclass())
+      {
+        for (Field field : c.getDeclaredFields())
+        {
+          int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+              || field.isSynthetic())
+          {
+            continue;
+          }
+          field.setAccessible(true);
+          fields.add(new FieldBinding(field, target(field.getGenericType())));
+        }
+      }
+      this.fields = fields.toArray(new FieldBinding[fields.size()]);
+    }
+
+    Object newInstance()
+    {
+      try
+      {
+        return this.constructor.newInstance();
+      }
+      catch (InstantiationException ex)
+      {
+        throw new IllegalArgumentException(ex);
+      }
+      catch (IllegalAccessException ex)
+      {
+        throw new IllegalStateException(ex);
+      }
+      catch (InvocationTargetException ex)
+      {
+        throw new IllegalArgumentException("Constructor of "
+            + this.constructor.getDeclaringClass().getName() + " failed",
+            ex.getCause());
+      }
+    }
+  }
+
+  private static final class FieldBinding
+  {
+    final Field field;
+
+    final String name;
+
+    final Target target;
+
+    FieldBinding(Field field, Target target)
+    {
+      this.field = field;
+      this.name = field.getName();
+      this.target = target;
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package org.lorecraft.phparser;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the values at a path from serialized PHP data without parsing
+ * the rest of it. Arrays and objects on the path are walked entry by entry;
+ * entries whose key does not match are stepped over by their length
+ * prefixes, and only the matching values are decoded.
+ * <p>
+ * A path is a sequence of array keys or attribute names separated by
+ * <code>.</code>. <code>[n]</code> selects the integer key n, and
+ * <code>*</code> or <code>[*]</code> selects every entry:
+ *
+ * <pre>
+ * SerializedPhpExtractor skus = SerializedPhpExtractor
+ *     .compile(&quot;user.cart.items[*].sku&quot;);
+ * List&lt;Object&gt; values = skus.extract(input);
+ * </pre>
+ *
+ * A name also matches private and protected attributes, whose serialized
+ * names are prefixed with their class or <code>*</code>, and a name that
+ * is an integer also matches the integer key. Names cannot contain
+ * <code>.</code> or <code>[</code>.
+ * <p>
+ * The values are decoded like {@link SerializedPhpParser} does, and
+ * references resolve to the same values. A reference into a value that was
+ * stepped over decodes that value from the input again, which is not
+ * possible for stream input.
+ * <p>
+ * A compiled extractor is immutable and can be shared between threads.
+ */
+public final class SerializedPhpExtractor
+{
+  private final String path;
+
+  private final Segment[] segments;
+
+  private SerializedPhpExtractor(String path, Segment[] segments)
+  {
+    this.path = path;
+    this.segments = segments;
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *           if the path is malformed
+   */
+  public static SerializedPhpExtractor compile(String path)
+  {
+    List<Segment> segments = new ArrayList<Segment>();
+    int length = path.length();
+    int i = 0;
+    while (i < length)
+    {
+      char c = path.charAt(i);
+      if (c == '[')
+      {
+        int close = path.indexOf(']', i);
+        if (close == -1)
+        {
+          throw invalidPath(path, i);
+        }
+        String index = path.substring(i + 1, close);
+        if (index.equals("*"))
+        {
+          segments.add(Segment.ANY);
+        }
+        else
+        {
+          try
+          {
+            segments.add(new Segment(null, Long.valueOf(index)));
+          }
+          catch (NumberFormatException ex)
+          {
+            throw invalidPath(path, i);
+          }
+        }
+        i = close + 1;
+        continue;
+      }
+      if (c == '.')
+      {
+        if (i == 0)
+        {
+          throw invalidPath(path, i);
+        }
+        i++;
+      }
+      int end = i;
+      while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[')
+      {
+        end++;
+      }
+      if (end == i)
+      {
+        throw invalidPath(path, i);
+      }
+      segments.add(Segment.name(path.substring(i, end)));
+      i = end;
+    }
+    return new SerializedPhpExtractor(path, segments
+        .toArray(new Segment[segments.size()]));
+  }
+
+  public static List<Object> extract(String input, String path)
+      throws SerializedPhpParserException
+  {
+    return compile(path).extract(input);
+  }
+
+  public static List<Object> extract(byte[] input, String path)
+      throws SerializedPhpParserException
+  {
+    return compile(path).extract(input);
+  }
+
+  /**
+   * @return the matching values in input order
+   */
+  public List<Object> extract(String input) throws SerializedPhpParserException
+  {
+    return extract(new StringPhpInput(input, true));
+  }
+
+  public List<Object> extract(byte[] input) throws SerializedPhpParserException
+  {
+    return extract(new ByteArrayPhpInput(input, 0, input.length, true));
+  }
+
+  public List<Object> extract(ByteBuffer input)
+      throws SerializedPhpParserException
+  {
+    return extract(PhpInput.wrap(input, true));
+  }
+
+  public List<Object> extract(InputStream input)
+      throws SerializedPhpParserException
+  {
+    return extract(new StreamPhpInput(input, true,
+        StreamPhpInput.DEFAULT_BUFFER_SIZE));
+  }
+
+  List<Object> extract(PhpInput input) throws SerializedPhpParserException
+  {
+    List<Object> result = new ArrayList<Object>();
+    walk(new SerializedPhpParser(input), 0, result);
+    return result;
+  }
+
+  private void walk(SerializedPhpParser parser, int segment,
+      List<Object> result) throws SerializedPhpParserException
+  {
+    if (segment == this.segments.length)
+    {
+      result.add(parser.parseValue());
+      return;
+    }
+    PhpScanner scanner = parser.scanner;
+    long position = scanner.index;
+    scanner.checkUnexpectedLength(position + 2);
+    int type = scanner.input.at(position);
+    if (type == 'R' || type == 'r')
+    {
+      select(parser.parseValue(), segment, result);
+      return;
+    }
+    if (type != 'a' && type != 'O')
+    {
+      parser.skipValue();
+      return;
+    }
+    parser.skipped(position, 1);
+    scanner.index += 2;
+    if (type == 'O')
+    {
+      int nameLen = scanner.readLength();
+      scanner.checkCount(nameLen);
+      scanner.skipClassName(nameLen);
+    }
+    int length = scanner.readLength();
+    scanner.checkCount(length);
+    Segment match = this.segments[segment];
+    for (int i = 0; i < length; i++)
+    {
+      if (matchKey(scanner, match))
+      {
+        walk(parser, segment + 1, result);
+      }
+      else
+      {
+        parser.skipValue();
+      }
+    }
+    if (scanner.input.at(scanner.index) != '}')
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Array, missing }!", scanner.index,
+          SerializedPhpParserException.MISSING_CLOSER_STRING);
+    }
+    scanner.index++;
+  }
+
+  /**
+   * Reads a key and compares it with the segment without decoding it.
+   */
+  private static boolean matchKey(PhpScanner scanner, Segment segment)
+      throws SerializedPhpParserException
+  {
+    long start = scanner.index;
+    scanner.checkUnexpectedLength(start + 2);
+    int type = scanner.input.at(start);
+    scanner.index += 2;
+    if (type == 'i')
+    {
+      return segment.matches(scanner.readLong("integer"));
+    }
+    if (type != 's')
+    {
+      throw new SerializedPhpParserException("Encountered unknown key type ["
+          + (char) type + "]", start, SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+    int strLen = scanner.readLength();
+    scanner.checkCount(strLen);
+    long begin = scanner.index;
+    long end = scanner.input.stringEnd(begin, strLen);
+    boolean matches = segment.matches(scanner.input, begin, end);
+    scanner.checkStringEnd(end);
+    scanner.index = end + 2;
+    return matches;
+  }
+
+  /**
+   * Continues the path on a value that is already decoded, the target of a
+   * reference.
+   */
+  private void select(Object value, int segment, List<Object> result)
+  {
+    if (segment == this.segments.length)
+    {
+      result.add(value);
+      return;
+    }
+    if (value instanceof SerializedPhpParser.PhpObject)
+    {
+      value = ((SerializedPhpParser.PhpObject) value).attributes;
+    }
+    if (value instanceof Map)
+    {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+      {
+        if (this.segments[segment].matches(entry.getKey()))
+        {
+          select(entry.getValue(), segment + 1, result);
+        }
+      }
+    }
+  }
+
+  private static IllegalArgumentException invalidPath(String path, int index)
+  {
+    return new IllegalArgumentException("Invalid path \"" + path
+        + "\" at index " + index);
+  }
+
+  @Override
+  public String toString()
+  {
+    return this.path;
+  }
+
+  /**
+   * One step of a path: a name, an integer key or any key.
+   */
+  private static final class Segment
+  {
+    static final Segment ANY = new Segment(null, null);
+
+    final String name;
+
+    /**
+     * the integer key, also for names that are integers
+     */
+    final Long index;
+
+    Segment(String name, Long index)
+    {
+      this.name = name;
+      this.index = index;
+    }
+
+    static Segment name(String name)
+    {
+      if (name.equals("*"))
+      {
+        return ANY;
+      }
+      Long index = null;
+      if (name.equals(Long.toString(parseLong(name))))
+      {
+        index = Long.valueOf(name);
+      }
+      return new Segment(name, index);
+    }
+
+    private static long parseLong(String name)
+    {
+      try
+      {
+        return Long.parseLong(name);
+      }
+      catch (NumberFormatException ex)
+      {
+        return Long.MIN_VALUE;
+      }
+    }
+
+    boolean matches(long key)
+    {
+      return this == ANY || (this.index != null && this.index.longValue() == key);
+    }
+
+    boolean matches(PhpInput input, long start, long end)
+        throws SerializedPhpParserException
+    {
+      if (this == ANY)
+      {
+        return true;
+      }
+      if (this.name == null)
+      {
+        return false;
+      }
+      if (input.regionEquals(start, end, this.name))
+      {
+        return true;
+      }
+      // private and protected attributes are serialized as \0Class\0name
+      return end > start && input.at(start) == 0
+          && isMangledName(input.substring(start, end));
+    }
+
+    boolean matches(Object key)
+    {
+      if (this == ANY)
+      {
+        return true;
+      }
+      if (key instanceof Long)
+      {
+        return matches(((Long) key).longValue());
+      }
+      return this.name != null && key instanceof String
+          && (key.equals(this.name) || isMangledName((String) key));
+    }
+
+    private boolean isMangledName(String key)
+    {
+      int nameStart = key.length() - this.name.length();
+      return key.length() > 0 && key.charAt(0) == 0 && nameStart > 1
+          && key.charAt(nameStart - 1) == 0 && key.endsWith(this.name);
+    }
+  }
+}
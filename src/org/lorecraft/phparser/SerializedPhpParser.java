@@ -23,6 +23,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 package org.lorecraft.phparser;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -43,355 +48,1521 @@ import java.util.regex.Pattern;
  *
  * The <code>result</code> object will be a <code>PhpObject</code>
  * with the name "TypeName" and the attribute "foo" = "bar".
+ * <p>
+ * Payloads read from a cache, a socket or a database column can be
+ * parsed straight from their raw bytes with the <code>byte[]</code> and
+ * <code>ByteBuffer</code> constructors. PHP string lengths are byte
+ * counts, so this avoids decoding the whole payload to a
+ * <code>String</code> first; only the string values are decoded. Large
+ * payloads can be parsed from an <code>InputStream</code> or a
+ * <code>ReadableByteChannel</code> without buffering them completely.
  */
 public class SerializedPhpParser
 {
 
-  private final String input;
+  final PhpScanner scanner;
+
+  private final ArrayList<Object> refArray = new ArrayList<Object>();
+
+  /**
+   * null if all attributes are accepted
+   */
+  private AttributeFilter acceptedAttributes = null;
 
-  private final int inputLength;
+  private boolean lazy;
 
-  private int index;
+  private boolean compactLists;
 
-  private boolean assumeUTF8 = true;
+  private PhpMapFactory mapFactory = PhpMapFactory.COMPACT;
 
-  private final ArrayList<Object> refArray = new ArrayList<Object>();
+  /**
+   * null if keys and class names are not interned
+   */
+  private PhpSymbolTable symbols;
+
+  /**
+   * null if object shapes are not cached
+   */
+  private PhpShapeCache shapes;
+
+  private boolean immutable;
+
+  private int maxDepth = DEFAULT_MAX_DEPTH;
+
+  private long maxElements = Long.MAX_VALUE;
+
+  private int maxStringBytes = Integer.MAX_VALUE;
+
+  private long maxTotalBytes = Long.MAX_VALUE;
+
+  /**
+   * the array entries and object attributes of the current payload
+   */
+  private long elements;
+
+  /**
+   * the bytes or chars of the strings decoded from the current payload
+   */
+  private long totalBytes;
+
+  /**
+   * the arrays and objects being parsed, innermost last
+   */
+  private Frame[] frames = new Frame[16];
+
+  private int depth;
+
+  /**
+   * the levels of nesting around the value being parsed that are not on
+   * the stack
+   */
+  private int outerDepth;
+
+  private final boolean assumeUTF8;
+
+  /**
+   * the nesting limit of arrays and objects unless set otherwise, the
+   * default <code>unserialize_max_depth</code> of PHP
+   */
+  public static final int DEFAULT_MAX_DEPTH = 4096;
+
+  /**
+   * largest map allocated up front for an array or object in a stream
+   */
+  private static final int STREAM_MAP_CAPACITY = 1024;
 
-  private Pattern acceptedAttributeNameRegex = null;
+  private static final PhpInput NO_INPUT = new ByteArrayPhpInput(new byte[0],
+      0, 0, true);
 
   public SerializedPhpParser(String input)
   {
-    this.input = input;
-    this.inputLength = input.length();
+    this(input, true);
   }
 
   public SerializedPhpParser(String input, boolean assumeUTF8)
   {
-    this.input = input;
-    this.inputLength = input.length();
+    this(new StringPhpInput(input, assumeUTF8), assumeUTF8);
+  }
+
+  /**
+   * Parses UTF-8 encoded bytes.
+   */
+  public SerializedPhpParser(byte[] input)
+  {
+    this(input, 0, input.length, true);
+  }
+
+  /**
+   * @param assumeUTF8
+   *          decode strings as UTF-8 if true, as ISO-8859-1 otherwise
+   */
+  public SerializedPhpParser(byte[] input, boolean assumeUTF8)
+  {
+    this(input, 0, input.length, assumeUTF8);
+  }
+
+  /**
+   * Parses <code>length</code> UTF-8 encoded bytes starting at
+   * <code>offset</code>. Error positions are relative to
+   * <code>offset</code>.
+   */
+  public SerializedPhpParser(byte[] input, int offset, int length)
+  {
+    this(input, offset, length, true);
+  }
+
+  public SerializedPhpParser(byte[] input, int offset, int length,
+      boolean assumeUTF8)
+  {
+    this(new ByteArrayPhpInput(input, offset, length, assumeUTF8), assumeUTF8);
+  }
+
+  /**
+   * Parses the remaining bytes of the buffer as UTF-8. The position of the
+   * buffer is not changed.
+   */
+  public SerializedPhpParser(ByteBuffer input)
+  {
+    this(input, true);
+  }
+
+  public SerializedPhpParser(ByteBuffer input, boolean assumeUTF8)
+  {
+    this(PhpInput.wrap(input, assumeUTF8), assumeUTF8);
+  }
+
+  /**
+   * Parses UTF-8 encoded bytes read from a stream through a fixed-size
+   * buffer. Error positions are absolute offsets in the stream.
+   */
+  public SerializedPhpParser(InputStream input)
+  {
+    this(input, true, StreamPhpInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize
+   *          size of the read buffer, at least 64 bytes and larger than the
+   *          longest number in the input; string bodies may be longer
+   */
+  public SerializedPhpParser(InputStream input, boolean assumeUTF8,
+      int bufferSize)
+  {
+    this(new StreamPhpInput(input, assumeUTF8, bufferSize), assumeUTF8);
+  }
+
+  /**
+   * Parses UTF-8 encoded bytes read from a blocking channel through a
+   * fixed-size buffer. Error positions are absolute offsets in the channel.
+   */
+  public SerializedPhpParser(ReadableByteChannel input)
+  {
+    this(input, true, StreamPhpInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  public SerializedPhpParser(ReadableByteChannel input, boolean assumeUTF8,
+      int bufferSize)
+  {
+    this(new StreamPhpInput(input, assumeUTF8, bufferSize), assumeUTF8);
+  }
+
+  SerializedPhpParser(PhpInput input)
+  {
+    this(input, true);
+  }
+
+  private SerializedPhpParser(PhpInput input, boolean assumeUTF8)
+  {
+    this.scanner = new PhpScanner(input);
     this.assumeUTF8 = assumeUTF8;
   }
 
-  public Object parse() throws SerializedPhpParserException
+  /**
+   * Creates a parser without input, see
+   * {@link SerializedPhpParserConfig#newParser()}.
+   */
+  SerializedPhpParser(SerializedPhpParserConfig config)
   {
-    Object result = this.parseInternal(false);
-    this.cleanup();
-    return result;
+    this(NO_INPUT, config.assumeUTF8);
+    this.acceptedAttributes = config.acceptedAttributes;
+    this.lazy = config.lazy;
+    this.compactLists = config.compactLists;
+    this.mapFactory = config.mapFactory;
+    this.symbols = config.symbols;
+    this.shapes = config.shapes;
+    this.immutable = config.immutable;
+    this.maxDepth = config.maxDepth;
+    this.maxElements = config.maxElements;
+    this.maxStringBytes = config.maxStringBytes;
+    this.maxTotalBytes = config.maxTotalBytes;
   }
 
-  private void cleanup()
+  /**
+   * Memory-maps a UTF-8 encoded file and parses it in place, without
+   * reading it into the heap. Files larger than 2 GB are mapped in several
+   * regions.
+   */
+  public static SerializedPhpParser mapFile(File file) throws IOException
   {
-    this.refArray.clear();
+    return mapFile(file, true);
   }
 
-  private Object parseInternal(boolean isKey)
-      throws SerializedPhpParserException
+  public static SerializedPhpParser mapFile(File file, boolean assumeUTF8)
+      throws IOException
   {
-    checkUnexpectedLength(this.index + 2);
-    char type = this.input.charAt(this.index);
-    switch (type)
-    {
-    case 'i':
-      this.index += 2;
-      return parseInt(isKey);
-    case 'd':
-      this.index += 2;
-      return parseFloat(isKey);
-    case 'b':
-      this.index += 2;
-      return parseBoolean();
-    case 's':
-      this.index += 2;
-      return parseString(isKey);
-    case 'a':
-      this.index += 2;
-      return parseArray();
-    case 'O':
-      this.index += 2;
-      return parseObject();
-    case 'N':
-      this.index += 2;
-      return NULL;
-    case 'R':
-      this.index += 2;
-      return parseReference();
-    default:
-      throw new SerializedPhpParserException("Encountered unknown type ["
-          + type + "]", this.index, SerializedPhpParserException.UNKNOWN_TYPE);
-    }
+    return new SerializedPhpParser(MappedFilePhpInput.map(file, assumeUTF8),
+        assumeUTF8);
   }
 
-  private Object parseReference() throws SerializedPhpParserException
+  /**
+   * Binds the parser to new input. The accepted attributes, the lazy mode
+   * and the string decoding stay as configured, and the internal reference
+   * table keeps its capacity, so a parser can be reused for many payloads
+   * without allocating its state again.
+   */
+  public void reset(String input)
   {
-    int delimiter = this.input.indexOf(';', this.index);
-    if (delimiter == -1)
-    {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized Reference!", this.index,
-          SerializedPhpParserException.MISSING_DELIMITER_STRING);
-    }
-    checkUnexpectedLength(delimiter + 1);
-    Integer refIndex = Integer.valueOf(this.input.substring(this.index,
-        delimiter)) - 1;
-    this.index = delimiter + 1;
-    if ((refIndex + 1) > this.refArray.size())
-    {
-      throw new SerializedPhpParserException("Out of range reference index: "
-          + (refIndex + 1) + " !", this.index,
-          SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
-    }
-    Object value = this.refArray.get(refIndex);
-    this.refArray.add(value);
-    return value;
+    reset(new StringPhpInput(input, this.assumeUTF8));
   }
 
-  private Object parseObject() throws SerializedPhpParserException
+  public void reset(byte[] input)
   {
-    PhpObject phpObject = new PhpObject();
-    this.refArray.add(phpObject);
-    int strLen = readLength();
-    checkUnexpectedLength(strLen);
-    phpObject.name = this.input.substring(this.index, this.index + strLen);
-    this.index = this.index + strLen + 2;
-    int attrLen = readLength();
-    for (int i = 0; i < attrLen; i++)
-    {
-      Object key = parseInternal(true);
-      Object value = parseInternal(false);
-      if (isAcceptedAttribute(key))
-      {
-        phpObject.attributes.put(key, value);
-      }
-    }
-    this.index++;
-    return phpObject;
+    reset(input, 0, input.length);
+  }
+
+  public void reset(byte[] input, int offset, int length)
+  {
+    reset(new ByteArrayPhpInput(input, offset, length, this.assumeUTF8));
   }
 
-  private Map<Object, Object> parseArray() throws SerializedPhpParserException
+  public void reset(ByteBuffer input)
   {
-    int arrayLen = readLength();
-    checkUnexpectedLength(arrayLen);
-    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
-    this.refArray.add(result);
-    for (int i = 0; i < arrayLen; i++)
+    reset(PhpInput.wrap(input, this.assumeUTF8));
+  }
+
+  private void reset(PhpInput input)
+  {
+    this.scanner.reset(input);
+    // a failed parse leaves its containers on the stack
+    while (this.depth > 0)
     {
-      Object key = parseInternal(true);
-      Object value = parseInternal(false);
-      if (isAcceptedAttribute(key))
-      {
-        result.put(key, value);
-      }
+      pop();
     }
-    char endChar = this.input.charAt(this.index);
-    if (endChar != '}')
+    cleanup();
+  }
+
+  /**
+   * Drops the reference to the current input, so an idle parser does not
+   * keep a payload alive.
+   */
+  void clear()
+  {
+    reset(NO_INPUT);
+  }
+
+  public Object parse() throws SerializedPhpParserException
+  {
+    if (this.lazy)
     {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized Array, missing }!", this.index,
-          SerializedPhpParserException.MISSING_CLOSER_STRING);
+      return new LazyPhpValues(this.scanner.input,
+          this.acceptedAttributes).parseRoot(this.scanner.index);
     }
-
-    this.index++;
+    Object result = this.parseInternal();
+    this.cleanup();
     return result;
   }
 
-  private boolean isAcceptedAttribute(Object key)
+  private void cleanup()
+  {
+    this.refArray.clear();
+    this.elements = 0;
+    this.totalBytes = 0;
+  }
+
+  /**
+   * Parses the value at <code>position</code> of the given input, an
+   * element of an array that {@link SerializedPhpBatchParser} parses in
+   * parallel. The element must not contain references. The array counts
+   * as one level of nesting.
+   */
+  Object parseElement(PhpInput input, long position)
+      throws SerializedPhpParserException
   {
-    if (this.acceptedAttributeNameRegex == null)
+    this.outerDepth = 1;
+    try
     {
-      return true;
+      return parseElement(input, position, null, null, 0);
     }
-    if (!(key instanceof String))
+    finally
     {
-      return true;
+      this.outerDepth = 0;
     }
-    return this.acceptedAttributeNameRegex.matcher((String) key).matches();
   }
 
-  private int readLength() throws SerializedPhpParserException
+  /**
+   * Parses the value at <code>position</code> that follows
+   * <code>count</code> other values, such as a session variable after the
+   * variables before it. The earlier values are numbered in the reference
+   * table without decoding them and are only parsed if a reference points
+   * into them.
+   *
+   * @param starts
+   *          the positions of the earlier values
+   * @param slots
+   *          the number of reference slots of each earlier value
+   */
+  Object parseElement(PhpInput input, long position, long[] starts,
+      int[] slots, int count) throws SerializedPhpParserException
   {
-    int delimiter = this.input.indexOf(':', this.index);
-    if (delimiter == -1)
+    reset(input);
+    for (int i = 0; i < count; i++)
     {
-      throw new SerializedPhpParserException(
-          "Missing delimiter after string, array or object length field!",
-          this.index, SerializedPhpParserException.MISSING_DELIMITER_STRING);
+      skipped(starts[i], slots[i]);
     }
-    checkUnexpectedLength(delimiter + 2);
-    int arrayLen = Integer.valueOf(this.input.substring(this.index, delimiter));
-    this.index = delimiter + 2;
-    return arrayLen;
+    this.scanner.index = position;
+    Object result = parseInternal();
+    cleanup();
+    return result;
   }
 
   /**
-   * Assumes strings are utf8 encoded
-   *
-   * @return
+   * Parses the value at the scanner position. Arrays and objects are not
+   * parsed by recursion: opening one pushes a frame on an explicit stack,
+   * and the loop parses the values of the innermost frame until it ends,
+   * so the nesting of the input is bounded by the heap and
+   * {@link #setMaxDepth(int)} instead of the thread stack.
    */
-  private String parseString(boolean isKey) throws SerializedPhpParserException
+  private Object parseInternal() throws SerializedPhpParserException
   {
-    int strLen = readLength();
-    checkUnexpectedLength(strLen);
-
-    int utfStrLen = 0;
-    int byteCount = 0;
-    int nextCharIndex = 0;
-    while (byteCount != strLen)
+    PhpScanner scanner = this.scanner;
+    int base = this.depth;
+    // the innermost container, null at the base
+    Frame frame = null;
+    while (true)
     {
-      nextCharIndex = this.index + utfStrLen++;
-      if (nextCharIndex >= this.inputLength)
+      Object value;
+      scanner.checkUnexpectedLength(scanner.index + 2);
+      char type = (char) scanner.input.at(scanner.index);
+      switch (type)
       {
-        throw new SerializedPhpParserException("Unexpected end of String ("
-            + strLen + ") at position " + (nextCharIndex - this.index)
-            + ", absolut position in Input String: " + nextCharIndex
-            + ". The string: "
-            + this.input.substring(this.index, nextCharIndex), nextCharIndex,
-            SerializedPhpParserException.TO_LONG_STRING);
+      case 'i':
+        scanner.index += 2;
+        value = frame != null && frame.kind == LIST ? parseListInt(frame)
+            : parseInt(false);
+        break;
+      case 'd':
+        scanner.index += 2;
+        value = frame != null && frame.kind == LIST ? parseListFloat(frame)
+            : parseFloat(false);
+        break;
+      case 'b':
+        scanner.index += 2;
+        value = parseBoolean();
+        break;
+      case 's':
+        scanner.index += 2;
+        value = parseString(false);
+        break;
+      case 'a':
+        scanner.index += 2;
+        frame = openArray();
+        value = OPENED;
+        break;
+      case 'O':
+        scanner.index += 2;
+        frame = openObject();
+        value = OPENED;
+        break;
+      case 'N':
+        scanner.index += 2;
+        this.refArray.add(NULL);
+        value = NULL;
+        break;
+      case 'R':
+        scanner.index += 2;
+        value = parseReference(false);
+        break;
+      case 'r':
+        scanner.index += 2;
+        value = parseReference(true);
+        break;
+      default:
+        throw new SerializedPhpParserException("Encountered unknown type ["
+            + type + "]", scanner.index,
+            SerializedPhpParserException.UNKNOWN_TYPE);
       }
-      char ch = this.input.charAt(nextCharIndex);
-      if (this.assumeUTF8)
+      // hand the value to its container, and the containers that end to
+      // theirs, until one has another value to parse
+      while (true)
       {
-        if ((ch >= 0x0000) && (ch <= 0x007F))
-        {
-          byteCount++;
-        }
-        else if (ch > 0x07FF)
+        if (value != OPENED && value != APPENDED)
         {
-          byteCount += 3;
+          if (frame == null)
+          {
+            return value;
+          }
+          add(frame, value);
         }
-        else
+        if (next(frame))
         {
-          byteCount += 2;
+          break;
         }
+        value = pop();
+        frame = this.depth == base ? null : this.frames[this.depth - 1];
       }
-      else
-      {
-        byteCount++;
-      }
-    }
-    String value = this.input.substring(this.index, this.index + utfStrLen);
-    if ((this.index + utfStrLen + 2) > this.inputLength
-        || (this.index + utfStrLen) > this.inputLength)
-    {
-      throw new SerializedPhpParserException(
-          "Unexpected serialized string length!", this.index,
-          SerializedPhpParserException.TO_LONG_STRING);
-    }
-    String endString = this.input.substring(this.index + utfStrLen, this.index
-        + utfStrLen + 2);
-    if (!endString.equals("\";"))
-    {
-      throw new SerializedPhpParserException(
-          "Unexpected serialized string length!", this.index,
-          SerializedPhpParserException.TO_SHORT_STRING);
     }
-    this.index = this.index + utfStrLen + 2;
-    if (!isKey)
+  }
+
+  /**
+   * Reads an array key or attribute name. Arrays and objects cannot be
+   * keys.
+   */
+  private Object parseKey() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    scanner.checkUnexpectedLength(scanner.index + 2);
+    int type = scanner.input.at(scanner.index);
+    switch (type)
     {
-      this.refArray.add(value);
+    case 'i':
+      scanner.index += 2;
+      return parseInt(true);
+    case 's':
+      scanner.index += 2;
+      return parseString(true);
+    case 'd':
+      scanner.index += 2;
+      return parseFloat(true);
+    case 'b':
+      scanner.index += 2;
+      return parseBoolean();
+    case 'N':
+      scanner.index += 2;
+      return NULL;
+    case 'R':
+      scanner.index += 2;
+      return parseReference(false);
+    case 'r':
+      scanner.index += 2;
+      return parseReference(true);
+    default:
+      throw new SerializedPhpParserException("Encountered unknown key type ["
+          + (char) type + "]", scanner.index,
+          SerializedPhpParserException.UNKNOWN_TYPE);
     }
-    return value;
   }
 
-  private Boolean parseBoolean() throws SerializedPhpParserException
+  /**
+   * Resolves <code>R:</code>, a PHP reference, or <code>r:</code>, a second
+   * use of the same object. Like PHP, only <code>r:</code> is numbered
+   * itself.
+   */
+  private Object parseReference(boolean numbered)
+      throws SerializedPhpParserException
   {
-    int delimiter = this.input.indexOf(';', this.index);
-    if (delimiter == -1)
+    long refIndex = this.scanner.readLong("Reference") - 1;
+    if (refIndex < 0 || (refIndex + 1) > this.refArray.size())
     {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized boolean!", this.index);
+      throw new SerializedPhpParserException("Out of range reference index: "
+          + (refIndex + 1) + " !", this.scanner.index,
+          SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
     }
-    checkUnexpectedLength(delimiter + 1);
-    String value = this.input.substring(this.index, delimiter);
-    if (value.equals("1"))
+    Object value = this.refArray.get((int) refIndex);
+    if (value instanceof SkippedValue)
     {
-      value = "true";
+      value = resolveSkipped((SkippedValue) value, (int) refIndex);
     }
-    else if (value.equals("0"))
+    if (value instanceof ListElements)
     {
-      value = "false";
+      ListElements elements = (ListElements) value;
+      value = elements.list.get((int) refIndex - elements.slot);
     }
-    this.index = delimiter + 1;
-    this.refArray.add(Boolean.valueOf(value));
-    return Boolean.valueOf(value);
-  }
-
-  private Double parseFloat(boolean isKey) throws SerializedPhpParserException
-  {
-    int delimiter = this.input.indexOf(';', this.index);
-    if (delimiter == -1)
+    else if (value instanceof PhpList)
     {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized float!", this.index,
-          SerializedPhpParserException.MISSING_DELIMITER_STRING);
+      value = referToList((PhpList) value);
     }
-    checkUnexpectedLength(delimiter + 1);
-    String value = this.input.substring(this.index, delimiter);
-    this.index = delimiter + 1;
-    if (!isKey)
+    if (numbered)
     {
-      this.refArray.add(Double.valueOf(value));
+      this.refArray.add(value);
     }
-    return Double.valueOf(value);
+    return value;
   }
 
-  private Long parseInt(boolean isKey) throws SerializedPhpParserException
+  /**
+   * Moves a list that is still open to a map when a reference points to
+   * it. Whether the array is a list is not known before it ends, and once
+   * the reference holds it, the array cannot turn from a list into a map.
+   *
+   * @return the value the reference holds
+   */
+  private Object referToList(PhpList list)
   {
-    int delimiter = this.input.indexOf(';', this.index);
-    if (delimiter == -1)
-    {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized integer!", this.index,
-          SerializedPhpParserException.MISSING_DELIMITER_STRING);
-    }
-    checkUnexpectedLength(delimiter + 1);
-    String value = this.input.substring(this.index, delimiter);
-    this.index = delimiter + 1;
-    if (!isKey)
+    for (int i = this.depth - 1; i >= 0; i--)
     {
-      this.refArray.add(Long.valueOf(value));
+      Frame frame = this.frames[i];
+      if (frame.kind == LIST && frame.list == list)
+      {
+        toMap(frame);
+        // the element that is being parsed holds the reference
+        frame.key = Long.valueOf(frame.index - 1);
+        return frame.value;
+      }
     }
-    return Long.valueOf(value);
+    return list;
   }
 
-  public void setAcceptedAttributeNameRegex(String acceptedAttributeNameRegex)
+  /**
+   * Moves the elements of a list that turns out not to be one to a map,
+   * which the frame fills from then on.
+   */
+  private void toMap(Frame frame)
   {
-    this.acceptedAttributeNameRegex = Pattern
-        .compile(acceptedAttributeNameRegex);
+    PhpList list = frame.list;
+    Map<Object, Object> result = newMap(frame.length);
+    for (int j = 0; j < list.size(); j++)
+    {
+      result.put(Long.valueOf(j), list.get(j));
+    }
+    frame.kind = ARRAY;
+    frame.map = result;
+    frame.list = null;
+    frame.value = publish(result);
+    this.refArray.set(frame.slot, frame.value);
   }
 
-  public static final Object NULL = new Object()
+  /**
+   * Numbers an element that a list stores without boxing it. The unboxed
+   * elements come first in a list, so they share one placeholder in the
+   * reference table.
+   *
+   * @return {@link #APPENDED}
+   */
+  private Object appended(Frame frame)
   {
-    @Override
-    public String toString()
+    if (frame.elements == null)
     {
-      return "NULL";
+      frame.elements = new ListElements(frame.list, frame.slot + 1);
     }
-  };
+    this.refArray.add(frame.elements);
+    return APPENDED;
+  }
 
   /**
-   * Represents an object that has a name and a map of attributes
+   * Decodes the value at the scanner position, numbering it and its
+   * children in the reference table.
    */
-  public static class PhpObject
+  Object parseValue() throws SerializedPhpParserException
   {
-    public String name;
+    return parseInternal();
+  }
 
-    public Map<Object, Object> attributes = new HashMap<Object, Object>();
+  /**
+   * Steps over the value at the scanner position without decoding it,
+   * keeping the numbering of the reference table.
+   */
+  void skipValue() throws SerializedPhpParserException
+  {
+    long position = this.scanner.index;
+    skipped(position, this.scanner.skipValue(false));
+  }
 
-    @Override
-    public String toString()
+  /**
+   * Reserves <code>slots</code> entries of the reference table for the
+   * value at <code>position</code> that is not decoded.
+   */
+  void skipped(long position, int slots)
+  {
+    if (slots > 0)
     {
-      return "\"" + this.name + "\" : " + this.attributes.toString();
+      SkippedValue skipped = new SkippedValue(position, this.refArray.size());
+      for (int i = 0; i < slots; i++)
+      {
+        this.refArray.add(skipped);
+      }
     }
   }
 
-  private void checkUnexpectedLength(int newIndex)
+  /**
+   * Decodes a skipped value again because a reference points into it. The
+   * value is parsed by a second parser that starts with the same reference
+   * table, and the slots it fills replace the placeholders.
+   */
+  private Object resolveSkipped(SkippedValue skipped, int refIndex)
       throws SerializedPhpParserException
   {
-    if (this.index > this.inputLength || newIndex > this.inputLength)
+    if (this.scanner.input instanceof StreamPhpInput)
     {
-      throw new SerializedPhpParserException(
-          "Unexpected end of serialized Input!", this.index,
-          SerializedPhpParserException.TO_SHORT_INPUT_STRING);
+      throw new SerializedPhpParserException("Reference index "
+          + (refIndex + 1) + " points to a value that was skipped in a stream!",
+          this.scanner.index, SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+    }
+    SerializedPhpParser parser = new SerializedPhpParser(this.scanner.input);
+    parser.acceptedAttributes = this.acceptedAttributes;
+    parser.compactLists = this.compactLists;
+    parser.mapFactory = this.mapFactory;
+    parser.symbols = this.symbols;
+    parser.shapes = this.shapes;
+    parser.immutable = this.immutable;
+    parser.maxDepth = this.maxDepth;
+    parser.maxElements = this.maxElements;
+    parser.maxStringBytes = this.maxStringBytes;
+    parser.maxTotalBytes = this.maxTotalBytes;
+    parser.elements = this.elements;
+    parser.totalBytes = this.totalBytes;
+    parser.refArray.addAll(this.refArray.subList(0, skipped.slot));
+    parser.scanner.index = skipped.position;
+    parser.parseInternal();
+    this.elements = parser.elements;
+    this.totalBytes = parser.totalBytes;
+    int end = Math.min(parser.refArray.size(), this.refArray.size());
+    for (int i = skipped.slot; i < end; i++)
+    {
+      if (this.refArray.get(i) == skipped)
+      {
+        this.refArray.set(i, parser.refArray.get(i));
+      }
+    }
+    return parser.refArray.get(refIndex);
+  }
+
+  private Frame openObject() throws SerializedPhpParserException
+  {
+    int strLen = this.scanner.readLength();
+    this.scanner.checkCount(strLen);
+    if (this.shapes != null && this.mapFactory == PhpMapFactory.COMPACT)
+    {
+      return openShapedObject(strLen);
+    }
+    checkString(strLen);
+    String name = this.scanner.readClassName(strLen, this.symbols);
+    int attrLen = this.scanner.readLength();
+    checkContainer(attrLen);
+    Map<Object, Object> attributes = newMap(attrLen);
+    PhpObject phpObject = new PhpObject(name, publish(attributes));
+    this.refArray.add(phpObject);
+    Frame frame = push(OBJECT, attrLen, phpObject);
+    frame.map = attributes;
+    return frame;
+  }
+
+  /**
+   * Opens an object with the help of the shape cache: the attribute names
+   * are compared with a cached shape of the class in place and the values
+   * fill an attribute map that shares the keys of the shape. Without a
+   * shape the object is parsed the normal way and its shape is learned.
+   */
+  private Frame openShapedObject(int strLen)
+      throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    PhpInput input = scanner.input;
+    long nameStart = scanner.index;
+    long nameEnd = input.stringEnd(nameStart, strLen);
+    scanner.checkStringEnd(nameEnd, ':');
+    int hash = input.regionHash(nameStart, nameEnd);
+    scanner.index = nameEnd + 2;
+    int attrLen = scanner.readLength();
+    checkContainer(attrLen);
+    PhpShapeCache.Shape shape = this.shapes.find(input, hash, nameStart,
+        nameEnd, attrLen, this.acceptedAttributes);
+    if (shape == null)
+    {
+      this.shapes.miss();
+      checkString(strLen);
+      String name = this.symbols == null ? input.substring(nameStart,
+          nameEnd) : this.symbols.intern(input, nameStart, nameEnd);
+      Map<Object, Object> attributes = newMap(attrLen);
+      PhpObject phpObject = new PhpObject(name, attributes);
+      this.refArray.add(phpObject);
+      Frame frame = push(OBJECT, attrLen, phpObject);
+      frame.map = attributes;
+      frame.hash = hash;
+      frame.className = name;
+      frame.names = attrLen <= PhpShapeCache.MAX_ATTRIBUTES
+          ? new String[attrLen] : null;
+      return frame;
+    }
+    CompactPhpMap attributes = new CompactPhpMap(shape.keys, shape.table);
+    PhpObject phpObject = new PhpObject(shape.className, attributes);
+    this.refArray.add(phpObject);
+    Frame frame = push(SHAPED, attrLen, phpObject);
+    frame.map = attributes;
+    frame.hash = hash;
+    frame.className = shape.className;
+    frame.shape = shape;
+    return frame;
+  }
+
+  /**
+   * @param replaced
+   *          the shape the object did not match, or null
+   */
+  private void learnShape(int hash, String name, String[] names,
+      Map<Object, Object> attributes, PhpShapeCache.Shape replaced)
+  {
+    boolean[] accepted = new boolean[names.length];
+    Object[] keys = new Object[attributes.size()];
+    int count = 0;
+    for (int i = 0; i < names.length; i++)
+    {
+      accepted[i] = isAcceptedAttribute(names[i]);
+      if (accepted[i])
+      {
+        if (count == keys.length)
+        {
+          // a duplicate name
+          return;
+        }
+        keys[count++] = names[i];
+      }
+    }
+    if (count == keys.length)
+    {
+      this.shapes.add(new PhpShapeCache.Shape(hash, name, names,
+          this.acceptedAttributes, accepted, keys), replaced);
+    }
+  }
+
+  private Frame openArray() throws SerializedPhpParserException
+  {
+    int arrayLen = this.scanner.readLength();
+    checkContainer(arrayLen);
+    if (this.compactLists && arrayLen > 0)
+    {
+      PhpList list = new PhpList(arrayLen);
+      Frame frame = push(LIST, arrayLen, list);
+      frame.list = list;
+      frame.slot = this.refArray.size();
+      this.refArray.add(list);
+      return frame;
+    }
+    Map<Object, Object> result = newMap(arrayLen);
+    Map<Object, Object> published = publish(result);
+    this.refArray.add(published);
+    Frame frame = push(ARRAY, arrayLen, published);
+    frame.map = result;
+    return frame;
+  }
+
+  /**
+   * @return the map as it is handed out, a read-only view of it in
+   *         immutable mode unless the map can be frozen itself
+   */
+  private Map<Object, Object> publish(Map<Object, Object> map)
+  {
+    if (!this.immutable || map instanceof CompactPhpMap)
+    {
+      return map;
+    }
+    return Collections.unmodifiableMap(map);
+  }
+
+  private void freeze(Map<Object, Object> map)
+  {
+    if (this.immutable && map instanceof CompactPhpMap)
+    {
+      ((CompactPhpMap) map).freeze();
+    }
+  }
+
+  /**
+   * Creates the map for <code>length</code> entries. A stream has no known
+   * length that bounds the count, so there the map starts smaller and
+   * grows if the entries are really there.
+   */
+  private Map<Object, Object> newMap(int length)
+  {
+    if (this.scanner.input instanceof StreamPhpInput)
+    {
+      length = Math.min(length, STREAM_MAP_CAPACITY);
+    }
+    return this.mapFactory.newMap(length);
+  }
+
+  /**
+   * Checks the entry count of an array or object before anything is
+   * allocated for it: against the depth and element limits, and against
+   * the rest of the input, where every entry takes at least
+   * {@link #MIN_ENTRY_LENGTH} bytes, so a forged count fails fast.
+   */
+  private void checkContainer(int length) throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    if (this.depth + this.outerDepth >= this.maxDepth)
+    {
+      throw new SerializedPhpParserException("Arrays and objects are nested"
+          + " deeper than " + this.maxDepth + " levels!", scanner.index,
+          SerializedPhpParserException.TOO_DEEP);
+    }
+    if (length > (scanner.input.length() - scanner.index) / MIN_ENTRY_LENGTH)
+    {
+      throw new SerializedPhpParserException("Unexpected end of serialized"
+          + " Input, " + length + " entries cannot follow!", scanner.index,
+          SerializedPhpParserException.TO_SHORT_INPUT_STRING);
+    }
+    this.elements += length;
+    if (this.elements > this.maxElements)
+    {
+      throw new SerializedPhpParserException("More than " + this.maxElements
+          + " array entries and object attributes!", scanner.index,
+          SerializedPhpParserException.TOO_MANY_ELEMENTS);
+    }
+  }
+
+  /**
+   * Checks the length of a string before it is decoded against the string
+   * and the total size limits.
+   */
+  private void checkString(int length) throws SerializedPhpParserException
+  {
+    if (length > this.maxStringBytes)
+    {
+      throw new SerializedPhpParserException("String of " + length
+          + " bytes is longer than " + this.maxStringBytes + "!",
+          this.scanner.index, SerializedPhpParserException.STRING_TOO_LONG);
+    }
+    this.totalBytes += length;
+    if (this.totalBytes > this.maxTotalBytes)
+    {
+      throw new SerializedPhpParserException("Strings of more than "
+          + this.maxTotalBytes + " bytes in total!", this.scanner.index,
+          SerializedPhpParserException.TOO_LARGE);
+    }
+  }
+
+  private Frame push(int kind, int length, Object value)
+  {
+    if (this.depth == this.frames.length)
+    {
+      this.frames = Arrays.copyOf(this.frames, this.depth * 2);
+    }
+    Frame frame = this.frames[this.depth];
+    if (frame == null)
+    {
+      frame = new Frame();
+      this.frames[this.depth] = frame;
+    }
+    this.depth++;
+    frame.kind = kind;
+    frame.length = length;
+    frame.index = 0;
+    frame.value = value;
+    return frame;
+  }
+
+  /**
+   * @return the value of the innermost container, which has ended
+   */
+  private Object pop()
+  {
+    Frame frame = this.frames[--this.depth];
+    Object value = frame.value;
+    frame.clear();
+    return value;
+  }
+
+  private void add(Frame frame, Object value)
+  {
+    if (frame.key == DISCARDED)
+    {
+      return;
+    }
+    switch (frame.kind)
+    {
+    case LIST:
+      frame.list.append(value);
+      break;
+    case SHAPED:
+      ((CompactPhpMap) frame.map).append(value);
+      break;
+    default:
+      frame.map.put(frame.key, value);
+    }
+  }
+
+  /**
+   * Moves to the next value of a container that is parsed.
+   *
+   * @return false if the container has ended, after its closing brace
+   */
+  private boolean next(Frame frame) throws SerializedPhpParserException
+  {
+    switch (frame.kind)
+    {
+    case LIST:
+      return nextElement(frame);
+    case SHAPED:
+      return nextShapedAttribute(frame);
+    default:
+      return nextEntry(frame);
+    }
+  }
+
+  /**
+   * Reads the keys of an array or object until one is accepted.
+   */
+  private boolean nextEntry(Frame frame) throws SerializedPhpParserException
+  {
+    while (frame.index < frame.length)
+    {
+      Object key = parseKey();
+      if (frame.names != null)
+      {
+        if (key instanceof String)
+        {
+          frame.names[frame.index] = (String) key;
+        }
+        else
+        {
+          frame.names = null;
+        }
+      }
+      frame.index++;
+      if (isAcceptedAttribute(key))
+      {
+        frame.key = key;
+        return true;
+      }
+      if (skipRejected(frame))
+      {
+        return true;
+      }
+    }
+    if (frame.kind == ARRAY)
+    {
+      readArrayEnd();
+    }
+    else
+    {
+      if (frame.names != null)
+      {
+        learnShape(frame.hash, frame.className, frame.names, frame.map,
+            frame.shape);
+      }
+      this.scanner.index++;
+    }
+    freeze(frame.map);
+    return false;
+  }
+
+  /**
+   * Compares the attribute names of an object with its cached shape in
+   * place. At the first name that differs the rest of the object is parsed
+   * the normal way and its shape replaces the cached one.
+   */
+  private boolean nextShapedAttribute(Frame frame)
+      throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    PhpShapeCache.Shape shape = frame.shape;
+    while (frame.index < frame.length)
+    {
+      int i = frame.index;
+      long keyStart = scanner.index;
+      if (!scanner.readName(shape.names[i]))
+      {
+        this.shapes.miss();
+        scanner.index = keyStart;
+        ((CompactPhpMap) frame.map).unshare();
+        frame.names = new String[frame.length];
+        System.arraycopy(shape.names, 0, frame.names, 0, i);
+        frame.kind = OBJECT;
+        return nextEntry(frame);
+      }
+      frame.index++;
+      if (shape.accepted[i])
+      {
+        frame.key = null;
+        return true;
+      }
+      if (skipRejected(frame))
+      {
+        return true;
+      }
+    }
+    this.shapes.hit();
+    freeze(frame.map);
+    scanner.index++;
+    return false;
+  }
+
+  /**
+   * Collects the elements into a {@link PhpList} while the keys count up
+   * from 0, and moves them to a map at the first key that does not.
+   * Integer keys are compared without boxing them.
+   */
+  private boolean nextElement(Frame frame) throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    PhpList list = frame.list;
+    if (frame.index == frame.length)
+    {
+      readArrayEnd();
+      if (this.immutable)
+      {
+        list.freeze();
+      }
+      return false;
+    }
+    int i = frame.index;
+    Object key;
+    scanner.checkUnexpectedLength(scanner.index + 2);
+    if (scanner.input.at(scanner.index) == 'i')
+    {
+      scanner.index += 2;
+      long index = scanner.readLong("integer");
+      if (index == i)
+      {
+        frame.index++;
+        frame.key = null;
+        return true;
+      }
+      key = Long.valueOf(index);
+    }
+    else
+    {
+      key = parseKey();
+    }
+    toMap(frame);
+    frame.index = i + 1;
+    if (isAcceptedAttribute(key))
+    {
+      frame.key = key;
+      return true;
+    }
+    if (skipRejected(frame))
+    {
+      return true;
+    }
+    return nextEntry(frame);
+  }
+
+  private void readArrayEnd() throws SerializedPhpParserException
+  {
+    if (this.scanner.input.at(this.scanner.index) != '}')
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Array, missing }!",
+          this.scanner.index, SerializedPhpParserException.MISSING_CLOSER_STRING);
+    }
+
+    this.scanner.index++;
+  }
+
+  boolean isAcceptedAttribute(Object key)
+  {
+    return this.acceptedAttributes == null
+        || this.acceptedAttributes.accepts(key);
+  }
+
+  /**
+   * Steps over the value of a rejected attribute. Stream input cannot be
+   * read again if a later reference points into the value, so there it is
+   * still parsed, and dropped.
+   *
+   * @return true if the value is to be parsed
+   */
+  private boolean skipRejected(Frame frame) throws SerializedPhpParserException
+  {
+    if (this.scanner.input instanceof StreamPhpInput)
+    {
+      frame.key = DISCARDED;
+      return true;
+    }
+    skipValue();
+    return false;
+  }
+
+  /**
+   * Reads a string body whose length is given in bytes
+   *
+   * @return
+   */
+  private String parseString(boolean isKey) throws SerializedPhpParserException
+  {
+    int strLen = this.scanner.readLength();
+    this.scanner.checkCount(strLen);
+    checkString(strLen);
+    String value = this.scanner.readString(strLen, isKey ? this.symbols
+        : null);
+    if (!isKey)
+    {
+      this.refArray.add(value);
+    }
+    return value;
+  }
+
+  private Boolean parseBoolean() throws SerializedPhpParserException
+  {
+    Boolean value = this.scanner.readBoolean();
+    this.refArray.add(value);
+    return value;
+  }
+
+  private Double parseFloat(boolean isKey) throws SerializedPhpParserException
+  {
+    Double value = Double.valueOf(this.scanner.readDouble());
+    if (!isKey)
+    {
+      this.refArray.add(value);
+    }
+    return value;
+  }
+
+  /**
+   * Reads an integer element of a list, which goes into its
+   * <code>long[]</code> without boxing while the list has one.
+   */
+  private Object parseListInt(Frame frame) throws SerializedPhpParserException
+  {
+    long value = this.scanner.readLong("integer");
+    if (frame.list.appendLong(value))
+    {
+      return appended(frame);
+    }
+    Long boxed = Long.valueOf(value);
+    this.refArray.add(boxed);
+    return boxed;
+  }
+
+  /**
+   * Reads a float element of a list, which goes into its
+   * <code>double[]</code> without boxing while the list has one.
+   */
+  private Object parseListFloat(Frame frame)
+      throws SerializedPhpParserException
+  {
+    double value = this.scanner.readDouble();
+    if (frame.list.appendDouble(value))
+    {
+      return appended(frame);
+    }
+    Double boxed = Double.valueOf(value);
+    this.refArray.add(boxed);
+    return boxed;
+  }
+
+  private Long parseInt(boolean isKey) throws SerializedPhpParserException
+  {
+    Long value = Long.valueOf(this.scanner.readLong("integer"));
+    if (!isKey)
+    {
+      this.refArray.add(value);
+    }
+    return value;
+  }
+
+  /**
+   * Keeps only the array entries and object attributes whose string key
+   * matches the regular expression, or is one of the accepted names. The
+   * values of other entries are stepped over without decoding them.
+   */
+  public void setAcceptedAttributeNameRegex(String acceptedAttributeNameRegex)
+  {
+    Pattern regex = Pattern.compile(acceptedAttributeNameRegex);
+    this.acceptedAttributes = this.acceptedAttributes == null ? new AttributeFilter(
+        null, regex) : this.acceptedAttributes.withRegex(regex);
+  }
+
+  /**
+   * Keeps only the array entries and object attributes whose string key is
+   * one of the given names, or matches the accepted regular expression. The
+   * names are looked up in a hash set, which is cheaper than matching a
+   * regular expression against every key.
+   */
+  public void setAcceptedAttributeNames(Collection<String> acceptedAttributeNames)
+  {
+    Set<String> names = new HashSet<String>(acceptedAttributeNames);
+    this.acceptedAttributes = this.acceptedAttributes == null ? new AttributeFilter(
+        names, null) : this.acceptedAttributes.withNames(names);
+  }
+
+  /**
+   * With compact lists an array whose keys are exactly <code>0..n-1</code>
+   * in order is returned as a {@link PhpList} instead of a
+   * <code>Map</code>; a list of only integers or only floats is stored in a
+   * <code>long[]</code> or <code>double[]</code> without boxing, also not
+   * while parsing unless a reference points to an element.
+   * {@link PhpList#asMap()} gives the <code>Map</code> view. Other arrays,
+   * including empty ones and arrays that a reference points to before they
+   * end, stay a <code>Map</code>. Lazy mode
+   * ignores this setting.
+   */
+  public void setCompactLists(boolean compactLists)
+  {
+    this.compactLists = compactLists;
+  }
+
+  /**
+   * Sets the factory for the maps of arrays and object attributes, by
+   * default {@link PhpMapFactory#COMPACT}. Lazy mode ignores this
+   * setting.
+   */
+  public void setMapFactory(PhpMapFactory mapFactory)
+  {
+    this.mapFactory = mapFactory;
+  }
+
+  /**
+   * Takes string keys, attribute names and class names from the given
+   * symbol table, so repeated names share one <code>String</code> within a
+   * payload and across payloads. String values are not interned. Lazy mode
+   * ignores this setting.
+   *
+   * @param symbols
+   *          the table, or null to decode every name
+   */
+  public void setSymbolTable(PhpSymbolTable symbols)
+  {
+    this.symbols = symbols;
+  }
+
+  /**
+   * Caches the attribute names of objects by class, so the names of later
+   * objects of a class are compared in place instead of decoded and their
+   * attribute maps share one key layout. One cache can be shared by many
+   * parsers and tells its hit rate. The cache is used with the default
+   * {@link PhpMapFactory#COMPACT} maps only. Lazy mode ignores this
+   * setting.
+   *
+   * @param shapes
+   *          the cache, or null to parse every object the normal way
+   */
+  public void setShapeCache(PhpShapeCache shapes)
+  {
+    this.shapes = shapes;
+  }
+
+  /**
+   * In immutable mode arrays, object attributes and compact lists are
+   * read-only and every change throws
+   * <code>UnsupportedOperationException</code>. References still resolve
+   * to the same instances. Nothing changes a tree after
+   * <code>parse()</code>, so one result can be read by many threads
+   * without copying or locking once it is published safely, for example
+   * through a <code>volatile</code> field or a concurrent collection. The
+   * fields of {@link PhpObject} stay assignable for compatibility. Maps
+   * from a custom {@link PhpMapFactory} are wrapped by
+   * <code>Collections.unmodifiableMap</code>. Lazy mode ignores this
+   * setting.
+   */
+  public void setImmutable(boolean immutable)
+  {
+    this.immutable = immutable;
+  }
+
+  /**
+   * Limits the nesting of arrays and objects, by default to
+   * {@link #DEFAULT_MAX_DEPTH} levels. Deeper input fails with
+   * {@link SerializedPhpParserException#TOO_DEEP}. The parser does not
+   * recurse, so the limit does not depend on the stack size of the thread.
+   * Lazy mode ignores this setting.
+   */
+  public void setMaxDepth(int maxDepth)
+  {
+    this.maxDepth = checkLimit("maxDepth", maxDepth);
+  }
+
+  /**
+   * Limits the number of array entries and object attributes of a payload,
+   * counted as declared when an array or object is opened, so input with
+   * more fails with {@link SerializedPhpParserException#TOO_MANY_ELEMENTS}
+   * before their maps are allocated. Entries that the attribute filter
+   * steps over count as well. Not limited by default. Lazy mode ignores
+   * this setting.
+   */
+  public void setMaxElements(long maxElements)
+  {
+    this.maxElements = checkLimit("maxElements", maxElements);
+  }
+
+  /**
+   * Limits the length in bytes of every decoded string, key and class
+   * name; a longer one fails with
+   * {@link SerializedPhpParserException#STRING_TOO_LONG} before it is
+   * decoded. Not limited by default. Lazy mode ignores this setting.
+   */
+  public void setMaxStringBytes(int maxStringBytes)
+  {
+    this.maxStringBytes = checkLimit("maxStringBytes", maxStringBytes);
+  }
+
+  /**
+   * Limits the total length in bytes of the strings, keys and class names
+   * decoded from a payload; more fail with
+   * {@link SerializedPhpParserException#TOO_LARGE}. Together with
+   * {@link #setMaxElements(long)} this bounds the memory a parse result
+   * can take. Not limited by default. Lazy mode ignores this setting.
+   */
+  public void setMaxTotalBytes(long maxTotalBytes)
+  {
+    this.maxTotalBytes = checkLimit("maxTotalBytes", maxTotalBytes);
+  }
+
+  static int checkLimit(String name, int limit)
+  {
+    return (int) checkLimit(name, (long) limit);
+  }
+
+  static long checkLimit(String name, long limit)
+  {
+    if (limit < 0)
+    {
+      throw new IllegalArgumentException(name + " " + limit
+          + " is negative");
+    }
+    return limit;
+  }
+
+  /**
+   * In lazy mode <code>parse()</code> checks the structure of the input and
+   * returns read-only views: arrays and object attributes only record the
+   * positions of their entries, and values are decoded when they are first
+   * read. References resolve to the same values as in eager mode. The views
+   * keep the input alive and are not thread-safe. Errors in values that
+   * are decoded late are thrown as <code>IllegalStateException</code>.
+   * Stream input cannot be parsed lazily.
+   */
+  public void setLazy(boolean lazy)
+  {
+    if (lazy && this.scanner.input instanceof StreamPhpInput)
+    {
+      throw new UnsupportedOperationException(
+          "Lazy parsing needs random access input");
+    }
+    this.lazy = lazy;
+  }
+
+  public static final Object NULL = new Object()
+  {
+    @Override
+    public String toString()
+    {
+      return "NULL";
+    }
+  };
+
+  /**
+   * the value of a container that was opened, which is handed out when it
+   * ends
+   */
+  private static final Object OPENED = new Object();
+
+  /**
+   * an element that was added to its list without boxing it
+   */
+  private static final Object APPENDED = new Object();
+
+  /**
+   * the key of a rejected entry whose value is parsed and dropped
+   */
+  private static final Object DISCARDED = new Object();
+
+  /**
+   * the fewest bytes of an entry, as in <code>i:0;N;</code>
+   */
+  private static final int MIN_ENTRY_LENGTH = 6;
+
+  private static final int ARRAY = 0;
+
+  private static final int OBJECT = 1;
+
+  /**
+   * an object whose attribute names are compared with a cached shape
+   */
+  private static final int SHAPED = 2;
+
+  /**
+   * an array collected into a {@link PhpList} while its keys count up
+   */
+  private static final int LIST = 3;
+
+  /**
+   * An array or object on the stack of the parser, with the position of
+   * its next entry. Frames are reused from payload to payload.
+   */
+  private static final class Frame
+  {
+    int kind;
+
+    /**
+     * the value of the container once it ends
+     */
+    Object value;
+
+    Map<Object, Object> map;
+
+    PhpList list;
+
+    int length;
+
+    int index;
+
+    /**
+     * the key of the value being parsed, or {@link #DISCARDED}
+     */
+    Object key;
+
+    /**
+     * the attribute names of an object whose shape is learned, or null
+     */
+    String[] names;
+
+    /**
+     * the matched shape, or the shape an object is learned in place of
+     */
+    PhpShapeCache.Shape shape;
+
+    int hash;
+
+    String className;
+
+    /**
+     * the reference slot of a list
+     */
+    int slot;
+
+    /**
+     * the placeholder of the unboxed elements of a list, or null
+     */
+    ListElements elements;
+
+    void clear()
+    {
+      this.value = null;
+      this.map = null;
+      this.list = null;
+      this.key = null;
+      this.names = null;
+      this.shape = null;
+      this.className = null;
+      this.elements = null;
+    }
+  }
+
+  /**
+   * Stands in the reference table for the slots of a value that was
+   * stepped over without decoding it.
+   */
+  static final class SkippedValue
+  {
+    final long position;
+
+    final int slot;
+
+    SkippedValue(long position, int slot)
+    {
+      this.position = position;
+      this.slot = slot;
+    }
+  }
+
+  /**
+   * Stands in the reference table for the elements of a list that are
+   * stored in a <code>long[]</code> or <code>double[]</code>. Slot
+   * <code>slot + i</code> is element <code>i</code>, which is boxed only
+   * if a reference points to it.
+   */
+  static final class ListElements
+  {
+    final PhpList list;
+
+    final int slot;
+
+    ListElements(PhpList list, int slot)
+    {
+      this.list = list;
+      this.slot = slot;
+    }
+  }
+
+  /**
+   * Represents an object that has a name and a map of attributes
+   */
+  public static class PhpObject
+  {
+    public String name;
+
+    /**
+     * the attributes in the order of the input
+     */
+    public Map<Object, Object> attributes;
+
+    public PhpObject()
+    {
+      this.attributes = new LinkedHashMap<Object, Object>();
+    }
+
+    PhpObject(String name, Map<Object, Object> attributes)
+    {
+      this.name = name;
+      this.attributes = attributes;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "\"" + this.name + "\" : " + this.attributes.toString();
     }
   }
 
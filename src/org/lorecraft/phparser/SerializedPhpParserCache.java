@@ -0,0 +1,466 @@
+package org.lorecraft.phparser;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache of parse results for payloads that are parsed again
+ * and again, such as configuration, feature flags or popular sessions.
+ * Payloads are looked up by a 64 bit hash and their length and then
+ * compared completely, so a hash collision never returns a wrong result.
+ * <p>
+ * Parse results are mutable, so the cache keeps its own tree and every
+ * hit returns a deep copy of it, which is much cheaper than parsing:
+ * strings and numbers are shared, only maps, lists and objects are
+ * copied, and shared references stay shared. With an immutable
+ * configuration, see {@link SerializedPhpParser#setImmutable(boolean)},
+ * all callers share the cached tree without copying. Entries are weighed by an
+ * estimate of their retained heap, including a copy of the payload, and
+ * the least recently used entries are evicted above
+ * <code>maxWeight</code>. A payload is only admitted on its second miss,
+ * so payloads that are parsed once do not push hot entries out.
+ * <p>
+ * Payloads are parsed with a {@link SerializedPhpParserPool} of the given
+ * configuration. Lazy results read their input on demand and cannot be
+ * cached.
+ */
+public class SerializedPhpParserCache
+{
+  /**
+   * number of recently missed payload hashes that are remembered for
+   * admission
+   */
+  private static final int DOORKEEPER_SIZE = 1024;
+
+  private final SerializedPhpParserPool pool;
+
+  private final PhpMapFactory mapFactory;
+
+  private final boolean immutable;
+
+  private final long maxWeight;
+
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+      16, 0.75f, true);
+
+  private final long[] doorkeeper = new long[DOORKEEPER_SIZE];
+
+  private long weight;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  /**
+   * @param maxWeight
+   *          the estimated heap bytes the cached entries may retain
+   */
+  public SerializedPhpParserCache(SerializedPhpParserConfig config,
+      long maxWeight)
+  {
+    if (config.lazy)
+    {
+      throw new IllegalArgumentException("Lazy results cannot be cached");
+    }
+    this.pool = new SerializedPhpParserPool(config);
+    this.mapFactory = config.mapFactory;
+    this.immutable = config.immutable;
+    this.maxWeight = maxWeight;
+  }
+
+  public Object parse(byte[] input) throws SerializedPhpParserException
+  {
+    return parse(input, 0, input.length);
+  }
+
+  public Object parse(byte[] input, int offset, int length)
+      throws SerializedPhpParserException
+  {
+    long hash = -3750763034362895579L;
+    for (int i = offset, end = offset + length; i < end; i++)
+    {
+      hash = (hash ^ input[i]) * 1099511628211L;
+    }
+    Key probe = new Key(hash, input, offset, length);
+    Entry entry = lookup(probe);
+    if (entry != null)
+    {
+      return share(entry.value);
+    }
+    Object result = this.pool.parse(input, offset, length);
+    byte[] payload = new byte[length];
+    System.arraycopy(input, offset, payload, 0, length);
+    return admit(new Key(hash, payload, 0, length), result, length);
+  }
+
+  public Object parse(String input) throws SerializedPhpParserException
+  {
+    long hash = -3750763034362895579L;
+    for (int i = 0, end = input.length(); i < end; i++)
+    {
+      hash = (hash ^ input.charAt(i)) * 1099511628211L;
+    }
+    Key key = new Key(hash, input, 0, input.length());
+    Entry entry = lookup(key);
+    if (entry != null)
+    {
+      return share(entry.value);
+    }
+    Object result = this.pool.parse(input);
+    return admit(key, result, 40L + 2L * input.length());
+  }
+
+  private synchronized Entry lookup(Key key)
+  {
+    Entry entry = this.entries.get(key);
+    if (entry != null)
+    {
+      this.hits++;
+    }
+    else
+    {
+      this.misses++;
+    }
+    return entry;
+  }
+
+  /**
+   * Caches a new result if its payload was missed before, and returns the
+   * result to the caller, or a copy of it if the cache keeps it.
+   */
+  private Object admit(Key key, Object result, long payloadWeight)
+  {
+    int slot = (int) (key.hash ^ key.hash >>> 32) & DOORKEEPER_SIZE - 1;
+    synchronized (this)
+    {
+      if (this.doorkeeper[slot] != key.hash)
+      {
+        this.doorkeeper[slot] = key.hash;
+        return result;
+      }
+      this.doorkeeper[slot] = 0;
+    }
+    long weight = payloadWeight + 64 + weigh(result);
+    if (weight > this.maxWeight)
+    {
+      return result;
+    }
+    Object shared = share(result);
+    synchronized (this)
+    {
+      Entry previous = this.entries.put(key, new Entry(result, weight));
+      if (previous != null)
+      {
+        this.weight -= previous.weight;
+      }
+      this.weight += weight;
+      Iterator<Entry> eldest = this.entries.values().iterator();
+      while (this.weight > this.maxWeight)
+      {
+        this.weight -= eldest.next().weight;
+        eldest.remove();
+        this.evictions++;
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * @return the cached tree itself if it is immutable, a deep copy
+   *         otherwise
+   */
+  private Object share(Object value)
+  {
+    return this.immutable ? value : copy(value);
+  }
+
+  /**
+   * Copies maps, lists and objects and shares immutable values. The tree
+   * is not walked by recursion: a container is copied empty when it is
+   * first seen and filled when it is taken from a list of pending ones, so
+   * the nesting is not bounded by the thread stack.
+   */
+  private Object copy(Object value)
+  {
+    IdentityHashMap<Object, Object> copies = new IdentityHashMap<Object, Object>();
+    ArrayList<Object> pending = new ArrayList<Object>();
+    Object result = copyOf(value, copies, pending);
+    while (!pending.isEmpty())
+    {
+      Object original = pending.remove(pending.size() - 1);
+      Object copy = copies.get(original);
+      if (original instanceof PhpList)
+      {
+        PhpList list = (PhpList) original;
+        PhpList listCopy = (PhpList) copy;
+        for (int i = 0; i < list.size(); i++)
+        {
+          listCopy.set(i, copyOf(list.get(i), copies, pending));
+        }
+      }
+      else if (original instanceof SerializedPhpParser.PhpObject)
+      {
+        copyEntries(((SerializedPhpParser.PhpObject) original).attributes,
+            ((SerializedPhpParser.PhpObject) copy).attributes, copies,
+            pending);
+      }
+      else
+      {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> mapCopy = (Map<Object, Object>) copy;
+        copyEntries((Map<?, ?>) original, mapCopy, copies, pending);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the copy of a value; a map, list or object that is seen first
+   *         is copied empty and added to <code>pending</code> to be filled
+   */
+  private Object copyOf(Object value, IdentityHashMap<Object, Object> copies,
+      ArrayList<Object> pending)
+  {
+    if (!(value instanceof Map || value instanceof PhpList
+        || value instanceof SerializedPhpParser.PhpObject))
+    {
+      return value;
+    }
+    Object copy = copies.get(value);
+    if (copy != null)
+    {
+      return copy;
+    }
+    if (value instanceof PhpList)
+    {
+      PhpList list = (PhpList) value;
+      copy = new PhpList(list);
+      if (!list.isLongList() && !list.isDoubleList())
+      {
+        pending.add(value);
+      }
+    }
+    else if (value instanceof SerializedPhpParser.PhpObject)
+    {
+      SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) value;
+      copy = new SerializedPhpParser.PhpObject(object.name, this.mapFactory
+          .newMap(object.attributes.size()));
+      pending.add(value);
+    }
+    else
+    {
+      copy = this.mapFactory.newMap(((Map<?, ?>) value).size());
+      pending.add(value);
+    }
+    copies.put(value, copy);
+    return copy;
+  }
+
+  private void copyEntries(Map<?, ?> map, Map<Object, Object> copy,
+      IdentityHashMap<Object, Object> copies, ArrayList<Object> pending)
+  {
+    for (Map.Entry<?, ?> entry : map.entrySet())
+    {
+      copy.put(entry.getKey(), copyOf(entry.getValue(), copies, pending));
+    }
+  }
+
+  /**
+   * Estimates the heap bytes retained by a tree, counting shared values
+   * once. The values that are still to be weighed are kept in a list
+   * instead of being walked by recursion.
+   */
+  private static long weigh(Object root)
+  {
+    IdentityHashMap<Object, Object> seen = new IdentityHashMap<Object, Object>();
+    ArrayList<Object> pending = new ArrayList<Object>();
+    pending.add(root);
+    long weight = 0;
+    while (!pending.isEmpty())
+    {
+      Object value = pending.remove(pending.size() - 1);
+      if (value instanceof Long || value instanceof Double)
+      {
+        weight += 16;
+        continue;
+      }
+      if (!(value instanceof String || value instanceof Map
+          || value instanceof PhpList
+          || value instanceof SerializedPhpParser.PhpObject)
+          || seen.put(value, value) != null)
+      {
+        continue;
+      }
+      if (value instanceof String)
+      {
+        weight += 40 + 2L * ((String) value).length();
+        continue;
+      }
+      if (value instanceof PhpList)
+      {
+        PhpList list = (PhpList) value;
+        if (list.isLongList() || list.isDoubleList())
+        {
+          weight += 56 + 8L * list.size();
+          continue;
+        }
+        weight += 56 + 4L * list.size();
+        for (int i = 0; i < list.size(); i++)
+        {
+          pending.add(list.get(i));
+        }
+        continue;
+      }
+      Map<?, ?> map;
+      if (value instanceof SerializedPhpParser.PhpObject)
+      {
+        SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) value;
+        weight += 24;
+        pending.add(object.name);
+        map = object.attributes;
+      }
+      else
+      {
+        map = (Map<?, ?>) value;
+      }
+      // arrays of keys and values and the hash table of a compact map
+      weight += 64 + 16L * map.size();
+      for (Map.Entry<?, ?> entry : map.entrySet())
+      {
+        pending.add(entry.getKey());
+        pending.add(entry.getValue());
+      }
+    }
+    return weight;
+  }
+
+  public synchronized long getHitCount()
+  {
+    return this.hits;
+  }
+
+  public synchronized long getMissCount()
+  {
+    return this.misses;
+  }
+
+  /**
+   * @return hits divided by lookups, or 0 before the first lookup
+   */
+  public synchronized double getHitRate()
+  {
+    long lookups = this.hits + this.misses;
+    return lookups == 0 ? 0 : (double) this.hits / lookups;
+  }
+
+  public synchronized long getEvictionCount()
+  {
+    return this.evictions;
+  }
+
+  /**
+   * @return the estimated heap bytes retained by the cached entries
+   */
+  public synchronized long getWeight()
+  {
+    return this.weight;
+  }
+
+  public long getMaxWeight()
+  {
+    return this.maxWeight;
+  }
+
+  public synchronized int size()
+  {
+    return this.entries.size();
+  }
+
+  /**
+   * Removes all entries; the counters are kept.
+   */
+  public synchronized void invalidateAll()
+  {
+    this.entries.clear();
+    this.weight = 0;
+  }
+
+  private static final class Entry
+  {
+    final Object value;
+
+    final long weight;
+
+    Entry(Object value, long weight)
+    {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A payload as <code>byte[]</code> slice or <code>String</code>. Lookups
+   * use the caller's array without copying it.
+   */
+  private static final class Key
+  {
+    final long hash;
+
+    final Object payload;
+
+    final int offset;
+
+    final int length;
+
+    Key(long hash, Object payload, int offset, int length)
+    {
+      this.hash = hash;
+      this.payload = payload;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (int) (this.hash ^ this.hash >>> 32);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+      {
+        return false;
+      }
+      Key other = (Key) o;
+      if (this.hash != other.hash || this.length != other.length)
+      {
+        return false;
+      }
+      if (this.payload instanceof String)
+      {
+        return this.payload.equals(other.payload);
+      }
+      if (!(other.payload instanceof byte[]))
+      {
+        return false;
+      }
+      byte[] a = (byte[]) this.payload;
+      byte[] b = (byte[]) other.payload;
+      for (int i = 0; i < this.length; i++)
+      {
+        if (a[this.offset + i] != b[other.offset + i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
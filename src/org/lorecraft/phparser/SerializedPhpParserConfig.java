@@ -0,0 +1,311 @@
+package org.lorecraft.phparser;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable parser settings. A configuration is built once, for example
+ * with a compiled attribute filter, and can be shared between threads;
+ * each thread creates its own cheap parser from it with
+ * {@link #newParser()} and binds it to payloads with
+ * <code>reset</code>:
+ *
+ * <pre>
+ * SerializedPhpParserConfig config = SerializedPhpParserConfig.builder()
+ *     .acceptedAttributeNames(Arrays.asList(&quot;user_id&quot;, &quot;cart&quot;)).build();
+ * SerializedPhpParser parser = config.newParser();
+ * parser.reset(payload);
+ * Object result = parser.parse();
+ * </pre>
+ */
+public final class SerializedPhpParserConfig
+{
+  final boolean assumeUTF8;
+
+  final AttributeFilter acceptedAttributes;
+
+  final boolean lazy;
+
+  final boolean compactLists;
+
+  final PhpMapFactory mapFactory;
+
+  final PhpSymbolTable symbols;
+
+  final PhpShapeCache shapes;
+
+  final boolean immutable;
+
+  final int maxDepth;
+
+  final long maxElements;
+
+  final int maxStringBytes;
+
+  final long maxTotalBytes;
+
+  private SerializedPhpParserConfig(Builder builder)
+  {
+    this.assumeUTF8 = builder.assumeUTF8;
+    this.acceptedAttributes = builder.acceptedAttributeNames == null
+        && builder.acceptedAttributeNameRegex == null ? null
+        : new AttributeFilter(builder.acceptedAttributeNames,
+            builder.acceptedAttributeNameRegex);
+    this.lazy = builder.lazy;
+    this.compactLists = builder.compactLists;
+    this.mapFactory = builder.mapFactory;
+    this.symbols = builder.symbols;
+    this.shapes = builder.shapes;
+    this.immutable = builder.immutable;
+    this.maxDepth = builder.maxDepth;
+    this.maxElements = builder.maxElements;
+    this.maxStringBytes = builder.maxStringBytes;
+    this.maxTotalBytes = builder.maxTotalBytes;
+  }
+
+  public static Builder builder()
+  {
+    return new Builder();
+  }
+
+  /**
+   * @return a new parser with these settings and no input yet
+   */
+  public SerializedPhpParser newParser()
+  {
+    return new SerializedPhpParser(this);
+  }
+
+  public boolean isAssumeUTF8()
+  {
+    return this.assumeUTF8;
+  }
+
+  public boolean isLazy()
+  {
+    return this.lazy;
+  }
+
+  public boolean isCompactLists()
+  {
+    return this.compactLists;
+  }
+
+  public PhpMapFactory getMapFactory()
+  {
+    return this.mapFactory;
+  }
+
+  /**
+   * @return the shared symbol table, or null
+   */
+  public PhpSymbolTable getSymbolTable()
+  {
+    return this.symbols;
+  }
+
+  /**
+   * @return the shared shape cache, or null
+   */
+  public PhpShapeCache getShapeCache()
+  {
+    return this.shapes;
+  }
+
+  public boolean isImmutable()
+  {
+    return this.immutable;
+  }
+
+  public int getMaxDepth()
+  {
+    return this.maxDepth;
+  }
+
+  public long getMaxElements()
+  {
+    return this.maxElements;
+  }
+
+  public int getMaxStringBytes()
+  {
+    return this.maxStringBytes;
+  }
+
+  public long getMaxTotalBytes()
+  {
+    return this.maxTotalBytes;
+  }
+
+  /**
+   * @return true if the entries or strings of a payload are limited
+   */
+  boolean hasSizeLimits()
+  {
+    return this.maxElements != Long.MAX_VALUE
+        || this.maxStringBytes != Integer.MAX_VALUE
+        || this.maxTotalBytes != Long.MAX_VALUE;
+  }
+
+  public static final class Builder
+  {
+    private boolean assumeUTF8 = true;
+
+    private Pattern acceptedAttributeNameRegex;
+
+    private HashSet<String> acceptedAttributeNames;
+
+    private boolean lazy;
+
+    private boolean compactLists;
+
+    private PhpMapFactory mapFactory = PhpMapFactory.COMPACT;
+
+    private PhpSymbolTable symbols;
+
+    private PhpShapeCache shapes;
+
+    private boolean immutable;
+
+    private int maxDepth = SerializedPhpParser.DEFAULT_MAX_DEPTH;
+
+    private long maxElements = Long.MAX_VALUE;
+
+    private int maxStringBytes = Integer.MAX_VALUE;
+
+    private long maxTotalBytes = Long.MAX_VALUE;
+
+    private Builder()
+    {
+    }
+
+    /**
+     * @param assumeUTF8
+     *          decode strings as UTF-8 if true, as ISO-8859-1 otherwise
+     */
+    public Builder assumeUTF8(boolean assumeUTF8)
+    {
+      this.assumeUTF8 = assumeUTF8;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setAcceptedAttributeNameRegex(String)
+     */
+    public Builder acceptedAttributeNameRegex(String acceptedAttributeNameRegex)
+    {
+      this.acceptedAttributeNameRegex = Pattern
+          .compile(acceptedAttributeNameRegex);
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setAcceptedAttributeNames(Collection)
+     */
+    public Builder acceptedAttributeNames(
+        Collection<String> acceptedAttributeNames)
+    {
+      this.acceptedAttributeNames = new HashSet<String>(acceptedAttributeNames);
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setLazy(boolean)
+     */
+    public Builder lazy(boolean lazy)
+    {
+      this.lazy = lazy;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setCompactLists(boolean)
+     */
+    public Builder compactLists(boolean compactLists)
+    {
+      this.compactLists = compactLists;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setMapFactory(PhpMapFactory)
+     */
+    public Builder mapFactory(PhpMapFactory mapFactory)
+    {
+      this.mapFactory = mapFactory;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setSymbolTable(PhpSymbolTable)
+     */
+    public Builder symbolTable(PhpSymbolTable symbols)
+    {
+      this.symbols = symbols;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setShapeCache(PhpShapeCache)
+     */
+    public Builder shapeCache(PhpShapeCache shapes)
+    {
+      this.shapes = shapes;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setImmutable(boolean)
+     */
+    public Builder immutable(boolean immutable)
+    {
+      this.immutable = immutable;
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setMaxDepth(int)
+     */
+    public Builder maxDepth(int maxDepth)
+    {
+      this.maxDepth = SerializedPhpParser.checkLimit("maxDepth", maxDepth);
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setMaxElements(long)
+     */
+    public Builder maxElements(long maxElements)
+    {
+      this.maxElements = SerializedPhpParser.checkLimit("maxElements",
+          maxElements);
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setMaxStringBytes(int)
+     */
+    public Builder maxStringBytes(int maxStringBytes)
+    {
+      this.maxStringBytes = SerializedPhpParser.checkLimit("maxStringBytes",
+          maxStringBytes);
+      return this;
+    }
+
+    /**
+     * @see SerializedPhpParser#setMaxTotalBytes(long)
+     */
+    public Builder maxTotalBytes(long maxTotalBytes)
+    {
+      this.maxTotalBytes = SerializedPhpParser.checkLimit("maxTotalBytes",
+          maxTotalBytes);
+      return this;
+    }
+
+    public SerializedPhpParserConfig build()
+    {
+      return new SerializedPhpParserConfig(this);
+    }
+  }
+}
@@ -42,12 +42,59 @@ public class SerializedPhpParserException extends Exception
    */
   public static final int TO_SHORT_INPUT_STRING = 6;
 
+  /**
+   * code if reading a stream or channel failed, the cause is the
+   * <code>IOException</code>
+   */
+  public static final int READ_ERROR = 7;
+
+  /**
+   * code if a serialized integer, float, length or reference index is
+   * malformed or out of range (example: i:12a4; )
+   */
+  public static final int INVALID_NUMBER = 8;
+
   /**
    * code if serialized string has a unknown type used ( known types:
-   * i, d, b, s, a, O, N, R )
+   * i, d, b, s, a, O, N, R, r )
    */
   public static final int UNKNOWN_TYPE = 9;
 
+  /**
+   * code if a reference points to an enclosing array or object and the
+   * value cannot be written without a cycle, as in JSON (example:
+   * a:1:{i:0;R:1;} )
+   */
+  public static final int CIRCULAR_REFERENCE = 10;
+
+  /**
+   * code if a value cannot be bound to the type of its target (example:
+   * s:1:"x"; bound to an int field)
+   */
+  public static final int TYPE_MISMATCH = 11;
+
+  /**
+   * code if arrays and objects are nested deeper than the parser allows
+   */
+  public static final int TOO_DEEP = 12;
+
+  /**
+   * code if a payload has more array entries and object attributes than
+   * the parser allows
+   */
+  public static final int TOO_MANY_ELEMENTS = 13;
+
+  /**
+   * code if a string is longer than the parser allows
+   */
+  public static final int STRING_TOO_LONG = 14;
+
+  /**
+   * code if the strings of a payload are longer in total than the parser
+   * allows
+   */
+  public static final int TOO_LARGE = 15;
+
   /**
    * code if serialized string failed with unknown reason
    */
@@ -58,6 +105,12 @@ public class SerializedPhpParserException extends Exception
    */
   public int position = 0;
 
+  /**
+   * absolute position as <code>long</code>, equals <code>position</code>
+   * unless the input is larger than 2 GB
+   */
+  public long offset = 0;
+
   /**
    *
    */
@@ -87,6 +140,7 @@ public class SerializedPhpParserException extends Exception
   {
     super(message + " String Position: " + position);
     this.position = position;
+    this.offset = position;
   }
 
   /**
@@ -99,6 +153,7 @@ public class SerializedPhpParserException extends Exception
   {
     super(message + " String Position: " + position, cause);
     this.position = position;
+    this.offset = position;
   }
 
   /**
@@ -110,6 +165,20 @@ public class SerializedPhpParserException extends Exception
   {
     super(message + " String Position: " + position + " Code: " + code);
     this.position = position;
+    this.offset = position;
+    this.code = code;
+  }
+
+  /**
+   * @param message
+   * @param position
+   * @param code
+   */
+  public SerializedPhpParserException(String message, long position, int code)
+  {
+    super(message + " String Position: " + position + " Code: " + code);
+    this.position = (int) Math.min(position, Integer.MAX_VALUE);
+    this.offset = position;
     this.code = code;
   }
 
@@ -124,6 +193,22 @@ public class SerializedPhpParserException extends Exception
   {
     super(message + " String Position: " + position + " Code: " + code, cause);
     this.position = position;
+    this.offset = position;
+    this.code = code;
+  }
+
+  /**
+   * @param message
+   * @param position
+   * @param code
+   * @param cause
+   */
+  public SerializedPhpParserException(String message, long position, int code,
+      Throwable cause)
+  {
+    super(message + " String Position: " + position + " Code: " + code, cause);
+    this.position = (int) Math.min(position, Integer.MAX_VALUE);
+    this.offset = position;
     this.code = code;
   }
 
@@ -0,0 +1,109 @@
+package org.lorecraft.phparser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of parsers that share one configuration. Each call
+ * borrows an idle parser, resets it onto the payload and returns it to the
+ * pool afterwards, so parsers and their internal buffers are reused across
+ * requests. At most <code>maxIdle</code> parsers are kept; more are created
+ * under load and dropped again.
+ */
+public class SerializedPhpParserPool
+{
+  private final SerializedPhpParserConfig config;
+
+  private final int maxIdle;
+
+  private final ConcurrentLinkedQueue<SerializedPhpParser> idle = new ConcurrentLinkedQueue<SerializedPhpParser>();
+
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /**
+   * Keeps up to two idle parsers per processor.
+   */
+  public SerializedPhpParserPool(SerializedPhpParserConfig config)
+  {
+    this(config, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  public SerializedPhpParserPool(SerializedPhpParserConfig config, int maxIdle)
+  {
+    this.config = config;
+    this.maxIdle = maxIdle;
+  }
+
+  public Object parse(String input) throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = borrow();
+    try
+    {
+      parser.reset(input);
+      return parser.parse();
+    }
+    finally
+    {
+      release(parser);
+    }
+  }
+
+  public Object parse(byte[] input) throws SerializedPhpParserException
+  {
+    return parse(input, 0, input.length);
+  }
+
+  public Object parse(byte[] input, int offset, int length)
+      throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = borrow();
+    try
+    {
+      parser.reset(input, offset, length);
+      return parser.parse();
+    }
+    finally
+    {
+      release(parser);
+    }
+  }
+
+  public Object parse(ByteBuffer input) throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = borrow();
+    try
+    {
+      parser.reset(input);
+      return parser.parse();
+    }
+    finally
+    {
+      release(parser);
+    }
+  }
+
+  SerializedPhpParser borrow()
+  {
+    SerializedPhpParser parser = this.idle.poll();
+    if (parser == null)
+    {
+      return this.config.newParser();
+    }
+    this.idleCount.decrementAndGet();
+    return parser;
+  }
+
+  void release(SerializedPhpParser parser)
+  {
+    parser.clear();
+    if (this.idleCount.incrementAndGet() <= this.maxIdle)
+    {
+      this.idle.offer(parser);
+    }
+    else
+    {
+      this.idleCount.decrementAndGet();
+    }
+  }
+}
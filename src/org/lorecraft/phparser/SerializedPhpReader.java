@@ -0,0 +1,478 @@
+package org.lorecraft.phparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Pull reader for serialized PHP data. Instead of building the complete
+ * result tree like {@link SerializedPhpParser}, it reports the input as a
+ * sequence of tokens, and whole values the caller is not interested in can
+ * be stepped over with {@link #skipValue()} without decoding them.
+ * <p>
+ * Example of use, reading a single attribute:
+ *
+ * <pre>
+ * SerializedPhpReader reader = new SerializedPhpReader(input);
+ * reader.next(); // START_OBJECT
+ * while (reader.next() == SerializedPhpReader.Token.KEY)
+ * {
+ *   if (reader.getKey().equals(&quot;user_id&quot;))
+ *   {
+ *     reader.next();
+ *     userId = reader.getLong();
+ *   }
+ *   else
+ *   {
+ *     reader.skipValue();
+ *   }
+ * }
+ * </pre>
+ *
+ * Scalar values are available unboxed through {@link #getLong()},
+ * {@link #getDouble()} and {@link #getBoolean()}. References are reported
+ * as they appear in the input; their index counts the values in the same
+ * way as the reference resolution of <code>SerializedPhpParser</code>.
+ */
+public class SerializedPhpReader
+{
+
+  public enum Token
+  {
+    /**
+     * start of an array, {@link SerializedPhpReader#getLength()} is the
+     * number of entries
+     */
+    START_ARRAY,
+
+    /**
+     * start of an object, {@link SerializedPhpReader#getClassName()} is its
+     * class and {@link SerializedPhpReader#getLength()} the number of
+     * attributes
+     */
+    START_OBJECT,
+
+    /**
+     * array key or attribute name, either a <code>String</code> or a
+     * <code>long</code>
+     */
+    KEY,
+
+    VALUE_STRING,
+
+    VALUE_LONG,
+
+    VALUE_DOUBLE,
+
+    VALUE_BOOLEAN,
+
+    VALUE_NULL,
+
+    /**
+     * reference to an earlier value, either a PHP reference
+     * (<code>R:</code>) or a repeated object (<code>r:</code>),
+     * {@link SerializedPhpReader#getReferenceIndex()} is its 1-based index
+     */
+    REFERENCE,
+
+    /**
+     * end of the current array or object
+     */
+    END,
+
+    /**
+     * the top level value has been read completely
+     */
+    END_DOCUMENT
+  }
+
+  private final PhpScanner scanner;
+
+  /**
+   * number of entries left in each open array or object
+   */
+  private int[] remaining = new int[16];
+
+  private int depth;
+
+  private boolean expectKey;
+
+  private boolean started;
+
+  private Token token;
+
+  private long tokenPosition;
+
+  private int length;
+
+  private String text;
+
+  private long longValue;
+
+  private double doubleValue;
+
+  private boolean booleanValue;
+
+  public SerializedPhpReader(String input)
+  {
+    this(input, true);
+  }
+
+  public SerializedPhpReader(String input, boolean assumeUTF8)
+  {
+    this(new StringPhpInput(input, assumeUTF8));
+  }
+
+  public SerializedPhpReader(byte[] input)
+  {
+    this(input, 0, input.length, true);
+  }
+
+  public SerializedPhpReader(byte[] input, boolean assumeUTF8)
+  {
+    this(input, 0, input.length, assumeUTF8);
+  }
+
+  public SerializedPhpReader(byte[] input, int offset, int length,
+      boolean assumeUTF8)
+  {
+    this(new ByteArrayPhpInput(input, offset, length, assumeUTF8));
+  }
+
+  public SerializedPhpReader(ByteBuffer input, boolean assumeUTF8)
+  {
+    this(PhpInput.wrap(input, assumeUTF8));
+  }
+
+  /**
+   * Reads UTF-8 encoded bytes from a stream through a fixed-size buffer, so
+   * payloads of any size are read with constant memory apart from the
+   * strings that are requested.
+   */
+  public SerializedPhpReader(InputStream input)
+  {
+    this(input, true, StreamPhpInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize
+   *          size of the read buffer, at least 64 bytes and larger than the
+   *          longest number in the input; string bodies may be longer
+   */
+  public SerializedPhpReader(InputStream input, boolean assumeUTF8,
+      int bufferSize)
+  {
+    this(new StreamPhpInput(input, assumeUTF8, bufferSize));
+  }
+
+  public SerializedPhpReader(ReadableByteChannel input)
+  {
+    this(input, true, StreamPhpInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  public SerializedPhpReader(ReadableByteChannel input, boolean assumeUTF8,
+      int bufferSize)
+  {
+    this(new StreamPhpInput(input, assumeUTF8, bufferSize));
+  }
+
+  SerializedPhpReader(PhpInput input)
+  {
+    this.scanner = new PhpScanner(input);
+  }
+
+  /**
+   * Memory-maps a file and reads it in place, see
+   * {@link SerializedPhpParser#mapFile(File, boolean)}.
+   */
+  public static SerializedPhpReader mapFile(File file, boolean assumeUTF8)
+      throws IOException
+  {
+    return new SerializedPhpReader(MappedFilePhpInput.map(file, assumeUTF8));
+  }
+
+  /**
+   * Advances to the next token.
+   *
+   * @return the new current token, {@link Token#END_DOCUMENT} once the top
+   *         level value has been read
+   */
+  public Token next() throws SerializedPhpParserException
+  {
+    if (this.depth > 0)
+    {
+      if (!this.expectKey)
+      {
+        return readValue();
+      }
+      if (this.remaining[this.depth - 1] == 0)
+      {
+        return readEnd();
+      }
+      return readKey();
+    }
+    if (this.started)
+    {
+      return this.token = Token.END_DOCUMENT;
+    }
+    this.started = true;
+    return readValue();
+  }
+
+  /**
+   * Steps over values without decoding them. If the current token is a
+   * {@link Token#KEY}, the value belonging to it is skipped and the next
+   * call to {@link #next()} returns the following key or the end of the
+   * container. If the current token starts an array or object, the rest of
+   * it is skipped and the current token becomes its {@link Token#END}. For
+   * all other tokens this does nothing.
+   */
+  public void skipValue() throws SerializedPhpParserException
+  {
+    if (this.token == Token.KEY)
+    {
+      this.scanner.skipValue(false);
+      this.expectKey = true;
+    }
+    else if (this.token == Token.START_ARRAY
+        || this.token == Token.START_OBJECT)
+    {
+      int[] remaining = this.remaining;
+      int open = this.depth - 1;
+      while (remaining[open] > 0)
+      {
+        this.scanner.skipValue(true);
+        this.scanner.skipValue(false);
+        remaining[open]--;
+      }
+      readEnd();
+    }
+  }
+
+  public Token getToken()
+  {
+    return this.token;
+  }
+
+  /**
+   * @return the position of the current token in the input
+   */
+  public long getPosition()
+  {
+    return this.tokenPosition;
+  }
+
+  /**
+   * @return the number of arrays and objects that are open at the current
+   *         token
+   */
+  public int getDepth()
+  {
+    return this.depth;
+  }
+
+  /**
+   * @return the number of entries of the array or object that starts at the
+   *         current token
+   */
+  public int getLength()
+  {
+    check(this.token == Token.START_ARRAY || this.token == Token.START_OBJECT);
+    return this.length;
+  }
+
+  public String getClassName()
+  {
+    check(this.token == Token.START_OBJECT);
+    return this.text;
+  }
+
+  /**
+   * @return the current key as <code>String</code> or <code>Long</code>
+   */
+  public Object getKey()
+  {
+    check(this.token == Token.KEY);
+    return this.text != null ? this.text : Long.valueOf(this.longValue);
+  }
+
+  /**
+   * @return true if the current key is a <code>String</code>, false if it is
+   *         an integer
+   */
+  public boolean isStringKey()
+  {
+    check(this.token == Token.KEY);
+    return this.text != null;
+  }
+
+  /**
+   * @return the current string value or string key
+   */
+  public String getString()
+  {
+    check(this.token == Token.VALUE_STRING
+        || (this.token == Token.KEY && this.text != null));
+    return this.text;
+  }
+
+  /**
+   * @return the current integer value or integer key
+   */
+  public long getLong()
+  {
+    check(this.token == Token.VALUE_LONG
+        || (this.token == Token.KEY && this.text == null));
+    return this.longValue;
+  }
+
+  public double getDouble()
+  {
+    check(this.token == Token.VALUE_DOUBLE);
+    return this.doubleValue;
+  }
+
+  public boolean getBoolean()
+  {
+    check(this.token == Token.VALUE_BOOLEAN);
+    return this.booleanValue;
+  }
+
+  /**
+   * @return the 1-based index of the value the current reference points to
+   */
+  public int getReferenceIndex()
+  {
+    check(this.token == Token.REFERENCE);
+    return (int) this.longValue;
+  }
+
+  /**
+   * @return true if the current reference is a repeated object
+   *         (<code>r:</code>), which is numbered itself like any other
+   *         value, false for a PHP reference (<code>R:</code>), which is not
+   */
+  public boolean isObjectReference()
+  {
+    check(this.token == Token.REFERENCE);
+    return this.booleanValue;
+  }
+
+  private Token readValue() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    this.tokenPosition = scanner.index;
+    this.text = null;
+    this.expectKey = true;
+    scanner.checkUnexpectedLength(scanner.index + 2);
+    char type = (char) scanner.input.at(scanner.index);
+    scanner.index += 2;
+    switch (type)
+    {
+    case 'i':
+      this.longValue = scanner.readLong("integer");
+      return this.token = Token.VALUE_LONG;
+    case 'd':
+      this.doubleValue = scanner.readDouble();
+      return this.token = Token.VALUE_DOUBLE;
+    case 'b':
+      this.booleanValue = scanner.readBoolean().booleanValue();
+      return this.token = Token.VALUE_BOOLEAN;
+    case 's':
+      int strLen = scanner.readLength();
+      scanner.checkCount(strLen);
+      this.text = scanner.readString(strLen);
+      return this.token = Token.VALUE_STRING;
+    case 'N':
+      return this.token = Token.VALUE_NULL;
+    case 'R':
+    case 'r':
+      this.booleanValue = type == 'r';
+      this.longValue = scanner.readLong("Reference");
+      return this.token = Token.REFERENCE;
+    case 'a':
+      this.length = scanner.readLength();
+      push(this.length);
+      return this.token = Token.START_ARRAY;
+    case 'O':
+      int nameLen = scanner.readLength();
+      scanner.checkCount(nameLen);
+      this.text = scanner.readClassName(nameLen);
+      this.length = scanner.readLength();
+      push(this.length);
+      return this.token = Token.START_OBJECT;
+    default:
+      throw new SerializedPhpParserException("Encountered unknown type ["
+          + type + "]", this.tokenPosition,
+          SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+  }
+
+  private Token readKey() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    this.tokenPosition = scanner.index;
+    scanner.checkUnexpectedLength(scanner.index + 2);
+    char type = (char) scanner.input.at(scanner.index);
+    scanner.index += 2;
+    if (type == 'i')
+    {
+      this.longValue = scanner.readLong("integer");
+      this.text = null;
+    }
+    else if (type == 's')
+    {
+      int strLen = scanner.readLength();
+      scanner.checkCount(strLen);
+      this.text = scanner.readString(strLen);
+    }
+    else
+    {
+      throw new SerializedPhpParserException("Encountered unknown key type ["
+          + type + "]", this.tokenPosition,
+          SerializedPhpParserException.UNKNOWN_TYPE);
+    }
+    this.remaining[this.depth - 1]--;
+    this.expectKey = false;
+    return this.token = Token.KEY;
+  }
+
+  private Token readEnd() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = this.scanner;
+    this.tokenPosition = scanner.index;
+    if (scanner.input.at(scanner.index) != '}')
+    {
+      throw new SerializedPhpParserException(
+          "Unexpected end of serialized Array, missing }!", scanner.index,
+          SerializedPhpParserException.MISSING_CLOSER_STRING);
+    }
+    scanner.index++;
+    this.depth--;
+    this.text = null;
+    this.expectKey = true;
+    return this.token = Token.END;
+  }
+
+  private void push(int length)
+  {
+    if (this.depth == this.remaining.length)
+    {
+      this.remaining = Arrays.copyOf(this.remaining, this.depth * 2);
+    }
+    this.remaining[this.depth++] = length;
+    this.expectKey = true;
+  }
+
+  private void check(boolean expected)
+  {
+    if (!expected)
+    {
+      throw new IllegalStateException("Not available for token "
+          + this.token);
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package org.lorecraft.phparser;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads PHP session data, as written by <code>session_encode()</code> with
+ * the <code>php</code> serialize handler,
+ * <code>name|&lt;serialized&gt;name2|&lt;serialized&gt;</code>, or with the
+ * <code>php_binary</code> handler, where every name is preceded by its
+ * length in one byte instead of followed by <code>|</code>.
+ * <p>
+ * Decoding only indexes the session: one scan steps over every value by
+ * its length prefixes and records its name and position, without decoding
+ * it. A value is parsed by {@link #get(String)} when it is first
+ * requested, with a parser of the given configuration, and kept for later
+ * calls. PHP numbers the references of a session across all of its
+ * variables; a reference to a value of another variable is resolved by
+ * parsing the part of that variable it points to, so the values of two
+ * variables do not share instances. Values are always parsed eagerly, the
+ * lazy mode of the configuration is ignored. A session is not
+ * thread-safe.
+ * <p>
+ * Example of use:
+ *
+ * <pre>
+ * SerializedPhpSession session = SerializedPhpSession.decode(bytes);
+ * Object userId = session.get(&quot;user_id&quot;);
+ * </pre>
+ */
+public final class SerializedPhpSession
+{
+  /**
+   * the bit of a <code>php_binary</code> name length that marks a variable
+   * without a value
+   */
+  private static final int BINARY_UNDEFINED = 0x80;
+
+  private static final SerializedPhpParserConfig DEFAULT_CONFIG = SerializedPhpParserConfig
+      .builder().build();
+
+  private final PhpInput input;
+
+  private final SerializedPhpParserConfig config;
+
+  /**
+   * the index of the last variable of each name, in input order
+   */
+  private final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+
+  private long[] starts = new long[16];
+
+  private int[] slots = new int[16];
+
+  private Object[] values = new Object[16];
+
+  private boolean[] parsed = new boolean[16];
+
+  private int count;
+
+  /**
+   * true if any value contains a reference
+   */
+  private boolean references;
+
+  private SerializedPhpParser parser;
+
+  private SerializedPhpSession(PhpInput input,
+      SerializedPhpParserConfig config)
+  {
+    this.input = input;
+    this.config = config;
+  }
+
+  /**
+   * Indexes UTF-8 session data of the <code>php</code> handler.
+   */
+  public static SerializedPhpSession decode(String data)
+      throws SerializedPhpParserException
+  {
+    return decode(new StringPhpInput(data, true), DEFAULT_CONFIG, false);
+  }
+
+  /**
+   * Indexes UTF-8 session data of the <code>php</code> handler.
+   */
+  public static SerializedPhpSession decode(byte[] data)
+      throws SerializedPhpParserException
+  {
+    return decode(data, DEFAULT_CONFIG);
+  }
+
+  /**
+   * Indexes session data of the <code>php</code> handler. The values are
+   * parsed with the given configuration.
+   */
+  public static SerializedPhpSession decode(byte[] data,
+      SerializedPhpParserConfig config) throws SerializedPhpParserException
+  {
+    return decode(new ByteArrayPhpInput(data, 0, data.length, config
+        .isAssumeUTF8()), config, false);
+  }
+
+  /**
+   * Indexes session data of the <code>php</code> handler in the remaining
+   * bytes of the buffer, without changing its position.
+   */
+  public static SerializedPhpSession decode(ByteBuffer data,
+      SerializedPhpParserConfig config) throws SerializedPhpParserException
+  {
+    return decode(PhpInput.wrap(data, config.isAssumeUTF8()), config, false);
+  }
+
+  /**
+   * Indexes UTF-8 session data of the <code>php_binary</code> handler.
+   */
+  public static SerializedPhpSession decodeBinary(byte[] data)
+      throws SerializedPhpParserException
+  {
+    return decodeBinary(data, DEFAULT_CONFIG);
+  }
+
+  /**
+   * Indexes session data of the <code>php_binary</code> handler. The
+   * values are parsed with the given configuration.
+   */
+  public static SerializedPhpSession decodeBinary(byte[] data,
+      SerializedPhpParserConfig config) throws SerializedPhpParserException
+  {
+    return decode(new ByteArrayPhpInput(data, 0, data.length, config
+        .isAssumeUTF8()), config, true);
+  }
+
+  private static SerializedPhpSession decode(PhpInput input,
+      SerializedPhpParserConfig config, boolean binary)
+      throws SerializedPhpParserException
+  {
+    SerializedPhpSession session = new SerializedPhpSession(input, config);
+    if (binary)
+    {
+      session.indexBinary();
+    }
+    else
+    {
+      session.index();
+    }
+    return session;
+  }
+
+  /**
+   * Indexes <code>name|value</code> pairs.
+   */
+  private void index() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = new PhpScanner(this.input);
+    while (this.input.has(scanner.index + 1))
+    {
+      long start = scanner.index;
+      long bar = this.input.indexOf('|', start);
+      if (bar == -1)
+      {
+        throw new SerializedPhpParserException(
+            "Unexpected end of session data, missing |!", start,
+            SerializedPhpParserException.MISSING_DELIMITER_STRING);
+      }
+      scanner.index = bar + 1;
+      add(scanner, this.input.substring(start, bar));
+    }
+  }
+
+  /**
+   * Indexes values that are preceded by the length of their name in one
+   * byte. A name whose length has the high bit set has no value.
+   */
+  private void indexBinary() throws SerializedPhpParserException
+  {
+    PhpScanner scanner = new PhpScanner(this.input);
+    while (this.input.has(scanner.index + 1))
+    {
+      long start = scanner.index;
+      int length = this.input.at(start);
+      long end = start + 1 + (length & ~BINARY_UNDEFINED);
+      if (end > this.input.length())
+      {
+        throw new SerializedPhpParserException(
+            "Unexpected end of session data!", start,
+            SerializedPhpParserException.TO_SHORT_INPUT_STRING);
+      }
+      scanner.index = end;
+      if ((length & BINARY_UNDEFINED) == 0)
+      {
+        add(scanner, this.input.substring(start + 1, end));
+      }
+    }
+  }
+
+  /**
+   * Records the value at the scanner position and steps over it.
+   */
+  private void add(PhpScanner scanner, String name)
+      throws SerializedPhpParserException
+  {
+    if (this.count == this.starts.length)
+    {
+      int capacity = this.count * 2;
+      this.starts = Arrays.copyOf(this.starts, capacity);
+      this.slots = Arrays.copyOf(this.slots, capacity);
+      this.values = Arrays.copyOf(this.values, capacity);
+      this.parsed = Arrays.copyOf(this.parsed, capacity);
+    }
+    this.starts[this.count] = scanner.index;
+    this.slots[this.count] = scanner.skipValue(false);
+    this.names.put(name, Integer.valueOf(this.count));
+    this.count++;
+    this.references |= scanner.skippedReference;
+  }
+
+  /**
+   * @return the number of variables
+   */
+  public int size()
+  {
+    return this.names.size();
+  }
+
+  /**
+   * @return the variable names in the order of the session data
+   */
+  public Set<String> keySet()
+  {
+    return Collections.unmodifiableSet(this.names.keySet());
+  }
+
+  public boolean containsKey(String name)
+  {
+    return this.names.containsKey(name);
+  }
+
+  /**
+   * Parses the value of a variable on first access.
+   *
+   * @return the value, or null if the session has no variable of that name
+   */
+  public Object get(String name) throws SerializedPhpParserException
+  {
+    Integer index = this.names.get(name);
+    if (index == null)
+    {
+      return null;
+    }
+    int i = index.intValue();
+    if (!this.parsed[i])
+    {
+      if (this.parser == null)
+      {
+        this.parser = this.config.newParser();
+      }
+      // earlier values only count for references
+      int earlier = this.references ? i : 0;
+      this.values[i] = this.parser.parseElement(this.input, this.starts[i],
+          this.starts, this.slots, earlier);
+      this.parsed[i] = true;
+      this.parser.clear();
+    }
+    return this.values[i];
+  }
+
+  /**
+   * Parses all values that were not requested yet.
+   *
+   * @return the variables by name, in the order of the session data
+   */
+  public Map<String, Object> toMap() throws SerializedPhpParserException
+  {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for (String name : this.names.keySet())
+    {
+      map.put(name, get(name));
+    }
+    return map;
+  }
+}
@@ -0,0 +1,606 @@
+package org.lorecraft.phparser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes Java values into the format of PHP's <code>serialize()</code>,
+ * the inverse of {@link SerializedPhpParser}. The output is UTF-8 and
+ * written through an internal buffer that is reused between calls, either
+ * straight into an <code>OutputStream</code> or <code>ByteBuffer</code> or
+ * into a new <code>byte[]</code>.
+ * <p>
+ * Supported values are <code>Map</code> and <code>List</code> (written as
+ * arrays), {@link SerializedPhpParser.PhpObject},
+ * {@link SerializedPhpParser#NULL} and <code>null</code>,
+ * <code>Long</code>, <code>Integer</code>, <code>Short</code>,
+ * <code>Byte</code>, <code>Double</code>, <code>Float</code>,
+ * <code>Boolean</code> and <code>CharSequence</code> or
+ * <code>Character</code>. Array keys must be integers or strings. An array
+ * that is written a second time is written as a PHP reference
+ * <code>R:</code>, a repeated object as <code>r:</code>, numbered like PHP
+ * does, so shared and cyclic structures survive a round trip.
+ * <p>
+ * A writer is not thread-safe; use one per thread.
+ */
+public class SerializedPhpWriter
+{
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private byte[] buffer;
+
+  private int count;
+
+  private OutputStream out;
+
+  private ByteBuffer target;
+
+  /**
+   * number of the next value, counted like PHP counts them
+   */
+  private int slot;
+
+  private final IdentityHashMap<Object, Integer> written = new IdentityHashMap<Object, Integer>();
+
+  /**
+   * the entries of the arrays and objects that are being written,
+   * innermost last, and the next index of lists or -1 for maps
+   */
+  private Iterator<?>[] entries = new Iterator<?>[16];
+
+  private int[] indexes = new int[16];
+
+  private int depth;
+
+  public SerializedPhpWriter()
+  {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize
+   *          initial size of the internal buffer, at least 64 bytes
+   */
+  public SerializedPhpWriter(int bufferSize)
+  {
+    if (bufferSize < 64)
+    {
+      throw new IllegalArgumentException("buffer size " + bufferSize
+          + " is smaller than 64");
+    }
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * @return the serialized value as UTF-8 bytes
+   */
+  public byte[] toBytes(Object value)
+  {
+    try
+    {
+      writeDocument(value);
+    }
+    catch (IOException ex)
+    {
+      // without a stream the buffer only grows
+      throw new IllegalStateException(ex);
+    }
+    return Arrays.copyOf(this.buffer, this.count);
+  }
+
+  /**
+   * @return the serialized value as a <code>String</code>; string lengths
+   *         in it are UTF-8 byte counts, as PHP writes them
+   */
+  public String serialize(Object value)
+  {
+    return new String(toBytes(value), PhpInput.UTF8);
+  }
+
+  /**
+   * Writes the serialized value to the stream through the internal buffer.
+   * The stream is not flushed or closed.
+   */
+  public void write(Object value, OutputStream out) throws IOException
+  {
+    this.out = out;
+    try
+    {
+      writeDocument(value);
+      flush();
+    }
+    finally
+    {
+      this.out = null;
+    }
+  }
+
+  /**
+   * Puts the serialized value into the buffer at its position.
+   *
+   * @throws BufferOverflowException
+   *           if the value does not fit into the remaining bytes; the
+   *           buffer then holds an incomplete value
+   */
+  public void write(Object value, ByteBuffer target)
+  {
+    this.target = target;
+    try
+    {
+      writeDocument(value);
+      flush();
+    }
+    catch (IOException ex)
+    {
+      throw new IllegalStateException(ex);
+    }
+    finally
+    {
+      this.target = null;
+    }
+  }
+
+  private void writeDocument(Object value) throws IOException
+  {
+    this.count = 0;
+    this.slot = 1;
+    this.written.clear();
+    try
+    {
+      writeTree(value);
+    }
+    finally
+    {
+      this.written.clear();
+      Arrays.fill(this.entries, 0, this.depth, null);
+      this.depth = 0;
+    }
+  }
+
+  /**
+   * Writes a value with the arrays and objects in it. They are not written
+   * by recursion: opening one pushes the iterator over its entries on an
+   * explicit stack, and the loop writes the entries of the innermost one
+   * until it ends, so deep trees do not depend on the thread stack.
+   */
+  private void writeTree(Object value) throws IOException
+  {
+    while (true)
+    {
+      writeValue(value);
+      // close the arrays and objects that have ended until one has another
+      // entry
+      while (true)
+      {
+        if (this.depth == 0)
+        {
+          return;
+        }
+        Iterator<?> entries = this.entries[this.depth - 1];
+        if (entries.hasNext())
+        {
+          int index = this.indexes[this.depth - 1];
+          if (index < 0)
+          {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries.next();
+            writeKey(entry.getKey());
+            value = entry.getValue();
+          }
+          else
+          {
+            writeAscii("i:");
+            writeLong(index);
+            writeByte(';');
+            this.indexes[this.depth - 1] = index + 1;
+            value = entries.next();
+          }
+          break;
+        }
+        writeByte('}');
+        this.entries[--this.depth] = null;
+      }
+    }
+  }
+
+  /**
+   * Writes a value, or the start of an array or object whose entries are
+   * pushed to be written by {@link #writeTree(Object)}.
+   */
+  private void writeValue(Object value) throws IOException
+  {
+    if (value instanceof CharSequence || value instanceof Character)
+    {
+      this.slot++;
+      writeString(value.toString());
+    }
+    else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte)
+    {
+      this.slot++;
+      writeAscii("i:");
+      writeLong(((Number) value).longValue());
+      writeByte(';');
+    }
+    else if (value instanceof Double || value instanceof Float)
+    {
+      this.slot++;
+      writeAscii("d:");
+      writeAscii(formatDouble(((Number) value).doubleValue()));
+      writeByte(';');
+    }
+    else if (value instanceof Boolean)
+    {
+      this.slot++;
+      writeAscii(((Boolean) value).booleanValue() ? "b:1;" : "b:0;");
+    }
+    else if (value == null || value == SerializedPhpParser.NULL)
+    {
+      this.slot++;
+      writeAscii("N;");
+    }
+    else if (value instanceof Map || value instanceof List)
+    {
+      Integer previous = this.written.get(value);
+      if (previous != null)
+      {
+        // PHP does not number a reference itself
+        writeAscii("R:");
+        writeLong(previous.intValue());
+        writeByte(';');
+        return;
+      }
+      this.written.put(value, Integer.valueOf(this.slot++));
+      if (value instanceof Map)
+      {
+        writeMap((Map<?, ?>) value, "a:");
+      }
+      else
+      {
+        writeList((List<?>) value);
+      }
+    }
+    else if (value instanceof SerializedPhpParser.PhpObject)
+    {
+      Integer previous = this.written.get(value);
+      this.slot++;
+      if (previous != null)
+      {
+        writeAscii("r:");
+        writeLong(previous.intValue());
+        writeByte(';');
+        return;
+      }
+      this.written.put(value, Integer.valueOf(this.slot - 1));
+      SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) value;
+      writeAscii("O:");
+      writeLong(utf8Length(object.name));
+      writeAscii(":\"");
+      writeUtf8(object.name);
+      writeAscii("\":");
+      writeMap(object.attributes, "");
+    }
+    else
+    {
+      throw new IllegalArgumentException("Cannot serialize "
+          + value.getClass().getName());
+    }
+  }
+
+  private void writeMap(Map<?, ?> map, String tag) throws IOException
+  {
+    writeAscii(tag);
+    writeLong(map.size());
+    writeAscii(":{");
+    push(map.entrySet().iterator(), -1);
+  }
+
+  private void writeList(List<?> list) throws IOException
+  {
+    writeAscii("a:");
+    writeLong(list.size());
+    writeAscii(":{");
+    push(list.iterator(), 0);
+  }
+
+  private void push(Iterator<?> entries, int index)
+  {
+    if (this.depth == this.entries.length)
+    {
+      this.entries = Arrays.copyOf(this.entries, this.depth * 2);
+      this.indexes = Arrays.copyOf(this.indexes, this.depth * 2);
+    }
+    this.entries[this.depth] = entries;
+    this.indexes[this.depth++] = index;
+  }
+
+  private void writeKey(Object key) throws IOException
+  {
+    if (key instanceof Long || key instanceof Integer || key instanceof Short
+        || key instanceof Byte)
+    {
+      writeAscii("i:");
+      writeLong(((Number) key).longValue());
+      writeByte(';');
+    }
+    else if (key instanceof CharSequence || key instanceof Character)
+    {
+      writeString(key.toString());
+    }
+    else
+    {
+      throw new IllegalArgumentException("Cannot serialize array key "
+          + (key == null ? "null" : key.getClass().getName()));
+    }
+  }
+
+  private void writeString(String value) throws IOException
+  {
+    writeAscii("s:");
+    writeLong(utf8Length(value));
+    writeAscii(":\"");
+    writeUtf8(value);
+    writeAscii("\";");
+  }
+
+  /**
+   * Counts the UTF-8 bytes of a string without encoding it. Unpaired
+   * surrogates count as the single <code>?</code> they are replaced with.
+   */
+  static int utf8Length(String value)
+  {
+    int length = value.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++)
+    {
+      char c = value.charAt(i);
+      if (c >= 0x80)
+      {
+        if (c < 0x800)
+        {
+          bytes++;
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(value.charAt(i + 1)))
+        {
+          // two chars, four bytes
+          bytes += 2;
+          i++;
+        }
+        else if (!isSurrogate(c))
+        {
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static boolean isSurrogate(char c)
+  {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+  private void writeUtf8(String value) throws IOException
+  {
+    int length = value.length();
+    for (int i = 0; i < length; i++)
+    {
+      if (this.count + 4 > this.buffer.length)
+      {
+        makeRoom(4);
+      }
+      char c = value.charAt(i);
+      byte[] buffer = this.buffer;
+      if (c < 0x80)
+      {
+        buffer[this.count++] = (byte) c;
+      }
+      else if (c < 0x800)
+      {
+        buffer[this.count++] = (byte) (0xC0 | c >> 6);
+        buffer[this.count++] = (byte) (0x80 | c & 0x3F);
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1)))
+      {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[this.count++] = (byte) (0xF0 | codePoint >> 18);
+        buffer[this.count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+        buffer[this.count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+        buffer[this.count++] = (byte) (0x80 | codePoint & 0x3F);
+      }
+      else if (isSurrogate(c))
+      {
+        buffer[this.count++] = '?';
+      }
+      else
+      {
+        buffer[this.count++] = (byte) (0xE0 | c >> 12);
+        buffer[this.count++] = (byte) (0x80 | c >> 6 & 0x3F);
+        buffer[this.count++] = (byte) (0x80 | c & 0x3F);
+      }
+    }
+  }
+
+  /**
+   * Formats a float like PHP 7.1 and later, which prints the shortest digits
+   * that read back to the same value like <code>%.17G</code>: fixed notation
+   * from 1.0E-4 up to 1.0E+15, exponents with a sign outside of it, integral
+   * values without a fraction, and <code>INF</code>, <code>-INF</code> and
+   * <code>NAN</code>.
+   */
+  static String formatDouble(double value)
+  {
+    if (Double.isNaN(value))
+    {
+      return "NAN";
+    }
+    if (Double.isInfinite(value))
+    {
+      return value > 0 ? "INF" : "-INF";
+    }
+    if (value == 0 && 1 / value < 0)
+    {
+      return "-0";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15)
+    {
+      return Long.toString((long) value);
+    }
+    // the shortest digits, as in d.ddd or d.dddEx
+    String text = Double.toString(Math.abs(value));
+    int exponent = text.indexOf('E');
+    String mantissa = exponent == -1 ? text : text.substring(0, exponent);
+    int dot = mantissa.indexOf('.');
+    StringBuilder digits = new StringBuilder(mantissa.length());
+    digits.append(mantissa, 0, dot).append(mantissa, dot + 1,
+        mantissa.length());
+    // the value is 0.digits * 10^point
+    int point = dot
+        + (exponent == -1 ? 0 : Integer.parseInt(text.substring(exponent + 1)));
+    int leading = 0;
+    while (digits.charAt(leading) == '0')
+    {
+      leading++;
+    }
+    digits.delete(0, leading);
+    point -= leading;
+    int length = digits.length();
+    while (digits.charAt(length - 1) == '0')
+    {
+      length--;
+    }
+    digits.setLength(length);
+
+    StringBuilder result = new StringBuilder(length + 8);
+    if (value < 0)
+    {
+      result.append('-');
+    }
+    if (point < -3 || point > 15)
+    {
+      result.append(digits.charAt(0)).append('.');
+      if (length == 1)
+      {
+        result.append('0');
+      }
+      else
+      {
+        result.append(digits, 1, length);
+      }
+      result.append(point > 0 ? "E+" : "E-").append(Math.abs(point - 1));
+    }
+    else if (point <= 0)
+    {
+      result.append("0.");
+      for (int i = point; i < 0; i++)
+      {
+        result.append('0');
+      }
+      result.append(digits);
+    }
+    else
+    {
+      result.append(digits, 0, Math.min(point, length));
+      for (int i = length; i < point; i++)
+      {
+        result.append('0');
+      }
+      if (point < length)
+      {
+        result.append('.').append(digits, point, length);
+      }
+    }
+    return result.toString();
+  }
+
+  private void writeLong(long value) throws IOException
+  {
+    if (this.count + 20 > this.buffer.length)
+    {
+      makeRoom(20);
+    }
+    byte[] buffer = this.buffer;
+    // work on the negative value, so Long.MIN_VALUE does not overflow
+    if (value < 0)
+    {
+      buffer[this.count++] = '-';
+    }
+    else
+    {
+      value = -value;
+    }
+    int digits = 1;
+    for (long rest = value; rest <= -10; rest /= 10)
+    {
+      digits++;
+    }
+    int position = this.count + digits;
+    do
+    {
+      buffer[--position] = (byte) ('0' - value % 10);
+      value /= 10;
+    }
+    while (value != 0);
+    this.count += digits;
+  }
+
+  private void writeAscii(String text) throws IOException
+  {
+    int length = text.length();
+    if (this.count + length > this.buffer.length)
+    {
+      makeRoom(length);
+    }
+    for (int i = 0; i < length; i++)
+    {
+      this.buffer[this.count++] = (byte) text.charAt(i);
+    }
+  }
+
+  private void writeByte(char c) throws IOException
+  {
+    if (this.count == this.buffer.length)
+    {
+      makeRoom(1);
+    }
+    this.buffer[this.count++] = (byte) c;
+  }
+
+  /**
+   * Drains the buffer to the stream or target buffer, or grows it if the
+   * output is collected in memory.
+   */
+  private void makeRoom(int length) throws IOException
+  {
+    if (this.out != null || this.target != null)
+    {
+      flush();
+    }
+    if (this.count + length > this.buffer.length)
+    {
+      this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2,
+          this.count + length));
+    }
+  }
+
+  private void flush() throws IOException
+  {
+    if (this.out != null)
+    {
+      this.out.write(this.buffer, 0, this.count);
+    }
+    else
+    {
+      this.target.put(this.buffer, 0, this.count);
+    }
+    this.count = 0;
+  }
+}
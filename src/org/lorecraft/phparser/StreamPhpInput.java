@@ -0,0 +1,315 @@
+package org.lorecraft.phparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Input that reads an <code>InputStream</code> or a blocking
+ * <code>ReadableByteChannel</code> through a fixed-size buffer. Positions
+ * are absolute byte offsets from the start of the stream. Only the bytes
+ * of the token being read are kept, so the buffer never grows; string
+ * bodies longer than the buffer are read straight into the array they are
+ * decoded from, which grows as the bytes arrive.
+ */
+final class StreamPhpInput extends PhpInput
+{
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  static final int MIN_BUFFER_SIZE = 64;
+
+  private final InputStream stream;
+
+  private final ReadableByteChannel channel;
+
+  private final ByteBuffer channelBuffer;
+
+  private final byte[] buffer;
+
+  private final Charset charset;
+
+  /**
+   * absolute position of <code>buffer[0]</code>
+   */
+  private long bufferStart;
+
+  private int count;
+
+  /**
+   * positions before this one are no longer needed
+   */
+  private long released;
+
+  private long end = -1;
+
+  StreamPhpInput(InputStream stream, boolean assumeUTF8, int bufferSize)
+  {
+    this(stream, null, assumeUTF8, bufferSize);
+  }
+
+  StreamPhpInput(ReadableByteChannel channel, boolean assumeUTF8,
+      int bufferSize)
+  {
+    this(null, channel, assumeUTF8, bufferSize);
+  }
+
+  private StreamPhpInput(InputStream stream, ReadableByteChannel channel,
+      boolean assumeUTF8, int bufferSize)
+  {
+    if (bufferSize < MIN_BUFFER_SIZE)
+    {
+      throw new IllegalArgumentException("buffer size " + bufferSize
+          + " is smaller than " + MIN_BUFFER_SIZE);
+    }
+    this.stream = stream;
+    this.channel = channel;
+    this.buffer = new byte[bufferSize];
+    this.channelBuffer = channel != null ? ByteBuffer.wrap(this.buffer) : null;
+    this.charset = assumeUTF8 ? UTF8 : LATIN1;
+  }
+
+  /**
+   * @return the length of the stream once its end has been reached,
+   *         <code>Long.MAX_VALUE</code> before
+   */
+  @Override
+  long length()
+  {
+    return this.end >= 0 ? this.end : Long.MAX_VALUE;
+  }
+
+  @Override
+  boolean has(long end) throws SerializedPhpParserException
+  {
+    return end <= this.bufferStart + this.count || at(end - 1) != -1;
+  }
+
+  @Override
+  void release(long position)
+  {
+    if (position > this.released)
+    {
+      this.released = position;
+    }
+  }
+
+  @Override
+  int at(long position) throws SerializedPhpParserException
+  {
+    long offset = position - this.bufferStart;
+    if (offset >= 0 && offset < this.count)
+    {
+      return this.buffer[(int) offset] & 0xFF;
+    }
+    if (!fill(position))
+    {
+      return -1;
+    }
+    return this.buffer[(int) (position - this.bufferStart)] & 0xFF;
+  }
+
+  @Override
+  long indexOf(int ch, long from) throws SerializedPhpParserException
+  {
+    for (long position = from;; position++)
+    {
+      int c = at(position);
+      if (c == ch)
+      {
+        return position;
+      }
+      if (c == -1)
+      {
+        return -1;
+      }
+    }
+  }
+
+  @Override
+  String substring(long start, long end) throws SerializedPhpParserException
+  {
+    release(start);
+    int length = (int) (end - start);
+    if (length == 0)
+    {
+      return "";
+    }
+    if (length <= this.buffer.length)
+    {
+      if (at(end - 1) == -1)
+      {
+        throw unexpectedEndOfString(length, start, this.end);
+      }
+      checkRetained(start);
+      return new String(this.buffer, (int) (start - this.bufferStart), length,
+          this.charset);
+    }
+    // longer than the buffer: read the body directly into its own array,
+    // grown as the bytes arrive
+    byte[] bytes = new byte[nextCapacity(this.buffer.length, length)];
+    int copied = 0;
+    long windowEnd = this.bufferStart + this.count;
+    if (start < windowEnd)
+    {
+      checkRetained(start);
+      copied = (int) (windowEnd - start);
+      System.arraycopy(this.buffer, (int) (start - this.bufferStart), bytes, 0,
+          copied);
+    }
+    else
+    {
+      this.bufferStart = windowEnd;
+      this.count = 0;
+      if (!discard(start - windowEnd))
+      {
+        throw unexpectedEndOfString(length, start, this.end);
+      }
+    }
+    while (copied < length)
+    {
+      if (copied == bytes.length)
+      {
+        bytes = Arrays.copyOf(bytes, nextCapacity(copied, length));
+      }
+      int n = read(bytes, copied, bytes.length - copied);
+      if (n < 0)
+      {
+        this.end = start + copied;
+        throw unexpectedEndOfString(length, start, this.end);
+      }
+      copied += n;
+    }
+    this.bufferStart = end;
+    this.count = 0;
+    this.released = end;
+    return new String(bytes, this.charset);
+  }
+
+  /**
+   * Doubles up to the declared length, so a forged length in a short input
+   * does not allocate its full storage before the bytes have arrived.
+   */
+  private static int nextCapacity(int capacity, int length)
+  {
+    return (int) Math.min(length, capacity * 2L);
+  }
+
+  @Override
+  long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException
+  {
+    if (this.end >= 0 && start + byteLength > this.end)
+    {
+      throw unexpectedEndOfString(byteLength, start, this.end);
+    }
+    return start + byteLength;
+  }
+
+  /**
+   * Makes <code>position</code> available in the buffer, keeping the bytes
+   * from the released position on if they fit.
+   *
+   * @return false if the stream ends before <code>position</code>
+   */
+  private boolean fill(long position) throws SerializedPhpParserException
+  {
+    if (position < this.bufferStart)
+    {
+      throw new SerializedPhpParserException(
+          "Position is no longer buffered, a token is longer than the buffer!",
+          position, SerializedPhpParserException.UNEXPECTED_FAIL);
+    }
+    if (this.end >= 0)
+    {
+      return false;
+    }
+    long keep = Math.max(this.bufferStart, Math.min(this.released, position));
+    if (position - keep >= this.buffer.length)
+    {
+      keep = position;
+    }
+    long windowEnd = this.bufferStart + this.count;
+    if (keep >= windowEnd)
+    {
+      this.bufferStart = windowEnd;
+      this.count = 0;
+      if (!discard(keep - windowEnd))
+      {
+        return false;
+      }
+    }
+    else
+    {
+      int shift = (int) (keep - this.bufferStart);
+      System.arraycopy(this.buffer, shift, this.buffer, 0, this.count - shift);
+      this.count -= shift;
+      this.bufferStart = keep;
+    }
+    while (this.bufferStart + this.count <= position)
+    {
+      int n = read(this.buffer, this.count, this.buffer.length - this.count);
+      if (n < 0)
+      {
+        this.end = this.bufferStart + this.count;
+        return false;
+      }
+      this.count += n;
+    }
+    return true;
+  }
+
+  /**
+   * Reads and drops <code>length</code> bytes after the (empty) buffer.
+   */
+  private boolean discard(long length) throws SerializedPhpParserException
+  {
+    while (length > 0)
+    {
+      int n = read(this.buffer, 0, (int) Math.min(length, this.buffer.length));
+      if (n < 0)
+      {
+        this.end = this.bufferStart;
+        return false;
+      }
+      this.bufferStart += n;
+      length -= n;
+    }
+    return true;
+  }
+
+  private int read(byte[] target, int offset, int length)
+      throws SerializedPhpParserException
+  {
+    try
+    {
+      if (this.stream != null)
+      {
+        return this.stream.read(target, offset, length);
+      }
+      ByteBuffer view = target == this.buffer ? this.channelBuffer : ByteBuffer
+          .wrap(target);
+      view.limit(offset + length);
+      view.position(offset);
+      return this.channel.read(view);
+    }
+    catch (IOException ex)
+    {
+      throw new SerializedPhpParserException("Failed to read input!",
+          this.bufferStart + this.count, SerializedPhpParserException.READ_ERROR,
+          ex);
+    }
+  }
+
+  private void checkRetained(long start) throws SerializedPhpParserException
+  {
+    if (start < this.bufferStart)
+    {
+      throw new SerializedPhpParserException(
+          "Position is no longer buffered, a token is longer than the buffer!",
+          start, SerializedPhpParserException.UNEXPECTED_FAIL);
+    }
+  }
+}
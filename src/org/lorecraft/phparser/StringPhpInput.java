@@ -0,0 +1,114 @@
+package org.lorecraft.phparser;
+
+/**
+ * Input backed by an already decoded <code>String</code>. The byte lengths
+ * written by PHP are mapped onto chars by estimating the UTF-8 length of
+ * every char, or by counting one byte per char if UTF-8 is not assumed.
+ */
+final class StringPhpInput extends PhpInput
+{
+  private final String input;
+
+  private final int inputLength;
+
+  private final boolean assumeUTF8;
+
+  StringPhpInput(String input, boolean assumeUTF8)
+  {
+    this.input = input;
+    this.inputLength = input.length();
+    this.assumeUTF8 = assumeUTF8;
+  }
+
+  @Override
+  long length()
+  {
+    return this.inputLength;
+  }
+
+  @Override
+  int at(long position)
+  {
+    return position < this.inputLength ? this.input.charAt((int) position)
+        : -1;
+  }
+
+  @Override
+  long indexOf(int ch, long from)
+  {
+    return this.input.indexOf(ch, (int) from);
+  }
+
+  @Override
+  String substring(long start, long end)
+  {
+    return this.input.substring((int) start, (int) end);
+  }
+
+  @Override
+  boolean regionEquals(long start, long end, String text)
+  {
+    return end - start == text.length()
+        && this.input.regionMatches((int) start, text, 0, text.length());
+  }
+
+  @Override
+  int regionHash(long start, long end)
+  {
+    String input = this.input;
+    int hash = 0;
+    for (int i = (int) start; i < end; i++)
+    {
+      hash = 31 * hash + input.charAt(i);
+    }
+    return hash;
+  }
+
+  @Override
+  long stringEnd(long start, int byteLength)
+      throws SerializedPhpParserException
+  {
+    if (!this.assumeUTF8)
+    {
+      if (start + byteLength > this.inputLength)
+      {
+        throw unexpectedEndOfString(byteLength, start, this.inputLength);
+      }
+      return start + byteLength;
+    }
+    int index = (int) start;
+    int byteCount = 0;
+    while (byteCount != byteLength)
+    {
+      if (index >= this.inputLength)
+      {
+        throw new SerializedPhpParserException("Unexpected end of String ("
+            + byteLength + ") at position " + (index - start)
+            + ", absolut position in Input String: " + index
+            + ". The string: " + this.input.substring((int) start, index),
+            index, SerializedPhpParserException.TO_LONG_STRING);
+      }
+      char ch = this.input.charAt(index++);
+      if (ch <= 0x007F)
+      {
+        byteCount++;
+      }
+      else if (ch <= 0x07FF)
+      {
+        byteCount += 2;
+      }
+      else if (Character.isHighSurrogate(ch) && index < this.inputLength
+          && Character.isLowSurrogate(this.input.charAt(index)))
+      {
+        // a supplementary character, two chars and four bytes
+        byteCount += 4;
+        index++;
+      }
+      else
+      {
+        byteCount += 3;
+      }
+    }
+    return index;
+  }
+}
@@ -0,0 +1,258 @@
+package org.lorecraft.phpserializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpBatchParser;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpBatchParserTest extends TestCase
+{
+
+  public void testResultsKeepInputOrder() throws Exception
+  {
+    List<Object> payloads = new ArrayList<Object>();
+    for (int i = 0; i < 5000; i++)
+    {
+      String row = "a:2:{s:2:\"id\";i:" + i + ";s:4:\"name\";s:1:\"x\";}";
+      if (i % 3 == 0)
+      {
+        payloads.add(row.getBytes("UTF-8"));
+      }
+      else if (i % 3 == 1)
+      {
+        payloads.add(ByteBuffer.wrap(row.getBytes("UTF-8")));
+      }
+      else
+      {
+        payloads.add(row);
+      }
+    }
+    SerializedPhpBatchParser batch = new SerializedPhpBatchParser(
+        SerializedPhpParserConfig.builder().build(), 4);
+    try
+    {
+      List<SerializedPhpBatchParser.Result> results = batch.parse(payloads);
+      assertEquals(payloads.size(), results.size());
+      for (int i = 0; i < results.size(); i++)
+      {
+        assertFalse(results.get(i).isFailed());
+        assertEquals("{id=" + i + ", name=x}", results.get(i).getValue()
+            .toString());
+      }
+      assertTrue(batch.parse(new ArrayList<Object>()).isEmpty());
+    }
+    finally
+    {
+      batch.shutdown();
+    }
+  }
+
+  public void testFailuresDoNotAbortTheBatch() throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try
+    {
+      SerializedPhpBatchParser batch = new SerializedPhpBatchParser(
+          SerializedPhpParserConfig.builder().build(), executor, 3);
+      List<SerializedPhpBatchParser.Result> results = batch.parse(Arrays
+          .asList("i:1;", "s:5:\"abc\";", "a:1:{i:0;R:9;}", "b:1;").iterator());
+      assertEquals(Long.valueOf(1), results.get(0).getValue());
+      assertTrue(results.get(1).isFailed());
+      assertNull(results.get(1).getValue());
+      assertEquals(SerializedPhpParserException.TO_LONG_STRING,
+          results.get(1).getException().code);
+      assertEquals(SerializedPhpParserException.OUT_OF_RANG_REFERENCE,
+          results.get(2).getException().code);
+      assertEquals(13, results.get(2).getException().position);
+      assertEquals(Boolean.TRUE, results.get(3).getValue());
+      try
+      {
+        batch.parse(Arrays.asList((Object) "i:1;", Integer.valueOf(2)));
+        fail();
+      }
+      catch (IllegalArgumentException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  public void testParseArray() throws Exception
+  {
+    StringBuilder input = new StringBuilder("a:1000:{");
+    for (int i = 0; i < 1000; i++)
+    {
+      input.append("i:").append(i).append(";O:4:\"Item\":3:{s:3:\"sku\";s:")
+          .append(String.valueOf(i).length() + 2).append(":\"ü").append(i)
+          .append("\";s:5:\"price\";d:").append(i).append(".5;s:4:\"tags\";")
+          .append("a:2:{i:0;s:1:\"a\";i:1;N;}}");
+    }
+    String text = input.append("}").toString();
+    byte[] bytes = text.getBytes("UTF-8");
+    SerializedPhpParserConfig[] configs = {
+        SerializedPhpParserConfig.builder().build(),
+        SerializedPhpParserConfig.builder().compactLists(true)
+            .immutable(true).build(),
+        SerializedPhpParserConfig.builder().acceptedAttributeNames(
+            Arrays.asList("sku")).build() };
+    for (SerializedPhpParserConfig config : configs)
+    {
+      SerializedPhpBatchParser batch = new SerializedPhpBatchParser(config, 3);
+      try
+      {
+        SerializedPhpParser parser = config.newParser();
+        parser.reset(bytes);
+        String expected = parser.parse().toString();
+        assertEquals(expected, batch.parseArray(bytes).toString());
+        assertEquals(expected, batch.parseArray(text).toString());
+        assertEquals(expected, batch.parseArray(ByteBuffer.wrap(bytes))
+            .toString());
+      }
+      finally
+      {
+        batch.shutdown();
+      }
+    }
+  }
+
+  public void testParseArrayLimits() throws Exception
+  {
+    StringBuilder input = new StringBuilder("a:1000:{");
+    for (int i = 0; i < 1000; i++)
+    {
+      input.append("i:").append(i).append(";a:1:{i:0;a:1:{i:0;s:1:\"x\";}}");
+    }
+    String text = input.append("}").toString();
+    assertParseArrayError(text, SerializedPhpParserConfig.builder()
+        .maxElements(100), SerializedPhpParserException.TOO_MANY_ELEMENTS);
+    assertParseArrayError(text, SerializedPhpParserConfig.builder()
+        .maxTotalBytes(999), SerializedPhpParserException.TOO_LARGE);
+    assertParseArrayError(text, SerializedPhpParserConfig.builder()
+        .maxDepth(2), SerializedPhpParserException.TOO_DEEP);
+    SerializedPhpBatchParser batch = new SerializedPhpBatchParser(
+        SerializedPhpParserConfig.builder().maxDepth(3).maxElements(3000)
+            .build(), 3);
+    try
+    {
+      assertEquals(1000, ((Map<?, ?>) batch.parseArray(text)).size());
+    }
+    finally
+    {
+      batch.shutdown();
+    }
+  }
+
+  private static void assertParseArrayError(String input,
+      SerializedPhpParserConfig.Builder builder, int code) throws Exception
+  {
+    SerializedPhpParserConfig config = builder.build();
+    SerializedPhpParser parser = config.newParser();
+    parser.reset(input);
+    SerializedPhpParserException expected = null;
+    try
+    {
+      parser.parse();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      expected = ex;
+    }
+    assertNotNull(expected);
+    assertEquals(code, expected.code);
+    SerializedPhpBatchParser batch = new SerializedPhpBatchParser(config, 3);
+    try
+    {
+      batch.parseArray(input);
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(expected.code, ex.code);
+      assertEquals(expected.position, ex.position);
+    }
+    finally
+    {
+      batch.shutdown();
+    }
+  }
+
+  public void testParseArrayFromSharedDirectBuffer() throws Exception
+  {
+    StringBuilder input = new StringBuilder("a:20000:{");
+    for (int i = 0; i < 20000; i++)
+    {
+      input.append("i:").append(i).append(";a:2:{s:4:\"name\";s:")
+          .append(String.valueOf(i).length() + 5).append(":\"name-").append(i)
+          .append("\";s:3:\"tag\";s:3:\"abc\";}");
+    }
+    byte[] bytes = input.append("}").toString().getBytes("UTF-8");
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    String expected = new SerializedPhpParser(bytes).parse().toString();
+    SerializedPhpBatchParser batch = new SerializedPhpBatchParser(
+        SerializedPhpParserConfig.builder().build(), 8);
+    try
+    {
+      for (int round = 0; round < 5; round++)
+      {
+        assertEquals(expected, batch.parseArray(direct).toString());
+        assertEquals(0, direct.position());
+      }
+    }
+    finally
+    {
+      batch.shutdown();
+    }
+  }
+
+  public void testParseArrayFallsBackToSequential() throws Exception
+  {
+    SerializedPhpBatchParser batch = new SerializedPhpBatchParser(
+        SerializedPhpParserConfig.builder().build(), 2);
+    try
+    {
+      String references = "a:3:{i:0;a:1:{i:0;s:1:\"x\";}i:1;R:2;i:2;s:1:\"y\";}";
+      Map<?, ?> result = (Map<?, ?>) batch.parseArray(references);
+      assertSame(result.get(Long.valueOf(0)), result.get(Long.valueOf(1)));
+      assertEquals(Long.valueOf(7), batch.parseArray("i:7;"));
+      String malformed = "a:3:{i:0;i:1;i:1;s:5:\"abc\";i:2;i:3;}";
+      SerializedPhpParserException expected = null;
+      try
+      {
+        new SerializedPhpParser(malformed).parse();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        expected = ex;
+      }
+      try
+      {
+        batch.parseArray(malformed);
+        fail();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(expected.code, ex.code);
+        assertEquals(expected.position, ex.position);
+      }
+    }
+    finally
+    {
+      batch.shutdown();
+    }
+  }
+}
@@ -0,0 +1,326 @@
+package org.lorecraft.phpserializer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpBinder;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpBinderTest extends TestCase
+{
+  enum Status
+  {
+    ACTIVE, LOCKED
+  }
+
+  static class Entity
+  {
+    long id;
+  }
+
+  static class User extends Entity
+  {
+    String login;
+
+    int age;
+
+    double score;
+
+    boolean active;
+
+    Status status;
+
+    long[] logins;
+
+    List<Item> cart;
+
+    Map<String, Integer> counters;
+
+    Set<String> tags;
+
+    Object extra;
+
+    transient String ignored;
+  }
+
+  static class Item
+  {
+    String sku;
+
+    Integer qty;
+
+    float price;
+  }
+
+  static class Node
+  {
+    String name;
+
+    Node next;
+
+    private Node()
+    {
+    }
+  }
+
+  static class Holder
+  {
+    Entity entity;
+
+    Object any;
+
+    Entity[] entities;
+  }
+
+  public void testBindObject() throws Exception
+  {
+    String input = "O:4:\"User\":11:{s:5:\"\0*\0id\";i:42;"
+        + "s:11:\"\0User\0login\";s:5:\"jörg\";s:3:\"age\";i:37;"
+        + "s:5:\"score\";d:0.5;s:6:\"active\";b:1;s:6:\"status\";s:6:\"LOCKED\";"
+        + "s:6:\"logins\";a:3:{i:0;i:1;i:1;i:2;i:2;i:3;}"
+        + "s:4:\"cart\";a:2:{i:0;a:3:{s:3:\"sku\";s:3:\"X-1\";s:3:\"qty\";i:2;"
+        + "s:5:\"price\";d:1.5;}i:1;a:2:{s:3:\"sku\";s:3:\"X-2\";s:3:\"qty\";N;}}"
+        + "s:8:\"counters\";a:2:{s:1:\"a\";i:1;i:7;i:2;}"
+        + "s:7:\"unknown\";a:1:{i:0;O:1:\"X\":0:{}}"
+        + "s:5:\"extra\";a:2:{i:0;i:5;s:1:\"k\";O:1:\"X\":1:{s:1:\"x\";b:0;}}}";
+    User user = new SerializedPhpBinder().bind(input, User.class);
+    assertEquals(42, user.id);
+    assertEquals("jörg", user.login);
+    assertEquals(37, user.age);
+    assertEquals(0.5, user.score, 0);
+    assertTrue(user.active);
+    assertEquals(Status.LOCKED, user.status);
+    assertTrue(Arrays.equals(new long[] { 1, 2, 3 }, user.logins));
+    assertEquals(2, user.cart.size());
+    assertEquals("X-1", user.cart.get(0).sku);
+    assertEquals(Integer.valueOf(2), user.cart.get(0).qty);
+    assertEquals(1.5f, user.cart.get(0).price, 0);
+    assertNull(user.cart.get(1).qty);
+    assertEquals(0f, user.cart.get(1).price, 0);
+    assertEquals(Integer.valueOf(1), user.counters.get("a"));
+    assertEquals(Integer.valueOf(2), user.counters.get("7"));
+    assertNull(user.tags);
+    assertNull(user.ignored);
+    Map<?, ?> extra = (Map<?, ?>) user.extra;
+    assertEquals(Long.valueOf(5), extra.get(Long.valueOf(0)));
+    SerializedPhpParser.PhpObject x = (SerializedPhpParser.PhpObject) extra
+        .get("k");
+    assertEquals("X", x.name);
+    assertEquals(Boolean.FALSE, x.attributes.get("x"));
+
+    byte[] utf8 = input.getBytes("UTF-8");
+    assertEquals("jörg", new SerializedPhpBinder().bind(utf8, User.class).login);
+    assertEquals("jörg", new SerializedPhpBinder().bind(ByteBuffer.wrap(utf8),
+        User.class).login);
+    byte[] latin1 = input.replace("s:5:\"jörg", "s:4:\"jörg")
+        .getBytes("ISO-8859-1");
+    assertEquals("jörg", new SerializedPhpBinder(false).bind(latin1,
+        User.class).login);
+  }
+
+  public void testBindValues() throws Exception
+  {
+    SerializedPhpBinder binder = new SerializedPhpBinder();
+    assertEquals(Long.valueOf(7), binder.bind("i:7;", long.class));
+    assertEquals(Double.valueOf(7), binder.bind("i:7;", Double.class));
+    assertEquals("a", binder.bind("s:1:\"a\";", String.class));
+    assertNull(binder.bind("N;", Item.class));
+    assertEquals(Arrays.asList("a", "b"), binder.bind(
+        "a:2:{i:0;s:1:\"a\";i:1;s:1:\"b\";}", List.class));
+    assertTrue(Arrays.equals(new String[] { "a", null }, binder.bind(
+        "a:2:{i:0;s:1:\"a\";i:1;N;}", String[].class)));
+    assertEquals(Collections.singletonMap("k", 1L), binder.bind(
+        "a:1:{s:1:\"k\";i:1;}", Map.class));
+  }
+
+  public void testRegisteredClasses() throws Exception
+  {
+    SerializedPhpBinder binder = new SerializedPhpBinder().register("User",
+        User.class);
+    Holder holder = binder.bind("O:6:\"Holder\":3:{s:6:\"entity\";"
+        + "O:4:\"User\":2:{s:2:\"id\";i:1;s:5:\"login\";s:1:\"a\";}"
+        + "s:3:\"any\";O:4:\"User\":1:{s:2:\"id\";i:2;}"
+        + "s:8:\"entities\";a:2:{i:0;O:6:\"Entity\":1:{s:2:\"id\";i:3;}"
+        + "i:1;O:4:\"User\":1:{s:2:\"id\";i:4;}}}", Holder.class);
+    assertEquals("a", ((User) holder.entity).login);
+    assertEquals(2, ((User) holder.any).id);
+    assertEquals(Entity.class, holder.entities[0].getClass());
+    assertEquals(3, holder.entities[0].id);
+    assertEquals(4, ((User) holder.entities[1]).id);
+  }
+
+  public void testReferences() throws Exception
+  {
+    SerializedPhpBinder binder = new SerializedPhpBinder();
+    Node node = binder.bind("O:4:\"Node\":2:{s:4:\"name\";s:1:\"a\";"
+        + "s:4:\"next\";O:4:\"Node\":2:{s:4:\"name\";s:1:\"b\";s:4:\"next\";r:1;}}",
+        Node.class);
+    assertEquals("b", node.next.name);
+    assertSame(node, node.next.next);
+
+    Holder holder = binder.bind("O:6:\"Holder\":3:{s:8:\"entities\";"
+        + "a:2:{i:0;O:6:\"Entity\":1:{s:2:\"id\";i:3;}i:1;r:3;}"
+        + "s:6:\"entity\";r:3;s:3:\"any\";R:2;}", Holder.class);
+    assertSame(holder.entities[0], holder.entities[1]);
+    assertSame(holder.entities[0], holder.entity);
+    assertSame(holder.entities, holder.any);
+
+    User user = binder.bind("a:3:{s:6:\"logins\";a:2:{i:0;i:1;i:1;i:2;}"
+        + "s:5:\"extra\";R:2;s:3:\"age\";R:3;}", User.class);
+    assertTrue(Arrays.equals(new long[] { 1, 2 }, user.logins));
+    assertSame(user.logins, user.extra);
+    assertEquals(1, user.age);
+  }
+
+  public void testErrors() throws Exception
+  {
+    assertBindError("O:4:\"User\":1:{s:3:\"age\";s:1:\"x\";}", User.class,
+        SerializedPhpParserException.TYPE_MISMATCH, 24);
+    assertBindError("O:4:\"User\":1:{s:3:\"age\";i:3000000000;}", User.class,
+        SerializedPhpParserException.TYPE_MISMATCH, 24);
+    assertBindError("a:1:{s:6:\"status\";s:4:\"GONE\";}", User.class,
+        SerializedPhpParserException.TYPE_MISMATCH, 18);
+    assertBindError("a:1:{s:4:\"cart\";i:1;}", User.class,
+        SerializedPhpParserException.TYPE_MISMATCH, 16);
+    assertBindError("a:1:{s:4:\"cart\";a:1:{i:0;R:2;}}", User.class,
+        SerializedPhpParserException.CIRCULAR_REFERENCE, 25);
+    assertBindError("a:1:{s:2:\"id\";R:5;}", User.class,
+        SerializedPhpParserException.OUT_OF_RANG_REFERENCE, 14);
+    assertBindError("a:1:{s:2:\"id\";i:1", User.class,
+        SerializedPhpParserException.MISSING_DELIMITER_STRING, 16);
+    // the class name of a skipped object ends with ":
+    assertBindError("O:4:\"Node\":2:{s:1:\"z\";O:3:\"Foo\"X0:{}s:1:\"n\";i:1;}",
+        Node.class, SerializedPhpParserException.TO_SHORT_STRING, 27);
+    try
+    {
+      new SerializedPhpBinder().bind("a:0:{}", Number.class);
+      fail();
+    }
+    catch (IllegalArgumentException ex)
+    {
+      // abstract type
+    }
+  }
+
+  public void testDepthLimit() throws Exception
+  {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 100000; i++)
+    {
+      input.append("a:1:{i:0;");
+    }
+    input.append("i:1;");
+    for (int i = 0; i < 100000; i++)
+    {
+      input.append('}');
+    }
+    final String deep = input.toString();
+    for (Class<?> type : new Class<?>[] { Object.class, User.class })
+    {
+      try
+      {
+        new SerializedPhpBinder().bind(deep, type);
+        fail();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(SerializedPhpParserException.TOO_DEEP, ex.code);
+      }
+    }
+    final SerializedPhpBinder binder = new SerializedPhpBinder();
+    binder.setMaxDepth(2);
+    try
+    {
+      binder.bind("a:1:{i:0;a:1:{i:0;a:0:{}}}", Object.class);
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TOO_DEEP, ex.code);
+      assertEquals(23, ex.position);
+    }
+  }
+
+  public void testDeepInputOnSmallStack() throws Exception
+  {
+    StringBuilder arrays = new StringBuilder();
+    StringBuilder nodes = new StringBuilder();
+    for (int i = 0; i < 3000; i++)
+    {
+      arrays.append("a:2:{i:0;");
+      nodes.append("O:4:\"Node\":1:{s:4:\"next\";");
+    }
+    arrays.append("i:1;");
+    nodes.append("N;");
+    for (int i = 0; i < 3000; i++)
+    {
+      // the second value refers to the innermost array
+      arrays.append(i == 0 ? "i:1;i:1;}" : "i:1;R:3000;}");
+      nodes.append('}');
+    }
+    final String deepArrays = arrays.toString();
+    final String deepNodes = nodes.toString();
+    final Object[] result = new Object[3];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          SerializedPhpBinder binder = new SerializedPhpBinder();
+          result[0] = binder.bind(deepArrays, Object.class);
+          result[1] = binder.bind(deepNodes, Node.class);
+          // an attribute without a field is skipped
+          result[2] = binder.bind("O:4:\"Node\":2:{s:1:\"z\";" + deepArrays
+              + "s:4:\"name\";s:1:\"x\";}", Node.class);
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 128 * 1024);
+    thread.start();
+    thread.join();
+    if (result[0] instanceof Throwable)
+    {
+      fail(result[0].toString());
+    }
+    Map<?, ?> innermost = (Map<?, ?>) result[0];
+    for (int i = 1; i < 3000; i++)
+    {
+      innermost = (Map<?, ?>) innermost.get(0L);
+    }
+    assertEquals(1L, innermost.get(1L));
+    assertSame(innermost, ((Map<?, ?>) result[0]).get(1L));
+    Node node = (Node) result[1];
+    for (int i = 1; i < 3000; i++)
+    {
+      node = node.next;
+    }
+    assertNull(node.next);
+    assertEquals("x", ((Node) result[2]).name);
+  }
+
+  private static void assertBindError(String input, Class<?> type, int code,
+      int position)
+  {
+    try
+    {
+      new SerializedPhpBinder().bind(input, type);
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(ex.getMessage(), code, ex.code);
+      assertEquals(ex.getMessage(), position, ex.position);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.lorecraft.phpserializer;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpExtractor;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpExtractorTest extends TestCase
+{
+
+  private static final String SESSION = "a:2:{s:5:\"token\";s:3:\"abc\";s:4:\"user\";"
+      + "O:4:\"User\":3:{s:2:\"id\";i:42;s:11:\"\0User\0ünï\";s:3:\"bar\";"
+      + "s:4:\"cart\";a:1:{s:5:\"items\";a:2:{"
+      + "i:0;a:2:{s:3:\"sku\";s:3:\"X-1\";s:3:\"qty\";i:1;}"
+      + "i:1;a:2:{s:3:\"sku\";s:5:\"Ü-22\";s:3:\"qty\";i:3;}}}}}";
+
+  public void testWildcardPath() throws Exception
+  {
+    SerializedPhpExtractor skus = SerializedPhpExtractor
+        .compile("user.cart.items[*].sku");
+    List<Object> expected = Arrays.asList((Object) "X-1", "Ü-22");
+    assertEquals(expected, skus.extract(SESSION));
+    assertEquals(expected, skus.extract(SESSION.getBytes("UTF-8")));
+    assertEquals(expected, skus.extract(new ByteArrayInputStream(SESSION
+        .getBytes("UTF-8"))));
+    assertEquals(Arrays.asList((Object) Long.valueOf(3)),
+        SerializedPhpExtractor.extract(SESSION, "user.cart.items[1].qty"));
+    assertEquals(Arrays.asList((Object) Long.valueOf(1)),
+        SerializedPhpExtractor.extract(SESSION, "user.cart.items.0.qty"));
+  }
+
+  public void testNames() throws Exception
+  {
+    assertEquals(Arrays.asList((Object) "bar"), SerializedPhpExtractor
+        .extract(SESSION.getBytes("UTF-8"), "user.ünï"));
+    assertEquals(Arrays.asList((Object) Long.valueOf(42)),
+        SerializedPhpExtractor.extract(SESSION, "*.id"));
+    assertTrue(SerializedPhpExtractor.extract(SESSION, "user.missing.sku")
+        .isEmpty());
+    Map<?, ?> cart = (Map<?, ?>) SerializedPhpExtractor.extract(SESSION,
+        "user.cart").get(0);
+    assertEquals(1, cart.size());
+  }
+
+  public void testReferencesIntoSkippedValues() throws Exception
+  {
+    String input = "a:3:{s:1:\"a\";a:2:{i:0;s:1:\"x\";i:1;s:1:\"y\";}"
+        + "s:1:\"b\";R:4;s:1:\"c\";R:2;}";
+    assertEquals(Arrays.asList((Object) "y"), SerializedPhpExtractor.extract(
+        input, "b"));
+    assertEquals(Arrays.asList((Object) "x"), SerializedPhpExtractor.extract(
+        input, "c[0]"));
+    try
+    {
+      SerializedPhpExtractor.compile("b").extract(
+          new ByteArrayInputStream(input.getBytes("UTF-8")));
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.OUT_OF_RANG_REFERENCE, ex.code);
+    }
+  }
+
+  public void testInvalidPath() throws Exception
+  {
+    String[] paths = { ".a", "a..b", "a[x]", "a[1", "a." };
+    for (String path : paths)
+    {
+      try
+      {
+        SerializedPhpExtractor.compile(path);
+        fail("Expect a Exception! " + path);
+      }
+      catch (IllegalArgumentException ex)
+      {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package org.lorecraft.phpserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.lorecraft.phparser.JSONHandler;
+import org.lorecraft.phparser.JSONTransformer;
+import org.lorecraft.phparser.JSONTranscoder;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpJsonTranscoderTest extends TestCase
+{
+
+  private static final String SESSION = "a:3:{s:5:\"token\";s:3:\"abc\";s:4:\"user\";"
+      + "O:4:\"User\":4:{s:2:\"id\";i:-42;s:11:\"\0User\0ünï\";s:3:\"bar\";"
+      + "s:5:\"score\";d:0.5;s:4:\"cart\";a:2:{i:0;a:2:{s:3:\"sku\";s:3:\"X-1\";"
+      + "s:3:\"qty\";i:1;}i:1;a:2:{s:3:\"sku\";s:5:\"Ü-22\";s:6:\"active\";b:1;}}}"
+      + "s:4:\"none\";N;}";
+
+  public void testSameAsTransformer() throws Exception
+  {
+    JSONParser json = new JSONParser();
+    assertEquals(json.parse(transform(SESSION)), json.parse(JSONTranscoder
+        .toJSONString(SESSION)));
+    String list = "a:4:{i:0;i:1;i:1;d:2.25;i:2;s:1:\"x\";i:3;a:0:{}}";
+    assertEquals(transform(list), JSONTranscoder.toJSONString(list));
+    assertEquals("null", JSONTranscoder.toJSONString("N;"));
+    assertEquals("[null,null,1.0E20]", JSONTranscoder
+        .toJSONString("a:3:{i:0;d:INF;i:1;d:NAN;i:2;d:1e20;}"));
+    assertEquals("{\"1\":false}", JSONTranscoder
+        .toJSONString("O:1:\"A\":1:{i:1;b:0;}"));
+  }
+
+  public void testEscaping() throws Exception
+  {
+    String text = "\"\\/\b\f\n\r\t\0\u007fé\u2028\u20ac";
+    String input = "s:" + text.getBytes("UTF-8").length + ":\"" + text
+        + "\";";
+    String expected = "\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u0000\\u007Fé\\u2028\\u20AC\"";
+    assertEquals(expected, JSONTranscoder.toJSONString(input));
+    assertEquals(transform(input), JSONTranscoder.toJSONString(input));
+    StringWriter out = new StringWriter();
+    JSONTranscoder.transcode(input.getBytes("UTF-8"), true, out);
+    assertEquals(expected, out.toString());
+  }
+
+  public void testBytesAndStreams() throws Exception
+  {
+    String expected = JSONTranscoder.toJSONString(SESSION);
+    byte[] utf8 = SESSION.getBytes("UTF-8");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONTranscoder.transcode(utf8, true, out);
+    assertEquals(expected, out.toString("UTF-8"));
+    out.reset();
+    JSONTranscoder.transcode(new ByteArrayInputStream(utf8), true, out);
+    assertEquals(expected, out.toString("UTF-8"));
+
+    String latin1 = "a:1:{i:0;s:4:\"Ünïÿ\";}";
+    StringWriter writer = new StringWriter();
+    JSONTranscoder.transcode(latin1.getBytes("ISO-8859-1"), false, writer);
+    assertEquals("[\"Ünïÿ\"]", writer.toString());
+  }
+
+  public void testStringsLongerThanStreamBuffer() throws Exception
+  {
+    StringBuilder ascii = new StringBuilder();
+    for (int i = 0; i < 20000; i++)
+    {
+      ascii.append((char) ('a' + i % 26));
+    }
+    String text = ascii.toString();
+    String input = "a:2:{s:" + text.length() + ":\"" + text + "\";s:"
+        + (text.length() + 1) + ":\"ü" + text.substring(1) + "\";i:1;s:"
+        + text.length() + ":\"" + text + "\";}";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONTranscoder.transcode(new ByteArrayInputStream(input
+        .getBytes("UTF-8")), true, out);
+    assertEquals(JSONTranscoder.toJSONString(input), out.toString("UTF-8"));
+  }
+
+  public void testReferences() throws Exception
+  {
+    String input = "a:4:{i:0;a:1:{i:0;s:1:\"x\";}i:1;R:2;i:2;O:1:\"A\":1:{"
+        + "s:1:\"a\";r:3;}i:3;R:4;}";
+    assertEquals(transform(input), JSONTranscoder.toJSONString(input));
+    assertEquals("[[\"x\"],[\"x\"],{\"a\":\"x\"},{\"a\":\"x\"}]",
+        JSONTranscoder.toJSONString(input));
+    try
+    {
+      JSONTranscoder.transcode(new ByteArrayInputStream(input
+          .getBytes("UTF-8")), true, new ByteArrayOutputStream());
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.OUT_OF_RANG_REFERENCE,
+          ex.code);
+    }
+  }
+
+  public void testCircularReference() throws Exception
+  {
+    try
+    {
+      JSONTranscoder.toJSONString("a:1:{i:0;a:1:{i:0;R:2;}}");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.CIRCULAR_REFERENCE, ex.code);
+    }
+    try
+    {
+      JSONTranscoder.toJSONString("a:1:{i:0;R:3;}");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.OUT_OF_RANG_REFERENCE,
+          ex.code);
+    }
+  }
+
+  public void testRejectsWhatTheParserRejects() throws Exception
+  {
+    String[] inputs = { "a:1:{a:0:{}i:1;}", "a:1:{O:1:\"A\":0:{}i:1;}",
+        "O:3:\"Foo\"X1:{s:1:\"a\";i:1;}", "a:1:{i:0;O:3:\"Foo\"X0:{}}" };
+    for (String input : inputs)
+    {
+      SerializedPhpParserException expected = null;
+      try
+      {
+        new SerializedPhpParser(input).parse();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        expected = ex;
+      }
+      assertNotNull(input, expected);
+      try
+      {
+        JSONTranscoder.toJSONString(input);
+        fail("Expect a Exception! " + input);
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(input, expected.code, ex.code);
+      }
+    }
+  }
+
+  public void testDepthLimit() throws Exception
+  {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 100000; i++)
+    {
+      input.append("a:1:{i:0;");
+    }
+    input.append("i:1;");
+    for (int i = 0; i < 100000; i++)
+    {
+      input.append('}');
+    }
+    final String deep = input.toString();
+    try
+    {
+      JSONTranscoder.toJSONString(deep);
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TOO_DEEP, ex.code);
+    }
+    final Throwable[] thrown = new Throwable[1];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          JSONTranscoder.toJSONString(deep);
+        }
+        catch (Throwable ex)
+        {
+          thrown[0] = ex;
+        }
+      }
+    }, "small-stack", 64 * 1024);
+    thread.start();
+    thread.join();
+    assertTrue(String.valueOf(thrown[0]),
+        thrown[0] instanceof SerializedPhpParserException);
+    assertEquals(SerializedPhpParserException.TOO_DEEP,
+        ((SerializedPhpParserException) thrown[0]).code);
+  }
+
+  public void testDeepInputOnSmallStack() throws Exception
+  {
+    StringBuilder input = new StringBuilder();
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 3000; i++)
+    {
+      input.append("a:2:{i:0;");
+      json.append('[');
+    }
+    input.append("i:1;");
+    json.append('1');
+    for (int i = 0; i < 3000; i++)
+    {
+      // the second value copies the innermost array
+      input.append(i == 0 ? "i:1;i:1;}" : "i:1;R:3000;}");
+      json.append(i == 0 ? ",1]" : ",[1,1]]");
+    }
+    final String deep = input.toString();
+    final Object[] result = new Object[1];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          result[0] = JSONTranscoder.toJSONString(deep);
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 128 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(json.toString(), result[0]);
+  }
+
+  public void testHandler() throws Exception
+  {
+    final List<String> events = new ArrayList<String>();
+    JSONHandler handler = new JSONHandler()
+    {
+      public void startArray(int size)
+      {
+        events.add("[" + size);
+      }
+
+      public void endArray()
+      {
+        events.add("]");
+      }
+
+      public void startObject(int size)
+      {
+        events.add("{" + size);
+      }
+
+      public void endObject()
+      {
+        events.add("}");
+      }
+
+      public void key(CharSequence key)
+      {
+        events.add(key + ":");
+      }
+
+      public void value(CharSequence value)
+      {
+        events.add(value.toString());
+      }
+
+      public void value(long value)
+      {
+        events.add("long " + value);
+      }
+
+      public void value(double value)
+      {
+        events.add("double " + value);
+      }
+
+      public void value(boolean value)
+      {
+        events.add("boolean " + value);
+      }
+
+      public void nullValue()
+      {
+        events.add("null");
+      }
+    };
+    JSONTranscoder.transcode("a:2:{i:0;O:1:\"A\":2:{s:1:\"a\";s:2:\"xy\";"
+        + "i:7;d:0.5;}i:1;a:2:{i:0;s:2:\"ü\";i:1;b:1;}}", true, handler);
+    assertEquals(Arrays.asList("[2", "{2", "a:", "xy", "7:", "double 0.5",
+        "}", "[2", "ü", "boolean true", "]", "]"), events);
+  }
+
+  private static String transform(String input)
+      throws SerializedPhpParserException
+  {
+    Object parsed = new SerializedPhpParser(input).parse();
+    return JSONValue.toJSONString(JSONTransformer.toJSON(parsed));
+  }
+}
@@ -0,0 +1,186 @@
+package org.lorecraft.phpserializer;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.lorecraft.phparser.JSONTransformer;
+import org.lorecraft.phparser.JSONWriter;
+import org.lorecraft.phparser.PhpMapFactory;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpJsonTransformerTest extends TestCase
+{
+
+  private static final String INPUT = "a:4:{s:4:\"list\";a:2:{i:0;s:1:\"a\";i:1;d:0.5;}"
+      + "s:6:\"sparse\";a:2:{i:0;b:1;i:5;N;}s:4:\"user\";O:4:\"User\":1:{"
+      + "s:2:\"id\";i:7;}s:5:\"empty\";a:0:{}}";
+
+  public void testValuesByDefault() throws Exception
+  {
+    assertEquals("[[\"a\",0.5],[true,null],{\"id\":7},[]]", toJSON(
+        new JSONTransformer(), INPUT, false));
+    assertEquals(toJSON(new JSONTransformer(), INPUT, false),
+        JSONValue.toJSONString(JSONTransformer.toJSON(new SerializedPhpParser(
+            INPUT).parse())));
+  }
+
+  public void testAssociativeArrays() throws Exception
+  {
+    JSONTransformer transformer = new JSONTransformer();
+    transformer.setAssociativeArrays(true);
+    transformer.setClassNameKey("__class");
+    Object expected = JSONValue.parse("{\"list\":[\"a\",0.5],"
+        + "\"sparse\":{\"0\":true,\"5\":null},"
+        + "\"user\":{\"__class\":\"User\",\"id\":7},\"empty\":[]}");
+    assertEquals(expected, JSONValue.parse(toJSON(transformer, INPUT, false)));
+    assertEquals(expected, JSONValue.parse(toJSON(transformer, INPUT, true)));
+  }
+
+  public void testNumericStringKeys() throws Exception
+  {
+    String input = "a:2:{s:1:\"0\";s:1:\"x\";s:1:\"1\";s:1:\"y\";}";
+    JSONTransformer transformer = new JSONTransformer();
+    transformer.setAssociativeArrays(true);
+    assertEquals(JSONValue.parse("{\"0\":\"x\",\"1\":\"y\"}"), JSONValue
+        .parse(toJSON(transformer, input, false)));
+    transformer.setNumericStringKeys(true);
+    assertEquals("[\"x\",\"y\"]", toJSON(transformer, input, false));
+    assertEquals("{\"00\":\"x\"}", toJSON(transformer,
+        "a:1:{s:2:\"00\";s:1:\"x\";}", false));
+  }
+
+  public void testHandler() throws Exception
+  {
+    JSONTransformer transformer = new JSONTransformer();
+    assertEquals(toJSON(transformer, INPUT, false), write(transformer, INPUT,
+        false));
+    assertEquals(toJSON(transformer, INPUT, false), write(transformer, INPUT,
+        true));
+    transformer.setAssociativeArrays(true);
+    transformer.setClassNameKey("__class");
+    assertEquals(JSONValue.parse(toJSON(transformer, INPUT, true)), JSONValue
+        .parse(write(transformer, INPUT, true)));
+    // without compact lists the parsed maps know whether they are lists
+    assertEquals(JSONValue.parse(toJSON(transformer, INPUT, false)), JSONValue
+        .parse(write(transformer, INPUT, false)));
+    String numbers = "a:3:{i:0;i:-5;i:1;i:9223372036854775807;i:2;i:0;}";
+    assertEquals("[-5,9223372036854775807,0]", write(transformer, numbers,
+        true));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testHandlerListDetection() throws Exception
+  {
+    JSONTransformer transformer = new JSONTransformer();
+    transformer.setAssociativeArrays(true);
+    String input = "a:3:{i:0;s:1:\"a\";i:1;s:1:\"b\";i:2;s:1:\"c\";}";
+    Map<Object, Object> map = (Map<Object, Object>) new SerializedPhpParser(
+        input).parse();
+    assertEquals("[\"a\",\"b\",\"c\"]", write(transformer, map));
+    // a list stays one when a value is replaced or the last key removed
+    map.put(1L, "x");
+    map.remove(2L);
+    assertEquals("[\"a\",\"x\"]", write(transformer, map));
+    map.remove(0L);
+    assertEquals("{\"1\":\"x\"}", write(transformer, map));
+    map.clear();
+    map.put(0L, "y");
+    assertEquals("[\"y\"]", write(transformer, map));
+    map.put("k", "z");
+    assertEquals("{\"0\":\"y\",\"k\":\"z\"}", write(transformer, map));
+
+    // numeric string keys are counted as well
+    String strings = "a:2:{s:1:\"0\";s:1:\"x\";s:1:\"1\";s:1:\"y\";}";
+    assertEquals("{\"0\":\"x\",\"1\":\"y\"}", write(transformer, strings,
+        false));
+    transformer.setNumericStringKeys(true);
+    assertEquals("[\"x\",\"y\"]", write(transformer, strings, false));
+
+    // maps from another factory have their keys read first
+    SerializedPhpParser parser = new SerializedPhpParser(input);
+    parser.setMapFactory(PhpMapFactory.LINKED_HASH_MAP);
+    assertEquals("[\"a\",\"b\",\"c\"]", write(transformer, parser.parse()));
+  }
+
+  public void testDeepTreeOnSmallStack() throws Exception
+  {
+    final int depth = SerializedPhpParser.DEFAULT_MAX_DEPTH;
+    StringBuilder input = new StringBuilder();
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < depth; i++)
+    {
+      input.append(i % 2 == 0 ? "a:1:{i:0;" : "O:1:\"X\":1:{s:1:\"a\";");
+      json.append(i % 2 == 0 ? "[" : "{\"a\":");
+    }
+    input.append("i:1;");
+    json.append('1');
+    for (int i = depth - 1; i >= 0; i--)
+    {
+      input.append('}');
+      json.append(i % 2 == 0 ? ']' : '}');
+    }
+    final Object parsed = new SerializedPhpParser(input.toString()).parse();
+    final Object[] result = new Object[3];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          JSONTransformer transformer = new JSONTransformer();
+          result[0] = write(transformer, parsed);
+          result[1] = JSONTransformer.toJSON(parsed);
+          transformer.setAssociativeArrays(true);
+          result[2] = write(transformer, parsed);
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 128 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(json.toString(), result[0]);
+    assertEquals(json.toString(), result[2]);
+    Object value = result[1];
+    for (int i = 0; i < depth; i++)
+    {
+      value = i % 2 == 0 ? ((JSONArray) value).get(0) : ((JSONObject) value)
+          .get("a");
+    }
+    assertEquals(1L, value);
+  }
+
+  private static String write(JSONTransformer transformer, Object value)
+      throws Exception
+  {
+    StringWriter out = new StringWriter();
+    JSONWriter writer = new JSONWriter(out);
+    transformer.transform(value, writer);
+    writer.flush();
+    return out.toString();
+  }
+
+  private static String write(JSONTransformer transformer, String input,
+      boolean compactLists) throws Exception
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(input);
+    parser.setCompactLists(compactLists);
+    return write(transformer, parser.parse());
+  }
+
+  private static String toJSON(JSONTransformer transformer, String input,
+      boolean compactLists) throws SerializedPhpParserException
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(input);
+    parser.setCompactLists(compactLists);
+    return JSONValue.toJSONString(transformer.transform(parser.parse()));
+  }
+}
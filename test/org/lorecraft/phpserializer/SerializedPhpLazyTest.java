@@ -0,0 +1,106 @@
+package org.lorecraft.phpserializer;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+
+public class SerializedPhpLazyTest extends TestCase
+{
+
+  private static Object parseLazy(String input) throws Exception
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(input
+        .getBytes("UTF-8"));
+    parser.setLazy(true);
+    return parser.parse();
+  }
+
+  public void testSameAsEager() throws Exception
+  {
+    String input = "a:6:{i:0;s:10:\"Müller€\";s:1:\"d\";d:0.5;i:2;N;"
+        + "s:4:\"list\";a:3:{i:0;i:1;i:1;b:1;i:2;s:1:\"x\";}i:4;R:6;s:1:\"d\";i:9;}";
+    Map<?, ?> eager = (Map<?, ?>) new SerializedPhpParser(input).parse();
+    Map<?, ?> lazy = (Map<?, ?>) parseLazy(input);
+    assertEquals(eager, lazy);
+    assertEquals(eager.toString(), lazy.toString());
+    assertEquals(Arrays.asList(eager.keySet().toArray()), Arrays.asList(lazy
+        .keySet().toArray()));
+  }
+
+  public void testReferencesResolveLikeEager() throws Exception
+  {
+    String input = "a:4:{i:0;a:2:{i:0;s:1:\"a\";i:1;O:1:\"T\":1:{s:1:\"p\";a:1:{i:0;i:7;}}}"
+        + "i:1;R:4;i:2;R:6;i:3;R:2;}";
+    Map<?, ?> lazy = (Map<?, ?>) parseLazy(input);
+    // resolving the reference indexes only the containers on the path
+    assertEquals(Long.valueOf(7), lazy.get(Long.valueOf(2)));
+    SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) lazy
+        .get(Long.valueOf(1));
+    assertEquals("T", object.name);
+    assertSame(object, ((Map<?, ?>) lazy.get(Long.valueOf(0))).get(Long
+        .valueOf(1)));
+    assertSame(lazy.get(Long.valueOf(0)), lazy.get(Long.valueOf(3)));
+    assertEquals(new SerializedPhpParser(input).parse().toString(), lazy
+        .toString());
+  }
+
+  public void testValuesAreDecodedOnAccess() throws Exception
+  {
+    Map<?, ?> lazy = (Map<?, ?>) parseLazy("a:2:{s:3:\"bad\";d:1.2.3;s:2:\"ok\";i:1;}");
+    assertEquals(Long.valueOf(1), lazy.get("ok"));
+    try
+    {
+      lazy.get("bad");
+      fail("Expect a Exception!");
+    }
+    catch (IllegalStateException ex)
+    {
+      assertEquals(SerializedPhpParserException.INVALID_NUMBER,
+          ((SerializedPhpParserException) ex.getCause()).code);
+    }
+  }
+
+  public void testStructureIsCheckedByParse() throws Exception
+  {
+    try
+    {
+      parseLazy("a:2:{i:0;a:1:{i:0;s:5:\"ab\";}i:1;i:2;}");
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TO_SHORT_STRING, ex.code);
+    }
+  }
+
+  public void testAcceptedAttributeNames() throws Exception
+  {
+    SerializedPhpParser parser = new SerializedPhpParser(
+        "O:8:\"TypeName\":2:{s:3:\"foo\";s:3:\"bar\";s:3:\"baz\";R:2;}");
+    parser.setAcceptedAttributeNameRegex("ba.*");
+    parser.setLazy(true);
+    SerializedPhpParser.PhpObject object = (SerializedPhpParser.PhpObject) parser
+        .parse();
+    assertEquals(1, object.attributes.size());
+    assertEquals("bar", object.attributes.get("baz"));
+  }
+
+  public void testStreamsAreNotLazy() throws Exception
+  {
+    try
+    {
+      new SerializedPhpParser(new ByteArrayInputStream(new byte[0]))
+          .setLazy(true);
+      fail("Expect a Exception!");
+    }
+    catch (UnsupportedOperationException ex)
+    {
+      // expected
+    }
+  }
+}
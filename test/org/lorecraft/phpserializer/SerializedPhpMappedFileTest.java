@@ -0,0 +1,70 @@
+package org.lorecraft.phpserializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpReader;
+
+public class SerializedPhpMappedFileTest extends TestCase
+{
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    this.file = File.createTempFile("serialized", ".php");
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    this.file.delete();
+  }
+
+  private void write(byte[] bytes) throws Exception
+  {
+    FileOutputStream out = new FileOutputStream(this.file);
+    try
+    {
+      out.write(bytes);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  public void testParseMappedFile() throws Exception
+  {
+    byte[] bytes = ("a:3:{s:4:\"name\";s:10:\"Müller€\";i:1;d:0.5;"
+        + "s:3:\"obj\";O:8:\"TypeName\":1:{s:3:\"foo\";R:2;}}").getBytes("UTF-8");
+    write(bytes);
+    assertEquals(new SerializedPhpParser(bytes).parse().toString(),
+        SerializedPhpParser.mapFile(this.file).parse().toString());
+
+    SerializedPhpReader reader = SerializedPhpReader.mapFile(this.file, true);
+    assertEquals(SerializedPhpReader.Token.START_ARRAY, reader.next());
+    reader.next();
+    assertEquals(SerializedPhpReader.Token.VALUE_STRING, reader.next());
+    assertEquals("Müller€", reader.getString());
+  }
+
+  public void testTruncatedMappedFile() throws Exception
+  {
+    write("a:1:{i:0;s:10:\"Test".getBytes("UTF-8"));
+    try
+    {
+      SerializedPhpParser.mapFile(this.file).parse();
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TO_LONG_STRING, ex.code);
+    }
+  }
+}
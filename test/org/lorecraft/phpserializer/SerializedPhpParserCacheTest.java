@@ -0,0 +1,155 @@
+package org.lorecraft.phpserializer;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.PhpList;
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserCache;
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+
+public class SerializedPhpParserCacheTest extends TestCase
+{
+
+  @SuppressWarnings("unchecked")
+  public void testHitsReturnCopies() throws Exception
+  {
+    SerializedPhpParserCache cache = new SerializedPhpParserCache(
+        SerializedPhpParserConfig.builder().compactLists(true).build(),
+        1 << 20);
+    String input = "a:3:{s:5:\"flags\";a:2:{i:0;s:1:\"a\";i:1;s:1:\"b\";}"
+        + "s:4:\"same\";R:2;s:3:\"obj\";O:8:\"stdClass\":1:{s:1:\"n\";i:1;}}";
+    byte[] bytes = ("xx" + input).getBytes("UTF-8");
+
+    Map<Object, Object> first = (Map<Object, Object>) cache.parse(bytes, 2,
+        bytes.length - 2);
+    // admitted on the second miss
+    assertEquals(0, cache.size());
+    Map<Object, Object> second = (Map<Object, Object>) cache.parse(input
+        .getBytes("UTF-8"));
+    assertEquals(1, cache.size());
+    assertTrue(cache.getWeight() > input.length());
+    first.put("flags", "changed");
+    second.put("flags", "changed");
+
+    Map<Object, Object> hit = (Map<Object, Object>) cache.parse(bytes, 2,
+        bytes.length - 2);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals("[a, b]", hit.get("flags").toString());
+    assertTrue(hit.get("flags") instanceof PhpList);
+    assertSame(hit.get("flags"), hit.get("same"));
+    ((SerializedPhpParser.PhpObject) hit.get("obj")).attributes.clear();
+
+    hit = (Map<Object, Object>) cache.parse(input.getBytes("UTF-8"));
+    assertEquals("{n=1}", ((SerializedPhpParser.PhpObject) hit.get("obj")).attributes
+        .toString());
+    assertEquals(0.5d, cache.getHitRate());
+  }
+
+  public void testImmutableResultsAreShared() throws Exception
+  {
+    SerializedPhpParserCache cache = new SerializedPhpParserCache(
+        SerializedPhpParserConfig.builder().immutable(true).build(), 1 << 20);
+    String input = "a:1:{s:1:\"a\";a:1:{i:0;i:1;}}";
+    cache.parse(input);
+    Object cached = cache.parse(input);
+    assertSame(cached, cache.parse(input));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception
+  {
+    SerializedPhpParserCache cache = new SerializedPhpParserCache(
+        SerializedPhpParserConfig.builder().build(), 1000);
+    String[] inputs = new String[6];
+    for (int i = 0; i < inputs.length; i++)
+    {
+      String value = "value-" + (1000000000000L + i) + "-";
+      inputs[i] = "a:1:{s:3:\"key\";s:20:\"" + value + "\";}";
+      cache.parse(inputs[i]);
+      cache.parse(inputs[i]);
+      assertEquals(value, ((Map<?, ?>) cache.parse(inputs[i])).get("key"));
+    }
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.getWeight() <= 1000);
+    assertEquals(6 - cache.getEvictionCount(), cache.size());
+
+    // the newest entry is still there, the oldest is gone
+    long hits = cache.getHitCount();
+    cache.parse(inputs[5]);
+    assertEquals(hits + 1, cache.getHitCount());
+    cache.parse(inputs[0]);
+    assertEquals(hits + 1, cache.getHitCount());
+  }
+
+  public void testDeepTreesOnSmallStack() throws Exception
+  {
+    final int depth = SerializedPhpParser.DEFAULT_MAX_DEPTH;
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < depth; i++)
+    {
+      input.append(i % 2 == 0 ? "a:1:{i:0;" : "O:1:\"X\":1:{s:1:\"a\";");
+    }
+    input.append("i:1;");
+    for (int i = 0; i < depth; i++)
+    {
+      input.append('}');
+    }
+    final String deep = input.toString();
+    final Object[] result = new Object[2];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          for (int i = 0; i < 2; i++)
+          {
+            SerializedPhpParserCache cache = new SerializedPhpParserCache(
+                SerializedPhpParserConfig.builder().compactLists(i == 1)
+                    .build(), 1 << 24);
+            cache.parse(deep);
+            // weighed on admission, copied on the hit
+            Object admitted = cache.parse(deep);
+            Object hit = cache.parse(deep);
+            assertEquals(1, cache.getHitCount());
+            assertNotSame(admitted, hit);
+            result[i] = hit;
+          }
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 128 * 1024);
+    thread.start();
+    thread.join();
+    if (result[0] instanceof Throwable)
+    {
+      fail(result[0].toString());
+    }
+    for (int i = 0; i < 2; i++)
+    {
+      Object value = result[i];
+      for (int level = 0; level < depth; level++)
+      {
+        if (level % 2 == 1)
+        {
+          value = ((SerializedPhpParser.PhpObject) value).attributes.get("a");
+        }
+        else if (i == 1)
+        {
+          value = ((PhpList) value).get(0);
+        }
+        else
+        {
+          value = ((Map<?, ?>) value).get(0L);
+        }
+      }
+      assertEquals(1L, value);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.lorecraft.phpserializer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpParserPool;
+
+public class SerializedPhpParserPoolTest extends TestCase
+{
+
+  public void testResetKeepsConfiguration() throws Exception
+  {
+    SerializedPhpParser parser = new SerializedPhpParser("i:1;");
+    parser.setAcceptedAttributeNameRegex("a");
+    assertEquals(1L, parser.parse());
+    parser.reset("a:2:{s:1:\"a\";i:1;s:1:\"b\";i:2;}".getBytes("UTF-8"));
+    assertEquals("{a=1}", parser.parse().toString());
+    parser.reset("a:1:{i:0;s:2:\"xy\";");
+    try
+    {
+      parser.parse();
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      // a failed parse does not leak into the next one
+    }
+    parser.reset("a:2:{i:0;s:1:\"z\";i:1;R:2;}");
+    assertEquals("{0=z, 1=z}", parser.parse().toString());
+  }
+
+  public void testConfig() throws Exception
+  {
+    SerializedPhpParserConfig config = SerializedPhpParserConfig.builder()
+        .assumeUTF8(false).acceptedAttributeNames(Arrays.asList("name"))
+        .build();
+    SerializedPhpParser parser = config.newParser();
+    parser.reset(new byte[] { 'a', ':', '2', ':', '{', 's', ':', '4', ':',
+        '"', 'n', 'a', 'm', 'e', '"', ';', 's', ':', '1', ':', '"',
+        (byte) 0xE4, '"', ';', 's', ':', '1', ':', '"', 'x', '"', ';', 'i',
+        ':', '1', ';', '}' });
+    assertEquals("{name=ä}", parser.parse().toString());
+  }
+
+  public void testPoolFromManyThreads() throws Exception
+  {
+    final SerializedPhpParserPool pool = new SerializedPhpParserPool(
+        SerializedPhpParserConfig.builder().build(), 2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try
+    {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i = 0; i < 100; i++)
+      {
+        final String input = "a:1:{s:2:\"id\";i:" + i + ";}";
+        results.add(executor.submit(new Callable<Object>()
+        {
+          public Object call() throws Exception
+          {
+            return pool.parse(input.getBytes("UTF-8"));
+          }
+        }));
+      }
+      for (int i = 0; i < 100; i++)
+      {
+        assertEquals(Long.valueOf(i), ((Map<?, ?>) results.get(i).get())
+            .get("id"));
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+}
@@ -1,5 +1,9 @@
 package org.lorecraft.phpserializer;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import junit.framework.TestCase;
@@ -27,6 +31,39 @@ public class SerializedPhpParserTest extends TestCase
     assertPrimitive("d:123.123;", 123.123d);
   }
 
+  public void testParseIntegerLimits() throws Exception
+  {
+    assertPrimitive("i:-42;", -42L);
+    assertPrimitive("i:9223372036854775807;", Long.MAX_VALUE);
+    assertPrimitive("i:-9223372036854775808;", Long.MIN_VALUE);
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException",
+        "i:9223372036854775808;", SerializedPhpParserException.INVALID_NUMBER);
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException", "i:;",
+        SerializedPhpParserException.INVALID_NUMBER);
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException", "i:12a4;",
+        SerializedPhpParserException.MISSING_DELIMITER_STRING);
+  }
+
+  public void testParseFloatForms() throws Exception
+  {
+    String[] values = { "0", "-0", "1", "0.1", "-12.5", "0.19999998807907104",
+        "3.4028234663852886E+38", "1.0E-10", "123456789012345678901234",
+        "9007199254740993", "2.2250738585072014E-308" };
+    for (String value : values)
+    {
+      assertPrimitive("d:" + value + ";", Double.valueOf(value));
+    }
+    assertPrimitive("d:INF;", Double.POSITIVE_INFINITY);
+    assertPrimitive("d:-INF;", Double.NEGATIVE_INFINITY);
+    assertPrimitive("d:NAN;", Double.NaN);
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException", "d:1.2.3;",
+        SerializedPhpParserException.INVALID_NUMBER);
+  }
+
   public void testParseBoolean() throws Exception
   {
     assertPrimitive("b:1;", Boolean.TRUE);
@@ -144,6 +181,35 @@ public class SerializedPhpParserTest extends TestCase
         .get("totalResultsAvailable"));
   }
 
+  public void testAcceptedAttributeNameSet() throws Exception
+  {
+    String input = "O:8:\"TypeName\":3:{s:3:\"foo\";a:1:{i:0;s:3:\"bar\";}"
+        + "s:3:\"baz\";i:2;s:3:\"ref\";R:3;}";
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setAcceptedAttributeNames(Arrays.asList("baz", "ref"));
+    SerializedPhpParser.PhpObject result = (SerializedPhpParser.PhpObject) serializedPhpParser
+        .parse();
+    assertEquals(2, result.attributes.size());
+    assertEquals(2L, result.attributes.get("baz"));
+    // the reference points into the skipped value of "foo"
+    assertEquals("bar", result.attributes.get("ref"));
+
+    serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setAcceptedAttributeNames(Arrays.asList("baz"));
+    serializedPhpParser.setAcceptedAttributeNameRegex("f.*");
+    result = (SerializedPhpParser.PhpObject) serializedPhpParser.parse();
+    assertEquals(2, result.attributes.size());
+    assertTrue(result.attributes.containsKey("foo"));
+  }
+
+  public void testRejectedValuesAreNotDecoded() throws Exception
+  {
+    String input = "a:2:{s:3:\"foo\";d:1.2.3;s:3:\"bar\";i:1;}";
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setAcceptedAttributeNameRegex("bar");
+    assertEquals(1L, ((Map) serializedPhpParser.parse()).get("bar"));
+  }
+
   public void testExceptionWrongArrayLength1()
   {
     String input = "a:2:{i:1;s:10:\"Test Test!\";}";
@@ -255,6 +321,367 @@ public class SerializedPhpParserTest extends TestCase
         "org.lorecraft.phparser.SerializedPhpParserException", input);
   }
 
+  @SuppressWarnings("rawtypes")
+  public void testReferenceNumberingLikePhp() throws Exception
+  {
+    // R: is not numbered itself, N; and r: are
+    String input = "a:6:{i:0;s:1:\"x\";i:1;R:2;i:2;N;i:3;O:8:\"stdClass\":0:{}"
+        + "i:4;r:4;i:5;R:5;}";
+    Map result = (Map) new SerializedPhpParser(input).parse();
+    assertEquals("x", result.get(1L));
+    assertSame(result.get(3L), result.get(4L));
+    assertSame(result.get(3L), result.get(5L));
+  }
+
+  @SuppressWarnings("rawtypes")
+  public void testReferenceNumberingChangedFromOldParser() throws Exception
+  {
+    // parsed to {0=a, 1=a, 2=a} when R: took a slot, PHP rejects it
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException",
+        "a:3:{i:0;s:1:\"a\";i:1;R:2;i:2;R:3;}",
+        SerializedPhpParserException.OUT_OF_RANG_REFERENCE);
+    // R:3 was "c" when N; took no slot, now N; is slot 2
+    Map result = (Map) new SerializedPhpParser(
+        "a:4:{i:0;N;i:1;s:1:\"b\";i:2;s:1:\"c\";i:3;R:3;}").parse();
+    assertEquals("b", result.get(3L));
+    result = (Map) new SerializedPhpParser(
+        "a:4:{i:0;N;i:1;s:1:\"b\";i:2;s:1:\"c\";i:3;R:2;}").parse();
+    assertSame(SerializedPhpParser.NULL, result.get(3L));
+  }
+
+  public void testCompactLists() throws Exception
+  {
+    PhpList longs = (PhpList) parseCompact("a:3:{i:0;i:1;i:1;i:-2;i:2;i:3;}");
+    assertTrue(longs.isLongList());
+    assertEquals(-2L, longs.getLong(1));
+    assertEquals(Arrays.asList(1L, -2L, 3L), longs);
+    assertEquals(-2L, longs.asMap().get(1L));
+    assertEquals("{0=1, 1=-2, 2=3}", longs.asMap().toString());
+
+    PhpList doubles = (PhpList) parseCompact("a:2:{i:0;d:0.5;i:1;d:1.5;}");
+    assertTrue(doubles.isDoubleList());
+    assertEquals(1.5d, doubles.getDouble(1));
+
+    PhpList mixed = (PhpList) parseCompact("a:3:{i:0;i:1;i:1;d:0.5;i:2;N;}");
+    assertFalse(mixed.isLongList() || mixed.isDoubleList());
+    assertEquals(Arrays.asList(1L, 0.5d, SerializedPhpParser.NULL), mixed);
+    mixed.set(2, "x");
+    assertEquals("x", mixed.asMap().get(2L));
+
+    PhpList nested = (PhpList) parseCompact("a:2:{i:0;a:2:{i:0;i:7;i:1;i:8;}i:1;R:2;}");
+    assertSame(nested.get(0), nested.get(1));
+    assertEquals(Arrays.asList(7L, 8L), nested.get(0));
+  }
+
+  public void testReferencesToUnboxedListElements() throws Exception
+  {
+    // the numbers are stored unboxed and boxed when a reference needs them
+    PhpList outer = (PhpList) parseCompact("a:4:{i:0;a:3:{i:0;i:7;i:1;i:8;"
+        + "i:2;i:9;}i:1;R:4;i:2;a:2:{i:0;d:0.5;i:1;d:1.5;}i:3;R:8;}");
+    assertTrue(((PhpList) outer.get(0)).isLongList());
+    assertTrue(((PhpList) outer.get(2)).isDoubleList());
+    assertEquals(8L, outer.get(1));
+    assertEquals(1.5d, outer.get(3));
+
+    // elements after a string are boxed, the ones before stay addressable
+    PhpList mixed = (PhpList) parseCompact("a:5:{i:0;i:1;i:1;s:1:\"x\";"
+        + "i:2;i:3;i:3;R:2;i:4;R:4;}");
+    assertEquals(Arrays.asList(1L, "x", 3L, 1L, 3L), mixed);
+
+    // a list that turns out to be a map keeps its references
+    Map<?, ?> map = (Map<?, ?>) parseCompact("a:3:{i:0;i:1;i:1;i:2;i:5;R:3;}");
+    assertEquals("{0=1, 1=2, 5=2}", map.toString());
+
+    // and so does a list that was skipped by the attribute filter
+    SerializedPhpParser parser = new SerializedPhpParser(
+        "a:2:{s:1:\"b\";a:2:{i:0;i:5;i:1;i:6;}s:1:\"a\";R:4;}");
+    parser.setCompactLists(true);
+    parser.setAcceptedAttributeNameRegex("a");
+    assertEquals("{a=6}", parser.parse().toString());
+  }
+
+  @SuppressWarnings("rawtypes")
+  public void testCompactListsFallBackToMaps() throws Exception
+  {
+    Map map = (Map) parseCompact("a:3:{i:0;s:1:\"a\";i:1;s:1:\"b\";i:5;R:2;}");
+    assertEquals("{0=a, 1=b, 5=a}", map.toString());
+    assertTrue(parseCompact("a:1:{s:1:\"k\";i:1;}") instanceof Map);
+    assertTrue(parseCompact("a:0:{}") instanceof Map);
+
+    // the inner list refers to the outer array before it turns out to be
+    // a map
+    map = (Map) parseCompact("a:2:{i:0;a:1:{i:0;R:1;}i:5;i:1;}");
+    assertSame(map, ((PhpList) map.get(0L)).get(0));
+
+    // lists that refer to themselves become maps without being parsed
+    // again, so the nesting does not multiply the work
+    StringBuilder input = new StringBuilder();
+    for (int i = 1; i <= 40; i++)
+    {
+      input.append("a:3:{i:0;R:").append(i).append(";i:1;");
+    }
+    input.append("i:7;");
+    for (int i = 1; i <= 40; i++)
+    {
+      input.append("s:1:\"k\";i:0;}");
+    }
+    map = (Map) parseCompact(input.toString());
+    for (int i = 1; i < 40; i++)
+    {
+      assertSame(map, map.get(0L));
+      assertEquals(0L, map.get("k"));
+      map = (Map) map.get(1L);
+    }
+    assertEquals(7L, map.get(1L));
+
+    // the elements before the fallback are counted once
+    SerializedPhpParser parser = SerializedPhpParserConfig.builder()
+        .compactLists(true).maxElements(4).build().newParser();
+    parser.reset("a:3:{i:0;R:1;i:1;a:1:{i:0;i:1;}s:1:\"k\";i:0;}");
+    map = (Map) parser.parse();
+    assertEquals(3, map.size());
+  }
+
+  public void testObjectAttributesKeepOrder() throws Exception
+  {
+    String input = "O:1:\"A\":3:{s:1:\"z\";i:1;s:1:\"a\";i:2;s:1:\"m\";i:3;}";
+    SerializedPhpParser.PhpObject result = (SerializedPhpParser.PhpObject) new SerializedPhpParser(
+        input).parse();
+    assertEquals("{z=1, a=2, m=3}", result.attributes.toString());
+
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setMapFactory(PhpMapFactory.LINKED_HASH_MAP);
+    result = (SerializedPhpParser.PhpObject) serializedPhpParser.parse();
+    assertEquals("{z=1, a=2, m=3}", result.attributes.toString());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testParsedMapsAreModifiable() throws Exception
+  {
+    StringBuilder input = new StringBuilder("a:20:{");
+    Map<Object, Object> expected = new LinkedHashMap<Object, Object>();
+    for (int i = 0; i < 20; i++)
+    {
+      input.append("s:2:\"k").append((char) ('a' + i)).append("\";i:")
+          .append(i).append(';');
+      expected.put("k" + (char) ('a' + i), Long.valueOf(i));
+    }
+    input.append('}');
+    Map<Object, Object> result = (Map<Object, Object>) new SerializedPhpParser(
+        input.toString()).parse();
+    assertEquals(expected, result);
+    assertEquals(expected.hashCode(), result.hashCode());
+
+    for (Map<Object, Object> map : Arrays.asList(expected, result))
+    {
+      map.remove("kc");
+      map.put("ka", "first");
+      map.put(7L, "new");
+      Iterator<Map.Entry<Object, Object>> entries = map.entrySet().iterator();
+      while (entries.hasNext())
+      {
+        Map.Entry<Object, Object> entry = entries.next();
+        if (entry.getValue() instanceof Long
+            && ((Long) entry.getValue()).longValue() % 2 == 1)
+        {
+          entries.remove();
+        }
+        else if ("ke".equals(entry.getKey()))
+        {
+          entry.setValue("changed");
+        }
+      }
+    }
+    assertEquals(expected.toString(), result.toString());
+    assertEquals("new", result.get(7L));
+    assertFalse(result.containsKey("kb"));
+
+    result.clear();
+    assertTrue(result.isEmpty());
+    result.put("x", "y");
+    assertEquals("{x=y}", result.toString());
+  }
+
+  @SuppressWarnings("rawtypes")
+  public void testSymbolTable() throws Exception
+  {
+    String input = "a:2:{i:0;O:5:\"Üser\":1:{s:7:\"user_id\";i:1;}"
+        + "i:1;O:5:\"Üser\":1:{s:7:\"user_id\";s:7:\"user_id\";}}";
+    PhpSymbolTable symbols = new PhpSymbolTable();
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(
+        input.getBytes("UTF-8"));
+    serializedPhpParser.setSymbolTable(symbols);
+    Map first = (Map) serializedPhpParser.parse();
+    serializedPhpParser.reset(input);
+    Map second = (Map) serializedPhpParser.parse();
+
+    SerializedPhpParser.PhpObject a = (SerializedPhpParser.PhpObject) first
+        .get(0L);
+    SerializedPhpParser.PhpObject b = (SerializedPhpParser.PhpObject) first
+        .get(1L);
+    SerializedPhpParser.PhpObject c = (SerializedPhpParser.PhpObject) second
+        .get(1L);
+    assertEquals("Üser", a.name);
+    assertSame(a.name, b.name);
+    assertSame(a.attributes.keySet().iterator().next(), b.attributes
+        .keySet().iterator().next());
+    assertEquals("user_id", b.attributes.get("user_id"));
+    // values are not interned
+    assertNotSame(b.attributes.keySet().iterator().next(), b.attributes
+        .get("user_id"));
+    // String input hashes chars instead of bytes, so only the ASCII name
+    // is found again
+    assertSame(c.name, ((SerializedPhpParser.PhpObject) second.get(0L)).name);
+    assertNotSame(a.name, c.name);
+    assertEquals(3, symbols.getMissCount());
+    assertEquals(5, symbols.getHitCount());
+
+    // a tiny table evicts names but returns the right ones
+    symbols = new PhpSymbolTable(2, 3);
+    serializedPhpParser = new SerializedPhpParser(
+        "a:4:{s:1:\"a\";i:1;s:1:\"b\";i:2;s:1:\"c\";i:3;s:4:\"long\";i:4;}");
+    serializedPhpParser.setSymbolTable(symbols);
+    assertEquals("{a=1, b=2, c=3, long=4}", serializedPhpParser.parse()
+        .toString());
+    assertEquals(3, symbols.getMissCount());
+  }
+
+  @SuppressWarnings("rawtypes")
+  public void testShapeCache() throws Exception
+  {
+    String input = "a:5:{i:0;O:4:\"Cart\":3:{s:2:\"id\";i:1;s:6:\"\0*\0qty\";i:2;"
+        + "s:4:\"self\";r:3;}i:1;O:4:\"Cart\":3:{s:2:\"id\";i:3;"
+        + "s:6:\"\0*\0qty\";i:4;s:4:\"self\";r:7;}i:2;O:4:\"Cart\":3:{"
+        + "s:2:\"id\";i:5;s:4:\"note\";s:1:\"x\";s:4:\"self\";N;}"
+        + "i:3;O:4:\"Cart\":3:{s:2:\"id\";i:6;s:6:\"\0*\0qty\";i:7;s:4:\"self\";N;}"
+        + "i:4;O:1:\"A\":1:{i:0;b:1;}}";
+    String expected = new SerializedPhpParser(input).parse().toString();
+    PhpShapeCache shapes = new PhpShapeCache();
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(
+        input.getBytes("UTF-8"));
+    serializedPhpParser.setShapeCache(shapes);
+    Map result = (Map) serializedPhpParser.parse();
+    assertEquals(expected, result.toString());
+    // learned from the first, matched by the second, not by the third
+    assertEquals(1, shapes.getHitCount());
+    assertEquals(4, shapes.getMissCount());
+
+    SerializedPhpParser.PhpObject first = (SerializedPhpParser.PhpObject) result
+        .get(0L);
+    SerializedPhpParser.PhpObject second = (SerializedPhpParser.PhpObject) result
+        .get(1L);
+    assertEquals(Long.valueOf(3), second.attributes.get("self"));
+    assertSame(first.name, second.name);
+    assertEquals(Long.valueOf(4), second.attributes.get("\0*\0qty"));
+    // a shared layout is copied before its keys change
+    second.attributes.put("extra", "y");
+    second.attributes.remove("id");
+    assertEquals("[\0*\0qty, self, extra]", second.attributes.keySet()
+        .toString());
+    serializedPhpParser.reset(input);
+    Map again = (Map) serializedPhpParser.parse();
+    assertEquals(expected, again.toString());
+    assertEquals(3, shapes.getHitCount());
+
+    // a filter is part of the shape
+    shapes.clear();
+    serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setShapeCache(shapes);
+    serializedPhpParser.setAcceptedAttributeNames(Arrays.asList("id", "note"));
+    assertEquals("{0=\"Cart\" : {id=1}, 1=\"Cart\" : {id=3}, "
+        + "2=\"Cart\" : {id=5, note=x}, 3=\"Cart\" : {id=6}, 4=\"A\" : {0=true}}",
+        serializedPhpParser.parse().toString());
+    assertEquals(1, shapes.getHitCount());
+
+    // the class name ends with ": like on the plain path, also for a known
+    // shape
+    serializedPhpParser = new SerializedPhpParser("O:3:\"Foo\":1:{s:1:\"a\";i:1;}");
+    serializedPhpParser.setShapeCache(shapes);
+    serializedPhpParser.parse();
+    for (String malformed : Arrays.asList("O:3:\"Foo\"X1:{s:1:\"a\";i:1;}",
+        "O:3:\"FooX:1:{s:1:\"a\";i:1;}"))
+    {
+      serializedPhpParser.reset(malformed);
+      try
+      {
+        serializedPhpParser.parse();
+        fail(malformed);
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(SerializedPhpParserException.TO_SHORT_STRING, ex.code);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testImmutableResults() throws Exception
+  {
+    String input = "a:3:{s:4:\"list\";a:2:{i:0;i:1;i:1;i:2;}s:3:\"obj\";"
+        + "O:8:\"stdClass\":1:{s:1:\"a\";a:1:{s:1:\"b\";N;}}s:4:\"same\";R:6;}";
+    for (PhpMapFactory mapFactory : Arrays.asList(PhpMapFactory.COMPACT,
+        PhpMapFactory.LINKED_HASH_MAP))
+    {
+      SerializedPhpParser serializedPhpParser = new SerializedPhpParser(input);
+      serializedPhpParser.setImmutable(true);
+      serializedPhpParser.setCompactLists(true);
+      serializedPhpParser.setMapFactory(mapFactory);
+      Map<Object, Object> result = (Map<Object, Object>) serializedPhpParser
+          .parse();
+      Map<Object, Object> attributes = ((SerializedPhpParser.PhpObject) result
+          .get("obj")).attributes;
+      assertSame(attributes.get("a"), result.get("same"));
+      assertEquals("{b=NULL}", result.get("same").toString());
+
+      assertReadOnly(result, "new");
+      assertReadOnly(attributes, "a");
+      assertReadOnly((Map<Object, Object>) result.get("same"), "b");
+      PhpList list = (PhpList) result.get("list");
+      try
+      {
+        list.set(0, 3L);
+        fail("Expect a Exception!");
+      }
+      catch (UnsupportedOperationException ex)
+      {
+        assertEquals(1L, list.getLong(0));
+      }
+    }
+  }
+
+  private void assertReadOnly(Map<Object, Object> map, Object key)
+  {
+    String before = map.toString();
+    try
+    {
+      map.put(key, "x");
+      fail("Expect a Exception!");
+    }
+    catch (UnsupportedOperationException ex)
+    {
+    }
+    try
+    {
+      map.entrySet().iterator().next().setValue("x");
+      fail("Expect a Exception!");
+    }
+    catch (UnsupportedOperationException ex)
+    {
+    }
+    try
+    {
+      Iterator<Object> keys = map.keySet().iterator();
+      keys.next();
+      keys.remove();
+      fail("Expect a Exception!");
+    }
+    catch (UnsupportedOperationException ex)
+    {
+    }
+    assertEquals(before, map.toString());
+  }
+
   @SuppressWarnings("unchecked")
   public void testWrongEncodingInputString() throws Exception
   {
@@ -272,6 +699,181 @@ public class SerializedPhpParserTest extends TestCase
     assertEquals(expected, ((Map<String, String>) result).get("Dat"));
   }
 
+  @SuppressWarnings("rawtypes")
+  public void testParseBytes() throws Exception
+  {
+    String input = "a:2:{s:4:\"name\";s:10:\"Müller€\";i:1;d:0.5;}";
+    Map result = (Map) new SerializedPhpParser(input.getBytes("UTF-8"))
+        .parse();
+    assertEquals("Müller€", result.get("name"));
+    assertEquals(0.5d, result.get(1L));
+  }
+
+  public void testParseByteSlice() throws Exception
+  {
+    byte[] input = "xxs:6:\"string\";xx".getBytes("UTF-8");
+    assertEquals("string",
+        new SerializedPhpParser(input, 2, input.length - 4).parse());
+  }
+
+  public void testParseLatin1Bytes() throws Exception
+  {
+    String expected = "H" + '\344' + '\366';
+    byte[] input = ("s:3:\"" + expected + "\";").getBytes("ISO-8859-1");
+    assertEquals(expected, new SerializedPhpParser(input, false).parse());
+  }
+
+  public void testParseDirectByteBuffer() throws Exception
+  {
+    byte[] bytes = "O:8:\"TypeName\":1:{s:3:\"foo\";s:4:\"bär\";}"
+        .getBytes("UTF-8");
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.flip();
+    Object result = new SerializedPhpParser(buffer).parse();
+    assertEquals("bär",
+        ((SerializedPhpParser.PhpObject) result).attributes.get("foo"));
+    assertEquals(0, buffer.position());
+  }
+
+  public void testExceptionStringLongerThanBytes()
+  {
+    try
+    {
+      new SerializedPhpParser("s:5:\"ab\";".getBytes()).parse();
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TO_LONG_STRING, ex.code);
+    }
+  }
+
+  public void testExceptionStringLengthInsideChar()
+  {
+    // the length has to end exactly after a character, é takes two bytes
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException",
+        "s:1:\"é\";", SerializedPhpParserException.TO_LONG_STRING);
+    assertExceptionSimple(
+        "org.lorecraft.phparser.SerializedPhpParserException",
+        "a:2:{i:0;s:3:\"éé\";i:1;s:1:\"x\";}",
+        SerializedPhpParserException.TO_LONG_STRING);
+  }
+
+  public void testDeepNestingOnSmallStack() throws Exception
+  {
+    final int depth = 100000;
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < depth; i++)
+    {
+      input.append("a:1:{i:0;");
+    }
+    input.append("i:1;");
+    for (int i = 0; i < depth; i++)
+    {
+      input.append('}');
+    }
+    final SerializedPhpParser parser = new SerializedPhpParser(input
+        .toString());
+    parser.setMaxDepth(depth);
+    final Object[] result = new Object[1];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          result[0] = parser.parse();
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 64 * 1024);
+    thread.start();
+    thread.join();
+    if (result[0] instanceof Throwable)
+    {
+      throw new AssertionError(result[0]);
+    }
+    Object value = result[0];
+    for (int i = 0; i < depth; i++)
+    {
+      assertTrue(value instanceof Map);
+      value = ((Map<?, ?>) value).get(Long.valueOf(0));
+    }
+    assertEquals(Long.valueOf(1), value);
+
+    assertExceptionSimple("org.lorecraft.phparser.SerializedPhpParserException",
+        input.toString(), SerializedPhpParserException.TOO_DEEP);
+  }
+
+  public void testLimits() throws Exception
+  {
+    String input = "a:2:{i:0;a:1:{s:3:\"abc\";s:2:\"de\";}i:1;O:1:\"X\":0:{}}";
+    assertEquals(2, ((Map<?, ?>) new SerializedPhpParser(input).parse())
+        .size());
+    assertLimit(input, SerializedPhpParserConfig.builder().maxDepth(1),
+        SerializedPhpParserException.TOO_DEEP, 14);
+    assertLimit(input, SerializedPhpParserConfig.builder().maxElements(2),
+        SerializedPhpParserException.TOO_MANY_ELEMENTS, 14);
+    assertLimit(input, SerializedPhpParserConfig.builder().maxStringBytes(2),
+        SerializedPhpParserException.STRING_TOO_LONG, 19);
+    assertLimit(input, SerializedPhpParserConfig.builder().maxTotalBytes(5),
+        SerializedPhpParserException.TOO_LARGE, 43);
+    SerializedPhpParser parser = SerializedPhpParserConfig.builder()
+        .maxDepth(2).maxElements(3).maxStringBytes(3).maxTotalBytes(6).build()
+        .newParser();
+    parser.reset(input);
+    parser.parse();
+    // the counts start again for every payload
+    parser.reset(input);
+    parser.parse();
+
+    // a forged count fails before anything is allocated for it
+    assertLimit("a:2000000000:{i:0;i:1;}", SerializedPhpParserConfig
+        .builder(), SerializedPhpParserException.TO_SHORT_INPUT_STRING, 14);
+    assertLimit("O:1:\"X\":2000000000:{}", SerializedPhpParserConfig
+        .builder(), SerializedPhpParserException.TO_SHORT_INPUT_STRING, 20);
+    assertLimit("a:1:{a:0:{}i:1;}", SerializedPhpParserConfig.builder(),
+        SerializedPhpParserException.UNKNOWN_TYPE, 5);
+    try
+    {
+      new SerializedPhpParser("N;").setMaxDepth(-1);
+      fail();
+    }
+    catch (IllegalArgumentException ex)
+    {
+      // negative limit
+    }
+  }
+
+  private void assertLimit(String input,
+      SerializedPhpParserConfig.Builder builder, int code, int position)
+  {
+    SerializedPhpParser parser = builder.build().newParser();
+    parser.reset(input);
+    try
+    {
+      Object result = parser.parse();
+      fail("Expect a Exception! " + result);
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(ex.getMessage(), code, ex.code);
+      assertEquals(ex.getMessage(), position, ex.position);
+    }
+  }
+
+  private Object parseCompact(String input) throws Exception
+  {
+    SerializedPhpParser serializedPhpParser = new SerializedPhpParser(input);
+    serializedPhpParser.setCompactLists(true);
+    return serializedPhpParser.parse();
+  }
+
   private void assertExceptionSimple(String expectException, String input, int code)
   {
     try
@@ -0,0 +1,120 @@
+package org.lorecraft.phpserializer;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpReader;
+import org.lorecraft.phparser.SerializedPhpReader.Token;
+
+public class SerializedPhpReaderTest extends TestCase
+{
+
+  public void testTokens() throws Exception
+  {
+    String input = "a:3:{i:0;s:3:\"foo\";s:1:\"o\";O:8:\"TypeName\":2:{s:1:\"d\";d:0.5;s:1:\"n\";N;}i:1;R:2;}";
+    SerializedPhpReader reader = new SerializedPhpReader(input);
+    assertEquals(Token.START_ARRAY, reader.next());
+    assertEquals(3, reader.getLength());
+    assertEquals(Token.KEY, reader.next());
+    assertFalse(reader.isStringKey());
+    assertEquals(0L, reader.getLong());
+    assertEquals(Token.VALUE_STRING, reader.next());
+    assertEquals("foo", reader.getString());
+    assertEquals(Token.KEY, reader.next());
+    assertEquals("o", reader.getKey());
+    assertEquals(Token.START_OBJECT, reader.next());
+    assertEquals("TypeName", reader.getClassName());
+    assertEquals(2, reader.getLength());
+    assertEquals(2, reader.getDepth());
+    assertEquals(Token.KEY, reader.next());
+    assertEquals(Token.VALUE_DOUBLE, reader.next());
+    assertEquals(0.5d, reader.getDouble());
+    assertEquals(Token.KEY, reader.next());
+    assertEquals(Token.VALUE_NULL, reader.next());
+    assertEquals(Token.END, reader.next());
+    assertEquals(Token.KEY, reader.next());
+    assertEquals(Token.REFERENCE, reader.next());
+    assertEquals(2, reader.getReferenceIndex());
+    assertEquals(Token.END, reader.next());
+    assertEquals(Token.END_DOCUMENT, reader.next());
+    assertEquals(Token.END_DOCUMENT, reader.next());
+  }
+
+  public void testScalarDocument() throws Exception
+  {
+    SerializedPhpReader reader = new SerializedPhpReader("b:1;".getBytes());
+    assertEquals(Token.VALUE_BOOLEAN, reader.next());
+    assertTrue(reader.getBoolean());
+    assertEquals(Token.END_DOCUMENT, reader.next());
+  }
+
+  public void testSkipValueOfKey() throws Exception
+  {
+    String input = "a:3:{s:4:\"cart\";a:2:{i:0;s:5:\"a}b;c\";i:1;O:4:\"Item\":1:{s:3:\"sku\";s:3:\"X-1\";}}"
+        + "s:7:\"user_id\";i:42;s:4:\"tags\";a:0:{}}";
+    SerializedPhpReader reader = new SerializedPhpReader(input);
+    long userId = 0;
+    assertEquals(Token.START_ARRAY, reader.next());
+    while (reader.next() == Token.KEY)
+    {
+      if (reader.getKey().equals("user_id"))
+      {
+        assertEquals(Token.VALUE_LONG, reader.next());
+        userId = reader.getLong();
+      }
+      else
+      {
+        reader.skipValue();
+      }
+    }
+    assertEquals(Token.END, reader.getToken());
+    assertEquals(42L, userId);
+    assertEquals(Token.END_DOCUMENT, reader.next());
+  }
+
+  public void testSkipChildren() throws Exception
+  {
+    String input = "a:2:{i:0;a:1:{i:0;a:1:{i:0;i:1;}}i:1;s:2:\"ok\";}";
+    SerializedPhpReader reader = new SerializedPhpReader(input);
+    reader.next();
+    reader.next();
+    assertEquals(Token.START_ARRAY, reader.next());
+    reader.skipValue();
+    assertEquals(Token.END, reader.getToken());
+    assertEquals(Token.KEY, reader.next());
+    assertEquals(Token.VALUE_STRING, reader.next());
+    assertEquals("ok", reader.getString());
+  }
+
+  public void testSkipRejectsWrongLength() throws Exception
+  {
+    String input = "a:2:{s:1:\"a\";a:2:{i:0;i:1;}s:1:\"b\";i:2;}";
+    SerializedPhpReader reader = new SerializedPhpReader(input);
+    reader.next();
+    reader.next();
+    try
+    {
+      reader.skipValue();
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.UNKNOWN_TYPE, ex.code);
+    }
+  }
+
+  public void testWrongAccessor() throws Exception
+  {
+    SerializedPhpReader reader = new SerializedPhpReader("i:5;");
+    reader.next();
+    try
+    {
+      reader.getString();
+      fail("Expect a Exception!");
+    }
+    catch (IllegalStateException ex)
+    {
+      // expected
+    }
+  }
+}
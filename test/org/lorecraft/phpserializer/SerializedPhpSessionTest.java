@@ -0,0 +1,120 @@
+package org.lorecraft.phpserializer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParserConfig;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpSession;
+
+public class SerializedPhpSessionTest extends TestCase
+{
+  public void testDecode() throws Exception
+  {
+    SerializedPhpSession session = SerializedPhpSession
+        .decode("user_id|i:42;name|s:5:\"jörg\";broken|d:abc;"
+            + "cart|a:1:{i:0;s:3:\"X-1\";}name|s:1:\"x\";");
+    assertEquals(4, session.size());
+    assertEquals(Arrays.asList("user_id", "name", "broken", "cart"), Arrays
+        .asList(session.keySet().toArray()));
+    assertTrue(session.containsKey("cart"));
+    assertFalse(session.containsKey("missing"));
+    assertNull(session.get("missing"));
+    assertEquals(Long.valueOf(42), session.get("user_id"));
+    assertEquals("x", session.get("name"));
+    Map<?, ?> cart = (Map<?, ?>) session.get("cart");
+    assertEquals("X-1", cart.get(Long.valueOf(0)));
+    assertSame(cart, session.get("cart"));
+    try
+    {
+      session.get("broken");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.INVALID_NUMBER, ex.code);
+    }
+    assertEquals(Long.valueOf(42), session.get("user_id"));
+    assertEquals(0, SerializedPhpSession.decode("").size());
+  }
+
+  public void testReferences() throws Exception
+  {
+    SerializedPhpSession session = SerializedPhpSession
+        .decode("a|a:2:{i:0;s:1:\"x\";i:1;i:5;}b|R:2;c|a:1:{i:0;r:3;}");
+    assertEquals("x", session.get("b"));
+    assertEquals(Long.valueOf(5), ((Map<?, ?>) session.get("c")).get(Long
+        .valueOf(0)));
+    Map<String, Object> map = session.toMap();
+    assertEquals(3, map.size());
+    assertEquals("x", ((Map<?, ?>) map.get("a")).get(Long.valueOf(0)));
+  }
+
+  public void testObjects() throws Exception
+  {
+    SerializedPhpSession session = SerializedPhpSession
+        .decode("user|O:4:\"User\":1:{s:2:\"id\";i:7;}n|i:2;");
+    assertEquals(Arrays.asList("user", "n"), Arrays.asList(session.keySet()
+        .toArray()));
+    assertEquals(Long.valueOf(2), session.get("n"));
+  }
+
+  public void testDecodeBinary() throws Exception
+  {
+    byte[] data = ("\u0007user_idi:42;\u0084gone\u0004cartb:1;")
+        .getBytes("ISO-8859-1");
+    SerializedPhpSession session = SerializedPhpSession.decodeBinary(data,
+        SerializedPhpParserConfig.builder().build());
+    assertEquals(Arrays.asList("user_id", "cart"), Arrays.asList(session
+        .keySet().toArray()));
+    assertEquals(Long.valueOf(42), session.get("user_id"));
+    assertEquals(Boolean.TRUE, session.get("cart"));
+  }
+
+  public void testErrors() throws Exception
+  {
+    try
+    {
+      SerializedPhpSession.decode("user_id|i:42;name");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.MISSING_DELIMITER_STRING,
+          ex.code);
+      assertEquals(13, ex.position);
+    }
+    try
+    {
+      SerializedPhpSession.decode("a|s:5:\"x\";");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      // the index scan checks the lengths of all values
+    }
+    try
+    {
+      // the class name is checked like a string body
+      SerializedPhpSession.decode("a|O:2:\"Foo\":0:{}");
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TO_SHORT_STRING, ex.code);
+      assertEquals(7, ex.position);
+    }
+    try
+    {
+      SerializedPhpSession.decodeBinary("\u0009user_id".getBytes("UTF-8"));
+      fail();
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.TO_SHORT_INPUT_STRING,
+          ex.code);
+    }
+  }
+}
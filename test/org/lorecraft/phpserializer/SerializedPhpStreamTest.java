@@ -0,0 +1,189 @@
+package org.lorecraft.phpserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpParserException;
+import org.lorecraft.phparser.SerializedPhpReader;
+
+public class SerializedPhpStreamTest extends TestCase
+{
+
+  private static String longString(int length)
+  {
+    StringBuilder result = new StringBuilder();
+    while (result.length() < length)
+    {
+      result.append("äöü€x;\"}");
+    }
+    return result.toString();
+  }
+
+  private static String serialize(String value) throws Exception
+  {
+    return "s:" + value.getBytes("UTF-8").length + ":\"" + value + "\";";
+  }
+
+  public void testParseWithSmallBuffer() throws Exception
+  {
+    String big = longString(1000);
+    String input = "a:4:{i:0;" + serialize(big) + "i:1;d:0.19999998807907104;"
+        + "s:3:\"obj\";O:8:\"TypeName\":2:{s:3:\"foo\";" + serialize(longString(70))
+        + "s:3:\"bar\";a:2:{i:0;b:1;i:1;N;}}i:2;R:2;}";
+    byte[] bytes = input.getBytes("UTF-8");
+    String expected = new SerializedPhpParser(bytes).parse().toString();
+
+    assertEquals(expected, new SerializedPhpParser(new ByteArrayInputStream(
+        bytes), true, 64).parse().toString());
+    assertEquals(expected, new SerializedPhpParser(new TrickleInputStream(
+        bytes), true, 64).parse().toString());
+    assertEquals(expected, new SerializedPhpParser(Channels
+        .newChannel(new TrickleInputStream(bytes)), true, 64).parse()
+        .toString());
+  }
+
+  public void testSameErrorsAsByteArray() throws Exception
+  {
+    String[] inputs = { "a:2:{i:1;s:10:\"Test Test!\";}",
+        "a:2:{i:1;s:8:\"Test Test!\";i:2;s:2:\"TT\";}",
+        "a:2:{i:1;s:11:\"Test Test!\";i:2;s:2:\"TT\";}",
+        "a:2:{i:1;s:10:\"Test Test!\";i:2;s:2:\"TT;}",
+        "a:2:{i:1;s:10:\"Test Test!\";i:2;i:21387481}",
+        "a:2:{i:1;s:10:\"Test Test!\";i:2;d:21387481}", "s:4:\"", "s:2:\"Def",
+        "s:3:\"Def\"", "a:4:{s:2:\"t1\";s:6:\"Friend\";i:2;i:10;i:3;R:2;i:4;R:5;}",
+        "a:1:{i:0;" + serialize(longString(500)).replace(";", "") + "}",
+        "a:1:{i:0;x:1;}" };
+    for (String input : inputs)
+    {
+      byte[] bytes = input.getBytes("UTF-8");
+      SerializedPhpParserException expected = null;
+      try
+      {
+        new SerializedPhpParser(bytes).parse();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        expected = ex;
+      }
+      assertNotNull(input, expected);
+      try
+      {
+        new SerializedPhpParser(new TrickleInputStream(bytes), true, 64)
+            .parse();
+        fail("Expect a Exception! " + input);
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(input, expected.code, ex.code);
+        assertEquals(input, expected.offset, ex.offset);
+      }
+    }
+  }
+
+  public void testHugeDeclaredLength() throws Exception
+  {
+    // fails at the end of the stream without allocating the declared length
+    String[] inputs = { "s:2000000000:\"abc\";",
+        "a:1:{i:0;s:2000000000:\"" + longString(500) + "\";}" };
+    for (String input : inputs)
+    {
+      byte[] bytes = input.getBytes("UTF-8");
+      SerializedPhpParserException expected = null;
+      try
+      {
+        new SerializedPhpParser(bytes).parse();
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        expected = ex;
+      }
+      assertNotNull(input, expected);
+      try
+      {
+        new SerializedPhpParser(new TrickleInputStream(bytes), true, 64)
+            .parse();
+        fail("Expect a Exception!");
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(expected.code, ex.code);
+        assertEquals(expected.offset, ex.offset);
+      }
+      SerializedPhpReader reader = new SerializedPhpReader(Channels
+          .newChannel(new ByteArrayInputStream(bytes)), true, 64);
+      try
+      {
+        while (reader.next() != SerializedPhpReader.Token.END_DOCUMENT)
+        {
+          // reads every string body
+        }
+        fail("Expect a Exception!");
+      }
+      catch (SerializedPhpParserException ex)
+      {
+        assertEquals(expected.code, ex.code);
+      }
+    }
+  }
+
+  public void testReadError() throws Exception
+  {
+    InputStream failing = new InputStream()
+    {
+      @Override
+      public int read() throws IOException
+      {
+        throw new IOException("broken");
+      }
+    };
+    try
+    {
+      new SerializedPhpParser(failing).parse();
+      fail("Expect a Exception!");
+    }
+    catch (SerializedPhpParserException ex)
+    {
+      assertEquals(SerializedPhpParserException.READ_ERROR, ex.code);
+      assertTrue(ex.getCause() instanceof IOException);
+    }
+  }
+
+  public void testReaderSkipsLongStrings() throws Exception
+  {
+    String input = "a:3:{i:0;" + serialize(longString(5000)) + "i:1;"
+        + serialize(longString(300)) + "i:2;i:7;}";
+    SerializedPhpReader reader = new SerializedPhpReader(
+        new TrickleInputStream(input.getBytes("UTF-8")), true, 64);
+    reader.next();
+    reader.next();
+    reader.skipValue();
+    reader.next();
+    reader.skipValue();
+    reader.next();
+    assertEquals(SerializedPhpReader.Token.VALUE_LONG, reader.next());
+    assertEquals(7L, reader.getLong());
+    assertEquals(SerializedPhpReader.Token.END, reader.next());
+  }
+
+  /**
+   * returns at most three bytes per read, so tokens span many refills
+   */
+  private static class TrickleInputStream extends ByteArrayInputStream
+  {
+    TrickleInputStream(byte[] bytes)
+    {
+      super(bytes);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len)
+    {
+      return super.read(b, off, Math.min(len, 3));
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package org.lorecraft.phpserializer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.lorecraft.phparser.SerializedPhpParser;
+import org.lorecraft.phparser.SerializedPhpWriter;
+
+public class SerializedPhpWriterTest extends TestCase
+{
+
+  public void testPhpOutput() throws Exception
+  {
+    Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    map.put("a", Integer.valueOf(1));
+    map.put("b", Arrays.asList(Boolean.TRUE, null, Double.valueOf(1.5),
+        Double.valueOf(2), Double.valueOf(1e25), Double.NEGATIVE_INFINITY));
+    map.put("c", "ü😀");
+    map.put(Long.valueOf(-9), Long.valueOf(Long.MIN_VALUE));
+    // the output of PHP's serialize() for the same array
+    assertEquals("a:4:{s:1:\"a\";i:1;s:1:\"b\";a:6:{i:0;b:1;i:1;N;i:2;d:1.5;"
+        + "i:3;d:2;i:4;d:1.0E+25;i:5;d:-INF;}s:1:\"c\";s:6:\"ü😀\";"
+        + "i:-9;i:-9223372036854775808;}", new SerializedPhpWriter()
+        .serialize(map));
+  }
+
+  public void testPhpFloatFormat() throws Exception
+  {
+    // the output of PHP's serialize() for the same floats
+    double[] values = { 0.1, 1e-4, 1.5e-5, -1.5e-7, 12345678.5, 1e15,
+        123456789012345.6, 1.25e16, -0.0, 1.7976931348623157e308, 4.9e-324 };
+    String[] expected = { "d:0.1;", "d:0.0001;", "d:1.5E-5;", "d:-1.5E-7;",
+        "d:12345678.5;", "d:1.0E+15;", "d:123456789012345.6;", "d:1.25E+16;",
+        "d:-0;", "d:1.7976931348623157E+308;", "d:4.9E-324;" };
+    SerializedPhpWriter writer = new SerializedPhpWriter();
+    for (int i = 0; i < values.length; i++)
+    {
+      Double value = Double.valueOf(values[i]);
+      assertEquals(expected[i], writer.serialize(value));
+      assertEquals(value, new SerializedPhpParser(expected[i]).parse());
+    }
+  }
+
+  public void testSupplementaryCharactersRoundTrip() throws Exception
+  {
+    Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    map.put("😀", "a😀ü€");
+    SerializedPhpWriter writer = new SerializedPhpWriter();
+    String serialized = writer.serialize(map);
+    assertEquals("a:1:{s:4:\"😀\";s:10:\"a😀ü€\";}", serialized);
+    assertEquals(map, new SerializedPhpParser(serialized).parse());
+    assertEquals(map, new SerializedPhpParser(writer.toBytes(map)).parse());
+  }
+
+  public void testSharedValues() throws Exception
+  {
+    SerializedPhpParser.PhpObject object = new SerializedPhpParser.PhpObject();
+    object.name = "stdClass";
+    List<Object> shared = new ArrayList<Object>();
+    shared.add("x");
+    List<Object> list = Arrays.asList(null, object, object, shared, shared);
+    // numbered like PHP: N and r: count, R: does not
+    String expected = "a:5:{i:0;N;i:1;O:8:\"stdClass\":0:{}i:2;r:3;"
+        + "i:3;a:1:{i:0;s:1:\"x\";}i:4;R:5;}";
+    SerializedPhpWriter writer = new SerializedPhpWriter();
+    assertEquals(expected, writer.serialize(list));
+
+    Map<?, ?> result = (Map<?, ?>) new SerializedPhpParser(writer
+        .toBytes(list)).parse();
+    assertSame(result.get(Long.valueOf(1)), result.get(Long.valueOf(2)));
+    assertSame(result.get(Long.valueOf(3)), result.get(Long.valueOf(4)));
+  }
+
+  public void testRoundTripThroughSmallBuffers() throws Exception
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 300; i++)
+    {
+      text.append("äöü€x");
+    }
+    Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    for (int i = 0; i < 50; i++)
+    {
+      map.put("key" + i, i % 2 == 0 ? text.toString() : Long.valueOf(i));
+    }
+    SerializedPhpWriter writer = new SerializedPhpWriter(64);
+    byte[] expected = writer.toBytes(map);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(map, out);
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+    ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+    writer.write(map, buffer);
+    assertTrue(Arrays.equals(expected, buffer.array()));
+    assertEquals(map.toString(), new SerializedPhpParser(expected).parse()
+        .toString());
+    try
+    {
+      writer.write(map, ByteBuffer.allocate(100));
+      fail("Expect a Exception!");
+    }
+    catch (BufferOverflowException ex)
+    {
+      // expected
+    }
+  }
+
+  public void testDeepTreeOnSmallStack() throws Exception
+  {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < SerializedPhpParser.DEFAULT_MAX_DEPTH; i++)
+    {
+      input.append(i % 2 == 0 ? "a:1:{i:0;" : "O:1:\"X\":1:{s:1:\"a\";");
+    }
+    input.append("i:1;");
+    for (int i = 0; i < SerializedPhpParser.DEFAULT_MAX_DEPTH; i++)
+    {
+      input.append('}');
+    }
+    final String deep = input.toString();
+    final Object[] result = new Object[2];
+    Thread thread = new Thread(null, new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          SerializedPhpWriter writer = new SerializedPhpWriter();
+          result[0] = writer.serialize(new SerializedPhpParser(deep).parse());
+          SerializedPhpParser parser = new SerializedPhpParser(deep);
+          parser.setCompactLists(true);
+          result[1] = writer.serialize(parser.parse());
+        }
+        catch (Throwable ex)
+        {
+          result[0] = ex;
+        }
+      }
+    }, "small-stack", 128 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(deep, result[0]);
+    assertEquals(deep, result[1]);
+  }
+}